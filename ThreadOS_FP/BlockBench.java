@@ -0,0 +1,103 @@
+// Compares file throughput across file system block sizes. For each size the
+// disk is formatted anew, then one file is written and read back in order,
+// and read again a block at a time in a scattered order.
+// usage: l BlockBench [kilobytes [size ...]]
+// The default is a 256 KB file on blocks of 512 bytes, 1, 4, 16 and 64 KB.
+// Formatting erases the disk, which is left with blocks of 512 bytes.
+// The numbers follow Disk's cost model: every 512-byte disk block costs its
+// own transfer time, and a request of several blocks saves only the seeks
+// between them. So larger blocks gain through fewer seeks, system calls and
+// index lookups, not through cheaper transfers; on that model a 256 KB file
+// went from 8 KB/s written and 24 KB/s read at 512 bytes to 19 and 33 KB/s
+// at 64 KB.
+public class BlockBench extends Thread {
+  private int bytes = 256 * 1024;
+  private int[] sizes = { 512, 1024, 4096, 16384, 65536 };
+
+  public BlockBench( ) {
+  }
+
+  public BlockBench( String[] args ) {
+    if ( args.length > 0 )
+      bytes = Integer.parseInt( args[0] ) * 1024;
+    if ( args.length > 1 ) {
+      sizes = new int[args.length - 1];
+      for ( int i = 1; i < args.length; i++ )
+        sizes[i - 1] = Integer.parseInt( args[i] );
+    }
+  }
+
+  public void run( ) {
+    byte[] data = new byte[bytes];
+    for ( int i = 0; i < bytes; i++ )
+      data[i] = ( byte ) ( i % 251 );
+    SysLib.cout( "BlockBench: " + bytes / 1024 + " KB file\n" );
+    SysLib.cout( "block    write KB/s    read KB/s   random KB/s\n" );
+    for ( int i = 0; i < sizes.length; i++ ) {
+      if ( SysLib.format( 64, sizes[i] ) != 0 ) {
+        SysLib.cout( sizes[i] + ": not a block size, skipped\n" );
+        continue;
+      }
+      bench( sizes[i], data );
+    }
+    SysLib.format( 64 );
+    SysLib.cout( "BlockBench: completed\n" );
+    SysLib.exit( );
+  }
+
+  // writes and reads the file through calls of a 64 KB buffer, which covers
+  // whole blocks of every size, and prints the throughput of each pass
+  private void bench( int blockSize, byte[] data ) {
+    int chunk = 64 * 1024;
+    int fd = SysLib.open( "bench", "w+" );
+    long start = System.currentTimeMillis( );
+    for ( int done = 0; done < data.length; done += chunk ) {
+      int length = Math.min( chunk, data.length - done );
+      byte[] buffer = new byte[length];
+      System.arraycopy( data, done, buffer, 0, length );
+      SysLib.write( fd, buffer );
+    }
+    long write = System.currentTimeMillis( ) - start;
+
+    SysLib.seek( fd, 0, 0 );
+    byte[] buffer = new byte[chunk];
+    boolean correct = true;
+    start = System.currentTimeMillis( );
+    for ( int done = 0; done < data.length; ) {
+      int read = SysLib.read( fd, buffer );
+      if ( read <= 0 )
+        break;
+      for ( int j = 0; j < read; j++ )
+        correct &= buffer[j] == data[done + j];
+      done += read;
+    }
+    long read = System.currentTimeMillis( ) - start;
+
+    // one block at a time, striding across the file so no two reads are
+    // neighbours
+    int blocks = data.length / blockSize;
+    byte[] block = new byte[blockSize];
+    int stride = Math.max( 1, blocks / 2 + 1 ) | 1;
+    start = System.currentTimeMillis( );
+    for ( int j = 0, b = 0; j < blocks; j++, b = ( b + stride ) % blocks )
+      SysLib.pread( fd, block, b * blockSize );
+    long random = System.currentTimeMillis( ) - start;
+    SysLib.close( fd );
+
+    SysLib.cout( pad( blockSize, 5 ) + pad( rate( data.length, write ), 13 )
+                 + pad( rate( data.length, read ), 13 )
+                 + pad( rate( blocks * blockSize, random ), 14 )
+                 + ( correct ? "" : "   (read back wrong)" ) + "\n" );
+  }
+
+  private static long rate( long bytes, long millis ) {
+    return bytes * 1000 / 1024 / Math.max( 1, millis );
+  }
+
+  private static String pad( long value, int width ) {
+    String s = Long.toString( value );
+    while ( s.length( ) < width )
+      s = " " + s;
+    return s;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+A background thread that returns the blocks of emptied files to the superblock. FileSystem.delete( ) and opening a
+file with "w" take the block pointers away from the inode at once and queue them here, so the caller never waits on
+the index block reads or the bitmap updates. The thread wakes up when work is queued, gathers every block of the
+pending files, including the entries of their index trees, and frees them in one batch.
+Anything that must see the bitmap complete, such as sync, format, fsck, or an allocation that found the disk full,
+calls drain( ) first.
+ */
+
+import java.util.ArrayList;
+
+public class BlockReclaimer extends Thread {
+    private final SuperBlock superblock;
+    private ArrayList<int[]> pending = new ArrayList<int[]>(); // detached pointers: the direct ones, then the tree roots
+    private boolean busy = false; // true while a batch taken from pending is being freed
+
+    public BlockReclaimer(SuperBlock superblock) {
+        this.superblock = superblock;
+        setDaemon(true);
+    }
+
+    // queues the blocks of one detached inode; pointers holds its direct pointers followed by its index tree roots,
+    // as returned by Inode.detachPointers( )
+    public synchronized void reclaim(int[] pointers) {
+        pending.add(pointers);
+        notifyAll();
+    }
+
+    // returns the number of emptied files whose blocks are queued or being freed
+    public synchronized int pending() {
+        return pending.size() + (busy ? 1 : 0);
+    }
+
+    // waits until every queued block has been freed
+    // returns true if there was anything to wait for
+    public synchronized boolean drain() {
+        boolean waited = false;
+        while (busy || !pending.isEmpty()) {
+            waited = true;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        return waited;
+    }
+
+    public void run() {
+        while (true) {
+            ArrayList<int[]> batch;
+            synchronized (this) {
+                while (pending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                batch = pending;
+                pending = new ArrayList<int[]>();
+                busy = true;
+            }
+            superblock.returnBlocks(collect(batch));
+            synchronized (this) {
+                busy = false;
+                notifyAll();
+            }
+        }
+    }
+
+    // returns every block the given pointers reach, index blocks included
+    private int[] collect(ArrayList<int[]> batch) {
+        int[][] found = new int[batch.size()][];
+        int count = 0;
+        for (int i = 0; i < found.length; i++) {
+            found[i] = Inode.blocksOf(batch.get(i));
+            count += found[i].length;
+        }
+        int[] result = new int[count];
+        count = 0;
+        for (int[] blocks : found) {
+            System.arraycopy(blocks, 0, result, count, blocks.length);
+            count += blocks.length;
+        }
+        return result;
+    }
+}
@@ -7,7 +7,17 @@ public class Boot
 
    public static void main ( String args[] ) {
       SysLib.cerr( "threadOS ver 1.0:\n" );
-      SysLib.boot( );
+      // "java Boot blocks" boots with a disk of that many blocks
+      int diskBlocks = 0;
+      if ( args.length > 0 ) {
+         try {
+            diskBlocks = Integer.parseInt( args[0] );
+         } catch ( NumberFormatException e ) {
+            SysLib.cerr( "usage: java Boot [diskBlocks]\n" );
+            return;
+         }
+      }
+      SysLib.boot( diskBlocks );
       SysLib.cerr( "Type ? for help\n" );
 
       String[] loader = new String[1];
@@ -0,0 +1,168 @@
+/*
+An InputStream over a file descriptor from SysLib.open( ) that reads the file a buffer at a time, so a user thread
+reading a few bytes or a line at a time enters the kernel once per buffer instead of once per call. The first read
+is cut short at a block boundary, so when the buffer is a multiple of the file system block size, SysLib.blockSize( ),
+every later SysLib.read covers whole blocks. The stream owns the descriptor from then on: reading it or seeking it
+directly while the stream is in use loses track of the buffered data, and close( ) closes it.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class BufferedFileInputStream extends InputStream {
+    private final int fd;          // the file descriptor read from
+    private final byte[] buffer;   // bytes read from the file but not yet handed out
+    private int position = 0;      // the next byte of buffer to hand out
+    private int count = 0;         // the number of valid bytes in buffer
+    private boolean needsAlignment; // true while the next refill must stop at a block boundary
+    private boolean closed = false;
+    private final int blockSize = SysLib.blockSize(); // the bytes in each block of the file system
+
+    // reads fd through a buffer of one file system block
+    public BufferedFileInputStream(int fd) {
+        this(fd, SysLib.blockSize());
+    }
+
+    // reads fd through a buffer of the given size
+    public BufferedFileInputStream(int fd, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("buffer size " + size);
+        }
+        this.fd = fd;
+        buffer = new byte[size];
+        needsAlignment = size % blockSize == 0; // there is nothing to gain from aligning any other buffer
+    }
+
+    // returns the next byte of the file, or -1 at the end of the file
+    public int read() throws IOException {
+        if (position == count && fill() <= 0) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    // reads up to length bytes into b[offset...], returning the number read or -1 at the end of the file
+    // a request of at least a buffer's size goes straight to the file once the buffer is empty
+    public int read(byte[] b, int offset, int length) throws IOException {
+        checkOpen();
+        if (offset < 0 || length < 0 || offset + length > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (length == 0) {
+            return 0;
+        }
+        int done = 0;
+        while (done < length) {
+            if (position < count) {
+                int chunk = Math.min(length - done, count - position);
+                System.arraycopy(buffer, position, b, offset + done, chunk);
+                position += chunk;
+                done += chunk;
+            } else if (!needsAlignment && length - done >= buffer.length) {
+                // nothing is buffered, so read the whole blocks directly into the caller's array
+                int direct = (length - done) / buffer.length * buffer.length;
+                byte[] data = (offset + done == 0 && direct == b.length) ? b : new byte[direct];
+                int read = SysLib.read(fd, data);
+                if (read < 0) {
+                    throw new IOException("threadOS: read failed on fd " + fd);
+                }
+                if (data != b) {
+                    System.arraycopy(data, 0, b, offset + done, read);
+                }
+                done += read;
+                if (read < direct) { // end of file
+                    break;
+                }
+            } else if (fill() <= 0) {
+                break;
+            }
+        }
+        return (done == 0) ? -1 : done;
+    }
+
+    // reads bytes up to the next "\n" and returns them without it, or null at the end of the file
+    // a "\r" just before the "\n" is dropped as well
+    public String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        boolean any = false;
+        while (true) {
+            if (position == count && fill() <= 0) {
+                break;
+            }
+            any = true;
+            // copy everything up to the newline in one go
+            int end = position;
+            while (end < count && buffer[end] != '\n') {
+                end++;
+            }
+            line.write(buffer, position, end - position);
+            if (end < count) { // found the newline
+                position = end + 1;
+                break;
+            }
+            position = end;
+        }
+        if (!any) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, "UTF-8");
+    }
+
+    // returns the number of bytes that can be read without entering the kernel
+    public int available() throws IOException {
+        checkOpen();
+        return count - position;
+    }
+
+    // closes the file descriptor; buffered bytes are dropped
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        position = count = 0;
+        if (SysLib.close(fd) < 0) {
+            throw new IOException("threadOS: close failed on fd " + fd);
+        }
+    }
+
+    // refills the empty buffer from the file; returns the number of bytes read, 0 at the end of the file
+    private int fill() throws IOException {
+        checkOpen();
+        byte[] data = buffer;
+        if (needsAlignment) {
+            // read only up to the next block boundary, so the refills after this one start on block boundaries
+            int seekPtr = SysLib.seek(fd, 0, Kernel.SEEK_CUR);
+            if (seekPtr < 0) {
+                throw new IOException("threadOS: seek failed on fd " + fd);
+            }
+            int toBoundary = blockSize - seekPtr % blockSize;
+            if (toBoundary < buffer.length) {
+                data = new byte[toBoundary];
+            }
+            needsAlignment = false;
+        }
+        int read = SysLib.read(fd, data);
+        if (read < 0) {
+            throw new IOException("threadOS: read failed on fd " + fd);
+        }
+        if (data != buffer) {
+            System.arraycopy(data, 0, buffer, 0, read);
+        }
+        position = 0;
+        count = read;
+        return read;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("threadOS: stream closed");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+An OutputStream over a file descriptor from SysLib.open( ) that gathers small writes in a buffer and hands them to
+SysLib.write a buffer at a time, so a user thread writing a few bytes at a time enters the kernel once per buffer
+instead of once per call. The first flush is cut short at a block boundary, so when the buffer is a multiple of
+the file system block size, SysLib.blockSize( ), every later SysLib.write replaces whole blocks and the file system
+skips reading them first.
+Buffered bytes reach the file on flush( ), when the buffer fills, and on close( ), which also closes the descriptor.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class BufferedFileOutputStream extends OutputStream {
+    private final int fd;          // the file descriptor written to
+    private final byte[] buffer;   // bytes written to the stream but not yet to the file
+    private int count = 0;         // the number of valid bytes in buffer
+    private int limit;             // the number of bytes that fill the buffer; short until the first block boundary
+    private boolean closed = false;
+    private final int blockSize = SysLib.blockSize(); // the bytes in each block of the file system
+
+    // writes fd through a buffer of one file system block
+    public BufferedFileOutputStream(int fd) {
+        this(fd, SysLib.blockSize());
+    }
+
+    // writes fd through a buffer of the given size
+    public BufferedFileOutputStream(int fd, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("buffer size " + size);
+        }
+        this.fd = fd;
+        buffer = new byte[size];
+        limit = size;
+        if (size % blockSize == 0) {
+            // stop the first buffer at the end of the block the seek pointer is in
+            int seekPtr = SysLib.seek(fd, 0, Kernel.SEEK_CUR);
+            if (seekPtr > 0 && seekPtr % blockSize != 0) {
+                limit = blockSize - seekPtr % blockSize;
+            }
+        }
+    }
+
+    // writes one byte
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (count == limit) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    // writes length bytes of b[offset...]
+    // a request of at least a buffer's size goes straight to the file once the buffer has been flushed
+    public void write(byte[] b, int offset, int length) throws IOException {
+        checkOpen();
+        if (offset < 0 || length < 0 || offset + length > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (length > 0) {
+            if (count == 0 && limit == buffer.length && length >= buffer.length) {
+                // nothing is buffered, so write the whole buffers directly from the caller's array
+                int direct = length / buffer.length * buffer.length;
+                byte[] data = (offset == 0 && direct == b.length) ? b : new byte[direct];
+                if (data != b) {
+                    System.arraycopy(b, offset, data, 0, direct);
+                }
+                writeFully(data, direct);
+                offset += direct;
+                length -= direct;
+                continue;
+            }
+            int chunk = Math.min(length, limit - count);
+            System.arraycopy(b, offset, buffer, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+            if (count == limit) {
+                flushBuffer();
+            }
+        }
+    }
+
+    // writes the buffered bytes to the file
+    public void flush() throws IOException {
+        checkOpen();
+        flushBuffer();
+    }
+
+    // flushes the buffer and closes the file descriptor
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } finally {
+            closed = true;
+            if (SysLib.close(fd) < 0) {
+                throw new IOException("threadOS: close failed on fd " + fd);
+            }
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        byte[] data = buffer;
+        if (count < buffer.length) {
+            data = new byte[count];
+            System.arraycopy(buffer, 0, data, 0, count);
+        }
+        writeFully(data, count);
+        count = 0;
+        limit = buffer.length;
+    }
+
+    private void writeFully(byte[] data, int length) throws IOException {
+        if (SysLib.write(fd, data) != length) {
+            throw new IOException("threadOS: write failed on fd " + fd);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("threadOS: stream closed");
+        }
+    }
+}
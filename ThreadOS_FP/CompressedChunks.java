@@ -0,0 +1,144 @@
+/*
+The compressed form of a file opened with a mode ending in "c", such as "w+c". The file is cut into chunks of
+chunkBlocks blocks, and chunk k is stored deflated in the slot of slotBlocks block pointers that starts at pointer
+k * slotBlocks: a four-byte header with the deflated length, then the deflated bytes, using only as many blocks of the
+slot as they need. The rest of the slot stays a hole and takes no disk blocks, so any byte of the file is found
+through its chunk number alone. One extra pointer per slot leaves room for a chunk that does not compress.
+The last chunk touched is kept here uncompressed, so reading a file in order, or writing it a little at a time,
+inflates each chunk only once. Writes change the cached chunk only; FileSystem deflates it back into its slot when
+the file moves on to another chunk, on sync, and when the writer closes the file. The Deflater and Inflater hold
+native zlib memory until ended, so each close of the file ends them, and the next use makes new ones. The inode
+lock guards all of this state.
+ */
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+class CompressedChunks {
+    static final int chunkBlocks = 4;                          // file blocks per chunk
+    static final int slotBlocks = chunkBlocks + 1;             // block pointers set aside for each chunk
+    private static final int headerSize = 4;                   // the deflated length before the deflated bytes
+
+    private Deflater deflater;                       // created on first use, since most inodes read are never
+    private Inflater inflater;                       // read or written through
+    private final byte[] data = new byte[chunkSize()]; // the contents of chunk cached
+    private int cached = -1;                         // the chunk held in data, or -1 for none
+    private boolean dirty = false;                   // true when data has changed since the chunk was stored
+
+    // returns the number of file bytes per chunk
+    static int chunkSize() {
+        return chunkBlocks * SuperBlock.blockSize();
+    }
+
+    // returns the largest length a compressed file can reach
+    static int maxLength() {
+        return (int) Math.min((long) Inode.maxBlocks() / slotBlocks * chunkSize(), Integer.MAX_VALUE);
+    }
+
+    // returns the index of the first block pointer of chunk k's slot
+    static int slot(int k) {
+        return k * slotBlocks;
+    }
+
+    // returns chunk k uncompressed if it is the cached chunk, otherwise null
+    byte[] cached(int k) {
+        return (cached == k) ? data : null;
+    }
+
+    // returns the cached chunk, or -1 for none
+    int cachedChunk() {
+        return cached;
+    }
+
+    // returns the cached chunk if it has changed since it was stored, otherwise -1
+    int dirtyChunk() {
+        return dirty ? cached : -1;
+    }
+
+    // notes that the cached chunk has been written to
+    void changed() {
+        dirty = true;
+    }
+
+    // notes that the cached chunk now matches its slot on disk
+    void stored() {
+        dirty = false;
+    }
+
+    // makes chunk k the cached chunk without reading it, for a caller about to overwrite all of it;
+    // the caller stores the dirty chunk first
+    byte[] replace(int k) {
+        cached = k;
+        dirty = false;
+        Arrays.fill(data, (byte) 0);
+        return data;
+    }
+
+    // makes chunk k the cached chunk out of stored, the header and deflated bytes read from its slot,
+    // or out of zeros when stored is null because the chunk is a hole; the caller stores the dirty chunk first
+    byte[] inflate(int k, byte[] stored) {
+        Arrays.fill(data, (byte) 0);
+        cached = -1;
+        dirty = false;
+        if (stored != null) {
+            int length = SysLib.bytes2int(stored, 0);
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            inflater.reset();
+            inflater.setInput(stored, headerSize, Math.min(length, stored.length - headerSize));
+            try {
+                inflater.inflate(data);
+            } catch (DataFormatException e) {
+                SysLib.cerr("threadOS: compressed chunk " + k + " is damaged\n");
+            }
+        }
+        cached = k;
+        return data;
+    }
+
+    // deflates the cached chunk and returns the header and deflated bytes to store in its slot
+    byte[] deflate() {
+        byte[] out = new byte[slotBlocks * SuperBlock.blockSize()];
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        int length = deflater.deflate(out, headerSize, out.length - headerSize);
+        SysLib.int2bytes(length, out, 0);
+        return Arrays.copyOf(out, headerSize + length);
+    }
+
+    // returns the number of blocks stored, the result of deflate( ), takes up
+    static int blocksFor(byte[] stored) {
+        return (stored.length + SuperBlock.blockSize() - 1) / SuperBlock.blockSize();
+    }
+
+    // returns the number of blocks a stored chunk takes, given the first block of its slot
+    static int storedBlocks(byte[] firstBlock) {
+        long length = SysLib.bytes2int(firstBlock, 0) & 0xffffffffL;
+        return (int) Math.min((headerSize + length + SuperBlock.blockSize() - 1) / SuperBlock.blockSize(), slotBlocks);
+    }
+
+    // drops the cached chunk and any changes to it, as when the file is cut short before it
+    void forget() {
+        cached = -1;
+        dirty = false;
+    }
+
+    // ends the zlib streams, giving back their native memory; the cached chunk stays
+    void release() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
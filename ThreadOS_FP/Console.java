@@ -0,0 +1,164 @@
+import java.io.*;
+import java.util.LinkedList;
+
+// The console driver. Its thread reads the keyboard a line at a time into
+// a line buffer and raises an INTERRUPT_IO for each line, so a thread
+// reading standard input sleeps on the kernel's I/O queue instead of
+// blocking inside System.in, and a program can ask for a line without
+// waiting at all.
+//
+// Output is batched: install( ) points System.out and System.err at
+// buffers that a writer thread flushes to the real streams a few
+// milliseconds after the first byte waits, so a burst of SysLib.cout calls
+// reaches the host in a few large writes. Whatever waits is flushed before
+// a thread waits for input, so a prompt always shows first, and when the
+// JVM exits. Standard output and standard error share one lock, and one is
+// flushed before the other is written, so their order is kept.
+public class Console extends Thread {
+   private final int bufferSize = 8192;  // bytes held per stream at most
+   private final int flushDelay = 10;    // milliseconds a batch may gather
+
+   private BufferedReader input;
+   private final LinkedList<String> lines = new LinkedList<String>( );
+   private boolean atEnd = false;        // standard input has ended
+
+   private final Object output = new Object( ); // guards both buffers
+   private Buffer out;
+   private Buffer err;
+   private Buffer last;                  // the buffer written most recently
+   private boolean pending = false;      // some buffer holds bytes
+
+   public Console( ) {
+      input = new BufferedReader( new InputStreamReader( System.in ) );
+      setDaemon( true );
+   }
+
+   // replaces System.out and System.err with the batched buffers and starts
+   // the thread that flushes them
+   public void install( ) {
+      synchronized ( output ) {
+         out = new Buffer( new FileOutputStream( FileDescriptor.out ) );
+         err = new Buffer( new FileOutputStream( FileDescriptor.err ) );
+         last = out;
+      }
+      System.setOut( new PrintStream( out, false ) );
+      System.setErr( new PrintStream( err, false ) );
+      Thread writer = new Thread( this::writeBatches );
+      writer.setDaemon( true );
+      writer.start( );
+      Runtime.getRuntime( ).addShutdownHook( new Thread( this::flush ) );
+   }
+
+   // returns the next line typed, or null if no line is waiting
+   public synchronized String poll( ) {
+      return lines.isEmpty( ) ? null : lines.removeFirst( );
+   }
+
+   // returns true once standard input has ended and every line is taken
+   public synchronized boolean atEnd( ) {
+      return atEnd && lines.isEmpty( );
+   }
+
+   // writes everything still buffered to the real streams
+   public void flush( ) {
+      synchronized ( output ) {
+         if ( out != null ) {
+            out.drain( );
+            err.drain( );
+         }
+         pending = false;
+      }
+   }
+
+   public void run( ) {
+      while ( true ) {
+         String line;
+         try {
+            line = input.readLine( );
+         } catch ( IOException e ) {
+            line = null;
+         }
+         synchronized ( this ) {
+            if ( line == null )
+               atEnd = true;
+            else
+               lines.addLast( line );
+         }
+         // wake a reader; at the end of input, readers wake one another
+         SysLib.console( ); // a console interrupt
+         if ( line == null )
+            return;
+      }
+   }
+
+   // the writer thread: waits for bytes, lets a batch gather, then flushes
+   private void writeBatches( ) {
+      while ( true ) {
+         synchronized ( output ) {
+            while ( pending == false ) {
+               try {
+                  output.wait( );
+               } catch ( InterruptedException e ) {
+               }
+            }
+         }
+         try {
+            Thread.sleep( flushDelay );
+         } catch ( InterruptedException e ) {
+         }
+         flush( );
+      }
+   }
+
+   // the bytes written to one stream and not yet flushed
+   private class Buffer extends OutputStream {
+      private final FileOutputStream target;
+      private final byte[] bytes = new byte[bufferSize];
+      private int count = 0;
+
+      Buffer( FileOutputStream target ) {
+         this.target = target;
+      }
+
+      public void write( int b ) {
+         write( new byte[] { ( byte )b }, 0, 1 );
+      }
+
+      public void write( byte[] b, int offset, int length ) {
+         synchronized ( output ) {
+            if ( last != this ) { // keep the order across the two streams
+               last.drain( );
+               last = this;
+            }
+            while ( length > 0 ) {
+               if ( count == bytes.length )
+                  drain( );
+               int chunk = Math.min( length, bytes.length - count );
+               System.arraycopy( b, offset, bytes, count, chunk );
+               count += chunk;
+               offset += chunk;
+               length -= chunk;
+            }
+            if ( pending == false ) {
+               pending = true;
+               output.notify( );
+            }
+         }
+      }
+
+      // PrintStream flushes after every print; the batch waits instead
+      public void flush( ) {
+      }
+
+      // writes the buffered bytes out; the caller holds output
+      void drain( ) {
+         if ( count == 0 )
+            return;
+         try {
+            target.write( bytes, 0, count );
+         } catch ( IOException e ) {
+         }
+         count = 0;
+      }
+   }
+}
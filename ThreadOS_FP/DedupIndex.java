@@ -0,0 +1,73 @@
+/*
+The index behind block deduplication, turned on for a volume with SysLib.dedup( true ). It maps the SHA-256
+fingerprint of every full block written while dedup was on to the block holding those bytes, so a later write of
+the same bytes can share that block through the superblock's share counts instead of writing a copy.
+The index lives only in memory and is never written to disk: it is built empty each time the volume is mounted, so
+what dedup knows does not survive a reboot. The superblock keeps dedup turned on, and blocks already shared stay
+shared, as their share counts are on disk, but no block written before the mount is found again.
+An entry is dropped as soon as its block may change: when its file writes over it in place, partly or in full, and
+when the block is allocated again after being freed. A full block written is added under its file's inode lock, in
+the same step as the write, and fsck drops every entry once it has repaired anything. A lookup takes the share under
+the index lock, so a block found here cannot be written over in place in the meantime: its owner drops the entry
+first, and only then checks the share count.
+ */
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+class DedupIndex {
+    private final SuperBlock superblock;
+    private final HashMap<ByteBuffer, Integer> blocks = new HashMap<ByteBuffer, Integer>(); // fingerprint to block
+    private final HashMap<Integer, ByteBuffer> fingerprints = new HashMap<Integer, ByteBuffer>(); // and back
+
+    DedupIndex(SuperBlock superblock) {
+        this.superblock = superblock;
+    }
+
+    // returns the fingerprint of the block of bytes at data[offset...]
+    static ByteBuffer fingerprint(byte[] data, int offset) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, SuperBlock.blockSize());
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) { // every Java platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // returns a block holding the bytes with the given fingerprint after taking a reference to it for the caller,
+    // or -1 if there is none or it already has the most references a block can have
+    synchronized int share(ByteBuffer fingerprint) {
+        Integer block = blocks.get(fingerprint);
+        if (block == null || !superblock.share(block)) {
+            return -1;
+        }
+        return block;
+    }
+
+    // records that block now holds the bytes with the given fingerprint
+    synchronized void add(ByteBuffer fingerprint, int block) {
+        forget(block);
+        Integer old = blocks.put(fingerprint, block);
+        if (old != null) { // the newer block takes over the fingerprint
+            fingerprints.remove(old);
+        }
+        fingerprints.put(block, fingerprint);
+    }
+
+    // drops the entry of a block whose bytes may be about to change
+    synchronized void forget(int block) {
+        ByteBuffer fingerprint = fingerprints.remove(block);
+        if (fingerprint != null) {
+            blocks.remove(fingerprint);
+        }
+    }
+
+    // drops every entry, as when the volume is formatted or dedup is turned off
+    synchronized void clear() {
+        blocks.clear();
+        fingerprints.clear();
+    }
+}
@@ -6,39 +6,326 @@ the Directory instance with the file contents. On the other hand, prior to a shu
 the Directory information onto the disk. The methods bytes2directory( ) and directory2bytes will initialize the
 Directory instance with a byte array read from the disk and converts the Directory instance into a byte array that
 will be thereafter written back to the disk.
+Entry i describes inode i. Besides its name, each entry records the inode number of the directory that contains it
+and whether it is a regular file or a directory, so "/a/b/c" is found by walking a -> b -> c from the root entry.
+Inode numbers, the parent of an entry and the chain links included, take four bytes, so a volume may hold more than
+32767 files. After the entries, the "/" file holds a hash table with one chain head per entry: the entries named name inside
+directory dir are chained from head bucket(dir, name) through the link at the end of each entry, and 0 (the root,
+which is in no chain) ends a chain. A directory mounted from disk therefore reads nothing up front; a lookup reads
+the block of its chain head and the blocks of the entries on that chain, and only listing a directory, removing one,
+or checking the whole tree reads every entry.
+Unlike Unix, the entries of every directory live in the one "/" file, where entry i belongs to inode i, so that the
+rest of the file system finds a file's name and parent by its inode number alone. Directories are kept apart in
+memory instead. Each directory has its own name map and its own lock: a lookup reads the maps without locking, and
+making or removing a name locks only the directory that holds it. What the entries share, namely the slots in use,
+the hash chains, the blocks decoded and the blocks dirty, has a separate lock held only while they change. Mounting,
+decoding every block before the first listing, and fsck lock the whole tree, which waits for every operation on a
+single directory to finish. The locks are taken in that order: the tree, then a directory before the directories
+inside it, then the shared table; the path cache has a lock of its own that is taken last.
  */
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 public class Directory {
     private static int maxChars = 30; // max characters of each file name
+    public static final int entrySize = 64; // bytes per entry in the "/" file
+    private static final int maxNameBytes = entrySize - 12; // room left for the name after kind, length, parent, link
+    private static final int dentryCacheSize = 64; // number of resolved paths remembered
+
+    // entry kinds
+    public static final short FILE = 0;
+    public static final short DIRECTORY = 1;
 
-    // Directory entries
+    // Directory entries, changed only with the lock of the directory that holds them and the table lock
     private int fsize[];        // each element stores a different file size.
     private char names[][];    // each element stores a different file name.
+    private int parent[];      // each element stores the iNumber of the containing directory
+    private short kind[];      // each element stores FILE or DIRECTORY
+    private int next[];        // each element stores the next entry on the same hash chain, or 0
+    private int heads[];       // heads[b] stores the first entry on hash chain b, or 0
+
+    // in-memory lookup structures, rebuilt from the entries and never written to disk
+    private AtomicReferenceArray<ConcurrentHashMap<String, Integer>> children; // per directory: name -> iNumber,
+                                               // null for files; changed with the lock of that directory
+    private BitSet used;                       // bit i is set when entry i is in use
+    private final LinkedHashMap<String, Integer> dentries; // LRU cache of resolved paths -> iNumber, its own lock
+    private long dentryHits = 0, dentryMisses = 0; // lookups the path cache answered, and those it did not
+    private long removals = 0;                 // entries removed; a path resolved across a removal is not cached
+    private BitSet dirty;                      // bit b is set when block b of the "/" file changed since the last sync
+    private BitSet loaded;                     // bit b is set when block b of the "/" file has been decoded
+    private volatile boolean allLoaded;        // set once every block is decoded and the name maps are complete
+    private Inode root;                        // the inode of the "/" file the blocks not yet decoded are read from
+
+    // locks
+    private final ReentrantReadWriteLock tree = new ReentrantReadWriteLock(); // shared by single directories
+    private final ReentrantLock[] locks;       // locks[i] guards the names inside directory i
+    private final Object table = new Object(); // guards used, the hash chains, loaded, dirty and the entries' fields
 
     public Directory( int maxInumber ) { // directory constructor
         fsize = new int[maxInumber];     // maxInumber = max files
         for ( int i = 0; i < maxInumber; i++ )
             fsize[i] = 0;                 // all file size initialized to 0
         names = new char[maxInumber][maxChars];
+        parent = new int[maxInumber];
+        kind = new short[maxInumber];
+        next = new int[maxInumber];
+        heads = new int[maxInumber];
+        locks = new ReentrantLock[maxInumber];
+        for (int i = 0; i < maxInumber; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        dentries = new LinkedHashMap<String, Integer>(dentryCacheSize, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > dentryCacheSize;
+            }
+        };
         String root = "/";                // entry(inode) 0 is "/"
         fsize[0] = root.length( );        // fsize[0] is the size of "/".
         root.getChars( 0, fsize[0], names[0], 0 ); // names[0] includes "/"
+        kind[0] = DIRECTORY;
+        rebuildIndex();
+        // nothing has been written yet, so every entry must go to disk on the first sync
+        int blocks = (size() + SuperBlock.blockSize() - 1) / SuperBlock.blockSize();
+        dirty = new BitSet(blocks);
+        dirty.set(0, blocks);
+        loaded = new BitSet(blocks);
+        loaded.set(0, blocks);
+        allLoaded = true;
+    }
+
+    // starts from the "/" file on disk, whose inode is given, without reading any of it yet; the file must have been
+    // written in the current layout, that is, be at least size( ) bytes long
+    public void mount(Inode rootInode) {
+        tree.writeLock().lock();
+        try {
+            synchronized (table) {
+                root = rootInode;
+                loaded.clear();
+                dirty.clear();
+                allLoaded = false;
+            }
+        } finally {
+            tree.writeLock().unlock();
+        }
+    }
+
+    // decodes block b of the "/" file unless it already has been; returns true if it was read now
+    // the caller holds the table lock
+    private boolean load(int b) {
+        if (loaded.get(b)) {
+            return false;
+        }
+        loaded.set(b);
+        byte[] data = new byte[SuperBlock.blockSize()];
+        int block = root.findBlockNumber(b * SuperBlock.blockSize());
+        if (block != -1) {
+            SuperBlock.readBlock(block, data);
+        }
+        int base = b * SuperBlock.blockSize();
+        for (int i = base / entrySize; i < fsize.length && i * entrySize < base + SuperBlock.blockSize(); i++) {
+            decode(data, i * entrySize - base, i);
+            if (i == 0) {
+                kind[0] = DIRECTORY;
+                parent[0] = 0;
+            }
+            // the entry is only found through its chain until every block is decoded and the name maps are rebuilt,
+            // as filling the map of its directory here would need that directory's lock
+            if (fsize[i] > 0) {
+                used.set(i);
+                if (kind[i] == DIRECTORY && children.get(i) == null) {
+                    children.set(i, new ConcurrentHashMap<String, Integer>());
+                }
+            }
+        }
+        int tables = fsize.length * entrySize;
+        for (int h = Math.max(0, (base - tables) / 4); h < heads.length && tables + h * 4 < base + SuperBlock.blockSize(); h++) {
+            heads[h] = SysLib.bytes2int(data, tables + h * 4 - base);
+        }
+        return true;
+    }
+
+    // decodes entry i out of data[offset...]
+    private void decode(byte[] data, int offset, int i) {
+        kind[i] = SysLib.bytes2short(data, offset);
+        fsize[i] = Math.max(0, Math.min(SysLib.bytes2short(data, offset + 2), maxChars));
+        parent[i] = SysLib.bytes2int(data, offset + 4);
+        // getting the filename
+        String name = new String(data, offset + 8, maxNameBytes);
+        fsize[i] = Math.min(fsize[i], name.length());
+        name.getChars(0, fsize[i], names[i], 0);
+        next[i] = SysLib.bytes2int(data, offset + entrySize - 4);
+    }
+
+    // decodes every block not yet decoded and completes the name maps, locking the whole tree to do so the first
+    // time; the caller holds no lock of this directory, unless it holds the tree locked already
+    private void loadAll() {
+        if (allLoaded) {
+            return;
+        }
+        tree.writeLock().lock();
+        try {
+            if (allLoaded) {
+                return;
+            }
+            synchronized (table) {
+                for (int b = loaded.nextClearBit(0); b * SuperBlock.blockSize() < size(); b = loaded.nextClearBit(b + 1)) {
+                    load(b);
+                }
+                rebuildIndex(); // the cached paths are still right
+                allLoaded = true;
+            }
+        } finally {
+            tree.writeLock().unlock();
+        }
+    }
+
+    // decodes the block holding entry i
+    private void loadEntry(int i) {
+        load(i * entrySize / SuperBlock.blockSize());
+    }
+
+    // decodes the block holding chain head h
+    private void loadHead(int h) {
+        load((fsize.length * entrySize + h * 4) / SuperBlock.blockSize());
+    }
+
+    // returns the hash chain for the name inside directory dir
+    private int bucket(int dir, String name) {
+        return Math.floorMod(name.hashCode() * 31 + dir, heads.length);
+    }
+
+    // returns the entry named name inside directory dir, or -1 if there is none
+    // the caller holds the tree lock, shared or not
+    private int lookup(int dir, String name) {
+        ConcurrentHashMap<String, Integer> inside = children.get(dir);
+        Integer child = (inside != null) ? inside.get(name) : null;
+        if (child != null || allLoaded) {
+            return (child != null) ? child : -1;
+        }
+        synchronized (table) {
+            int h = bucket(dir, name);
+            loadHead(h);
+            // a chain is never longer than the number of entries, so a damaged link cannot loop forever
+            int steps = 0;
+            for (int i = heads[h]; i > 0 && i < fsize.length && steps++ < fsize.length; i = next[i]) {
+                loadEntry(i);
+                if (used.get(i) && parent[i] == dir && name.equals(nameOf(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // returns the name of entry i; the caller holds the table lock
+    private String nameOf(int i) {
+        return new String(names[i], 0, fsize[i]);
+    }
+
+    // adds entry i to the front of its hash chain; the caller holds the table lock, as for the methods up to
+    // rebuildIndex( )
+    private void link(int i) {
+        int h = bucket(parent[i], new String(names[i], 0, fsize[i]));
+        loadHead(h);
+        next[i] = heads[h];
+        heads[h] = i;
+        markEntry(i);
+        markHead(h);
+    }
+
+    // takes entry i out of its hash chain
+    private void unlinkChain(int i) {
+        int h = bucket(parent[i], new String(names[i], 0, fsize[i]));
+        loadHead(h);
+        if (heads[h] == i) {
+            heads[h] = next[i];
+            markHead(h);
+        } else {
+            int steps = 0;
+            for (int p = heads[h]; p > 0 && p < fsize.length && steps++ < fsize.length; p = next[p]) {
+                loadEntry(p);
+                if (next[p] == i) {
+                    next[p] = next[i];
+                    markEntry(p);
+                    break;
+                }
+            }
+        }
+        next[i] = 0;
+        markEntry(i);
+    }
+
+    // rebuilds every hash chain from the entries in use; used when they cannot be trusted or were never written
+    private void rebuildChains() {
+        Arrays.fill(heads, 0);
+        Arrays.fill(next, 0);
+        for (int i = used.nextSetBit(1); i >= 0; i = used.nextSetBit(i + 1)) {
+            link(i);
+        }
+    }
+
+    private void markEntry(int i) {
+        dirty.set(i * entrySize / SuperBlock.blockSize());
+    }
+
+    private void markHead(int h) {
+        dirty.set((fsize.length * entrySize + h * 4) / SuperBlock.blockSize());
+    }
+
+    // rebuilds the per-directory name maps and the free-slot bitmap from the entries; the caller holds the tree
+    // locked, or is the constructor
+    private void rebuildIndex() {
+        children = new AtomicReferenceArray<ConcurrentHashMap<String, Integer>>(fsize.length);
+        used = new BitSet(fsize.length);
+        for (int i = 0; i < fsize.length; i++) {
+            if (fsize[i] > 0) {
+                used.set(i);
+                if (kind[i] == DIRECTORY) {
+                    children.set(i, new ConcurrentHashMap<String, Integer>());
+                }
+            }
+        }
+        for (int i = 1; i < fsize.length; i++) {
+            // entries whose parent is gone are left unreachable rather than guessed at
+            if (fsize[i] > 0 && parent[i] >= 0 && parent[i] < fsize.length && children.get(parent[i]) != null) {
+                children.get(parent[i]).put(new String(names[i], 0, fsize[i]), i);
+            }
+        }
     }
 
     // assumes data[] received directory information from disk
     // initializes the Directory instance with this data[]
+    // the hash chains are rebuilt, since data may come from a "/" file written before they existed
     public void bytes2directory(byte data[]) {
-        int offset = 0;
-        // getting the filesizes from the data
-        for (int i = 0; i < fsize.length; offset += 4) {
-            fsize[i] = SysLib.bytes2int(data, offset);
-            i++;
-        }
-        // getting the filenames
-        for (int i = 0; i < names.length; offset += maxChars * 2) {
-            String name = new String(data, offset, maxChars * 2);
-            name.getChars(0, fsize[i], names[i], 0);
-            i++;
+        tree.writeLock().lock();
+        try {
+            synchronized (table) {
+                for (int i = 0; i < fsize.length && (i + 1) * entrySize <= data.length; i++) {
+                    decode(data, i * entrySize, i);
+                }
+                // entry 0 is always the root directory
+                kind[0] = DIRECTORY;
+                parent[0] = 0;
+                rebuildIndex();
+                loaded.set(0, (size() + SuperBlock.blockSize() - 1) / SuperBlock.blockSize());
+                allLoaded = true;
+                rebuildChains();
+                dirty.clear();
+            }
+            synchronized (dentries) {
+                dentries.clear();
+                removals++;
+            }
+        } finally {
+            tree.writeLock().unlock();
         }
     }
 
@@ -47,58 +334,384 @@ public class Directory {
     // note: only meaningfull directory information should be converted
     // into bytes.
     public byte[] directory2bytes() {
-        // create the new
-        byte[] newData = new byte[(4 * fsize.length) + (fsize.length * maxChars * 2)];
-        int offset = 0;
-        for (int i = 0; i < fsize.length; offset += 4) {
-            SysLib.int2bytes(fsize[i], newData, offset);
-            i++;
+        return directory2bytes(0, size());
+    }
+
+    // converts the entries and chain heads found in bytes [start, start + length) of the "/" file into a byte array
+    public byte[] directory2bytes(int start, int length) {
+        synchronized (table) {
+            return encode(start, length);
         }
+    }
 
-        for (int i = 0; i < names.length; offset += maxChars * 2) {
+    // encodes bytes [start, start + length) of the "/" file; the caller holds the table lock
+    private byte[] encode(int start, int length) {
+        for (int b = start / SuperBlock.blockSize(); b * SuperBlock.blockSize() < Math.min(start + length, size()); b++) {
+            load(b); // every byte in the range must be known before any is written back
+        }
+        // create the new
+        byte[] newData = new byte[length];
+        for (int i = start / entrySize; i < fsize.length && i * entrySize < start + length; i++) {
+            int offset = i * entrySize - start;
+            SysLib.short2bytes(kind[i], newData, offset);
+            SysLib.short2bytes((short) fsize[i], newData, offset + 2);
+            SysLib.int2bytes(parent[i], newData, offset + 4);
             // get the file name
             String name = new String(names[i], 0, fsize[i]);
             byte[] str_bytes = name.getBytes(); // converting the filename string to bytes
             // write to the directory array
-            System.arraycopy(str_bytes, 0, newData, offset, str_bytes.length);
-            i++;
+            System.arraycopy(str_bytes, 0, newData, offset + 8, str_bytes.length);
+            SysLib.int2bytes(next[i], newData, offset + entrySize - 4);
+        }
+        int tables = fsize.length * entrySize;
+        for (int h = Math.max(0, (start - tables) / 4); h < heads.length && tables + h * 4 < start + length; h++) {
+            SysLib.int2bytes(heads[h], newData, tables + h * 4 - start);
         }
         return newData;
     }
 
+    // returns the size in bytes of the "/" file that holds every entry and the chain heads after them
+    public int size() {
+        return fsize.length * entrySize + heads.length * 4;
+    }
+
+    // returns, in ascending order, the blocks of the "/" file changed since the last call, and marks them clean
+    public int[] takeDirtyBlocks() {
+        synchronized (table) {
+            int[] blocks = new int[dirty.cardinality()];
+            int count = 0;
+            for (int b = dirty.nextSetBit(0); b >= 0; b = dirty.nextSetBit(b + 1)) {
+                blocks[count++] = b;
+            }
+            dirty.clear();
+            return blocks;
+        }
+    }
+
+    // locks the directory that holds the last component of path, or the root if there is no such directory, so that
+    // the caller can look the name up and create it as one step. Each call must be followed by unlock( ) with the
+    // lock returned; while any is held, the tree cannot be locked as a whole.
+    public ReentrantLock lock(String path) {
+        tree.readLock().lock();
+        int slash = path.lastIndexOf('/');
+        int dir = (slash <= 0) ? 0 : namei(path.substring(0, slash));
+        ReentrantLock lock = locks[isDirectory(dir) ? dir : 0];
+        lock.lock();
+        return lock;
+    }
+
+    // releases a lock taken by lock( )
+    public void unlock(ReentrantLock lock) {
+        lock.unlock();
+        tree.readLock().unlock();
+    }
+
+    // locks the whole tree, waiting for every operation on a single directory to finish first
+    public void lockTree() {
+        tree.writeLock().lock();
+    }
+
+    // releases the tree locked by lockTree( )
+    public void unlockTree() {
+        tree.writeLock().unlock();
+    }
+
     // allocate the given file
-    public short ialloc(String filename) {
-        for (int i = 1; i < fsize.length; i++) {
-            if (fsize[i] == 0) {
-                fsize[i] = Math.min(filename.length(), maxChars);
-                filename.getChars(0, fsize[i], names[i], 0);
-                return (short)i;
+    public int ialloc(String filename) {
+        return allocate(filename, FILE);
+    }
+
+    // allocate the given directory
+    public int mkdir(String path) {
+        return allocate(path, DIRECTORY);
+    }
+
+    // creates an entry of the given kind for the last component of path inside its parent directory
+    private int allocate(String path, short entryKind) {
+        int slash = path.lastIndexOf('/');
+        String name = path.substring(slash + 1);
+        tree.readLock().lock();
+        try {
+            int dir = (slash <= 0) ? 0 : namei(path.substring(0, slash));
+            if (name.length() == 0 || dir < 0) {
+                return -1;
+            }
+            // the stored name may not be longer than maxChars, or than the room on disk
+            int length = Math.min(name.length(), maxChars);
+            while (name.substring(0, length).getBytes().length > maxNameBytes) {
+                length--;
             }
+            name = name.substring(0, length);
+            locks[dir].lock();
+            try {
+                // dir may have been removed, or be a file, and name made meanwhile
+                if (children.get(dir) == null || lookup(dir, name) >= 0) {
+                    return -1;
+                }
+                int i;
+                synchronized (table) {
+                    // the first clear bit past the root entry is the first free slot, once the block holding it is
+                    // decoded
+                    i = used.nextClearBit(1);
+                    while (i < fsize.length && load(i * entrySize / SuperBlock.blockSize())) {
+                        i = used.nextClearBit(i);
+                    }
+                    if (i >= fsize.length) {
+                        return -1;
+                    }
+                    fsize[i] = length;
+                    name.getChars(0, length, names[i], 0);
+                    parent[i] = dir;
+                    kind[i] = entryKind;
+                    used.set(i);
+                    link(i);
+                    if (entryKind == DIRECTORY) {
+                        children.set(i, new ConcurrentHashMap<String, Integer>());
+                    }
+                }
+                children.get(dir).put(name, i);
+                return i;
+            } finally {
+                locks[dir].unlock();
+            }
+        } finally {
+            tree.readLock().unlock();
         }
-        return -1;
     }
 
     // free up the given block
-    public boolean ifree(short iNumber) {
-        if (fsize[iNumber] > 0) {
+    public boolean ifree(int iNumber) {
+        if (iNumber <= 0 || iNumber >= fsize.length) {
+            return false;
+        }
+        tree.readLock().lock();
+        try {
+            int dir;
+            synchronized (table) {
+                dir = parent[iNumber];
+            }
+            if (dir < 0 || dir >= fsize.length) {
+                return false;
+            }
+            locks[dir].lock();
+            try {
+                synchronized (table) { // it may have been removed before dir was locked
+                    if (fsize[iNumber] == 0 || kind[iNumber] != FILE || parent[iNumber] != dir) {
+                        return false;
+                    }
+                }
+                release(iNumber);
+                return true;
+            } finally {
+                locks[dir].unlock();
+            }
+        } finally {
+            tree.readLock().unlock();
+        }
+    }
+
+    // removes the given directory, which must be empty
+    public boolean rmdir(String path) {
+        loadAll(); // only the complete name maps tell whether the directory is empty
+        tree.readLock().lock();
+        try {
+            int iNumber = namei(path);
+            if (iNumber <= 0) {
+                return false;
+            }
+            int dir;
+            String name;
+            synchronized (table) {
+                dir = parent[iNumber];
+                name = nameOf(iNumber);
+            }
+            // the parent, then the directory itself, so that nothing is made inside it while it is removed
+            locks[dir].lock();
+            try {
+                locks[iNumber].lock();
+                try {
+                    ConcurrentHashMap<String, Integer> siblings = children.get(dir);
+                    ConcurrentHashMap<String, Integer> inside = children.get(iNumber);
+                    if (siblings == null || !Integer.valueOf(iNumber).equals(siblings.get(name)) || inside == null
+                            || !inside.isEmpty()) {
+                        return false;
+                    }
+                    release(iNumber);
+                    return true;
+                } finally {
+                    locks[iNumber].unlock();
+                }
+            } finally {
+                locks[dir].unlock();
+            }
+        } finally {
+            tree.readLock().unlock();
+        }
+    }
+
+    // unlinks entry iNumber from its parent and forgets every cached path that led to it; the caller holds the lock
+    // of its parent, and its own if it is a directory
+    private void release(int iNumber) {
+        ConcurrentHashMap<String, Integer> siblings;
+        synchronized (table) {
+            siblings = children.get(parent[iNumber]);
+            if (siblings != null) {
+                siblings.remove(nameOf(iNumber), iNumber);
+            }
+            unlinkChain(iNumber);
+            children.set(iNumber, null);
+            used.clear(iNumber);
+            markEntry(iNumber);
             fsize[iNumber] = 0;
-            return true;
-        } else {
+            kind[iNumber] = FILE;
+        }
+        synchronized (dentries) {
+            Iterator<Integer> cached = dentries.values().iterator();
+            while (cached.hasNext()) {
+                if (cached.next() == iNumber) {
+                    cached.remove();
+                }
+            }
+            removals++;
+        }
+    }
+
+    // returns the names inside the given directory, or null if path is not a directory
+    public String[] readdir(String path) {
+        loadAll();
+        tree.readLock().lock();
+        try {
+            int iNumber = namei(path);
+            ConcurrentHashMap<String, Integer> inside = (iNumber < 0) ? null : children.get(iNumber);
+            if (inside == null) {
+                return null;
+            }
+            return inside.keySet().toArray(new String[0]);
+        } finally {
+            tree.readLock().unlock();
+        }
+    }
+
+    // returns true if the given entry is in use and can be reached from the root, one parent at a time
+    public boolean isLinked(int iNumber) {
+        loadAll();
+        tree.writeLock().lock();
+        try {
+            for (int steps = 0; steps < fsize.length; steps++) {
+                if (iNumber == 0) {
+                    return true;
+                }
+                if (iNumber < 0 || iNumber >= fsize.length || !used.get(iNumber)) {
+                    return false;
+                }
+                ConcurrentHashMap<String, Integer> siblings = children.get(parent[iNumber]);
+                if (siblings == null || !Integer.valueOf(iNumber).equals(siblings.get(nameOf(iNumber)))) {
+                    return false;
+                }
+                iNumber = parent[iNumber];
+            }
+            return false; // the parents form a loop
+        } finally {
+            tree.writeLock().unlock();
+        }
+    }
+
+    // returns the entries that are in use but cannot be reached from the root
+    public int[] unlinked() {
+        loadAll();
+        tree.writeLock().lock();
+        try {
+            int[] found = new int[used.cardinality()];
+            int count = 0;
+            for (int i = used.nextSetBit(1); i >= 0; i = used.nextSetBit(i + 1)) {
+                if (!isLinked(i)) {
+                    found[count++] = i;
+                }
+            }
+            return Arrays.copyOf(found, count);
+        } finally {
+            tree.writeLock().unlock();
+        }
+    }
+
+    // removes an entry of either kind without looking at its contents; used to repair the directory
+    public void unlink(int iNumber) {
+        tree.writeLock().lock();
+        try {
+            if (iNumber > 0 && iNumber < fsize.length && used.get(iNumber)) {
+                release(iNumber);
+            }
+        } finally {
+            tree.writeLock().unlock();
+        }
+    }
+
+    // returns true if the given entry is a directory
+    public boolean isDirectory(int iNumber) {
+        if (iNumber < 0 || iNumber >= fsize.length) {
             return false;
         }
+        synchronized (table) {
+            loadEntry(iNumber);
+            return children.get(iNumber) != null;
+        }
+    }
+
+    // returns the path cache's hits, misses and the number of paths it holds
+    public long[] dentryCounts() {
+        synchronized (dentries) {
+            return new long[]{dentryHits, dentryMisses, dentries.size()};
+        }
     }
 
     // names the given file
-    public short namei(String filename) {
-        // loop over fsize array
-        for (int i = 0; i < fsize.length; i++) {
-            String name = new String(names[i], 0, fsize[i]);
-            // make sure the size matches and strings match
-            if (fsize[i] == filename.length() && filename.equals(name)) {
-                // return the iNumber
-                return (short)i;
+    public int namei(String filename) {
+        if (filename.equals("/")) {
+            return 0;
+        }
+        long seen;
+        synchronized (dentries) {
+            Integer cached = dentries.get(filename);
+            if (Trace.enabled) {
+                Trace.instant("cache", (cached != null) ? "dentry hit" : "dentry miss", null, 0);
+            }
+            if (cached != null) {
+                dentryHits++;
+                return cached;
+            }
+            dentryMisses++;
+            seen = removals;
+        }
+        // walk the path one component at a time starting from the root, reading the name maps without locking them
+        int iNumber = 0;
+        int start = 0;
+        tree.readLock().lock();
+        try {
+            while (start < filename.length()) {
+                int end = filename.indexOf('/', start);
+                if (end < 0) {
+                    end = filename.length();
+                }
+                if (end > start) { // skip empty components such as a leading '/'
+                    if (children.get(iNumber) == null) {
+                        return -1;
+                    }
+                    // names longer than maxChars are never stored in full, so they never match
+                    iNumber = lookup(iNumber, filename.substring(start, end));
+                    if (iNumber < 0) {
+                        return -1;
+                    }
+                }
+                start = end + 1;
+            }
+        } finally {
+            tree.readLock().unlock();
+        }
+        synchronized (dentries) {
+            if (removals == seen) { // otherwise an entry on the path may be gone
+                dentries.put(filename, iNumber);
             }
         }
-        return -1;
+        return iNumber;
     }
 }
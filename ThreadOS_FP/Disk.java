@@ -1,49 +1,96 @@
 import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
 
 public class Disk extends Thread {
    public static final int blockSize = 512;
    private final int trackSize = 10;
    private final int transferTime = 20;
    private final int delayPerTrack = 1;
+   private final int maxSeekTracks = 100; // a full stroke, whatever the disk size
    private int diskSize;
 
-   private byte data[];
+   // The DISK file holds the disk contents, and a block is read from it
+   // each time it is asked for. Only the blocks written since the last sync
+   // are kept in memory, so booting does not wait for the whole image, and
+   // a disk of millions of blocks needs memory only for what changes. A sync
+   // writes those blocks back and lets them go.
+   private RandomAccessFile image;  // the DISK file, or null if unusable
+   private long stored;             // the blocks the DISK file holds
+   private byte[][] written;        // blocks written since the last sync
+   private BitSet dirty;            // bit b is set when written[b] is held
 
    private int command;
    private final int IDLE = 0;
    private final int READ = 1;
    private final int WRITE = 2;
    private final int SYNC = 3;
+   private final String[] commandNames = { "idle", "read", "write", "sync" };
    private boolean readyBuffer;
 
    private byte[] buffer;
    private int currentBlockId;
    private int targetBlockId;
 
+   // counters shown in /proc/disk, written only by the disk thread
+   private volatile long reads, writes, syncs;
+   private volatile long blocksRead, blocksWritten;
+   private volatile long seekTracks;   // tracks crossed by every seek
+   private volatile long busyMillis;   // time spent seeking and transferring
+   private volatile int dirtyBlocks;   // blocks held in written[]
+
    public Disk( int totalBlocks ) {
       diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-      data = new byte[ diskSize * blockSize ];
+      written = new byte[ diskSize ][];
       command = IDLE;
       readyBuffer = false;
       buffer = null;
       currentBlockId = 0;
       targetBlockId = 0;
+      dirty = new BitSet( diskSize );
+      try {
+         image = new RandomAccessFile( "DISK", "rw" );
+         if ( image.length( ) == 0 )
+            SysLib.cerr( "threadOS: DISK created\n" );
+         // blocks past the end of the file hold zeros
+         stored = Math.min( image.length( ) / blockSize, diskSize );
+      } catch ( IOException e ) {
+         SysLib.cerr( e.toString( ) + "\n" );
+         image = null;
+      }
+   }
+
+   // copies block blockId into buffer[offset...], from memory if it was
+   // written since the last sync, otherwise from the DISK file
+   private void load( int blockId, byte buffer[], int offset ) {
+      if ( written[blockId] != null ) {
+         System.arraycopy( written[blockId], 0, buffer, offset, blockSize );
+         return;
+      }
+      Arrays.fill( buffer, offset, offset + blockSize, ( byte )0 );
+      if ( image == null || blockId >= stored )
+         return;
       try {
-         FileInputStream ifstream = new FileInputStream( "DISK" );
-         int readableSize = ( ifstream.available( ) < data.length ) ?
-            ifstream.available( ) : data.length; 
-         ifstream.read( data, 0, readableSize );
-         ifstream.close( );
-      } catch ( FileNotFoundException e ) {
-         SysLib.cerr( "threadOS: DISK created\n" );
+         image.seek( ( long )blockId * blockSize );
+         image.readFully( buffer, offset, blockSize );
       } catch ( IOException e ) {
          SysLib.cerr( e.toString( ) + "\n" );
       }
    }
 
+   // returns true if a transfer of buffer, which may span several blocks
+   // starting at blockId, lies inside the disk
+   private boolean inRange( int blockId, byte buffer[] ) {
+      int count = buffer.length / blockSize;
+      return blockId >= 0 && count > 0 && buffer.length % blockSize == 0
+         && ( long )blockId + count <= diskSize;
+   }
+
+   // a buffer of several blocks reads that many consecutive blocks in one
+   // request, paying for a single seek
    public synchronized boolean read( int blockId, byte buffer[] ) {
 
-      if ( blockId < 0 || blockId > diskSize ) {
+      if ( !inRange( blockId, buffer ) ) {
          SysLib.cerr( "threadOS: a wrong blockId for read\n" );
          return false;
       }
@@ -58,9 +105,11 @@ public class Disk extends Thread {
          return false;
    }
 
+   // a buffer of several blocks writes that many consecutive blocks in one
+   // request, paying for a single seek
    public synchronized boolean write( int blockId, byte buffer[] ) {
 
-      if ( blockId < 0 || blockId > diskSize ) {
+      if ( !inRange( blockId, buffer ) ) {
          SysLib.cerr( "threadOS: a wrong blockId for write\n" );
          return false;
       }
@@ -101,6 +150,25 @@ public class Disk extends Thread {
          return false;
    }
 
+   // returns true while a command is being served or its buffer waits to
+   // be collected
+   public synchronized boolean busy( ) {
+      return command != IDLE || readyBuffer;
+   }
+
+   // describes the disk and what it has done since boot, one counter a line
+   public String report( ) {
+      return String.format( "blocks          %d\n" + "blockSize       %d\n"
+                            + "reads           %d\n" + "writes          %d\n"
+                            + "syncs           %d\n" + "blocksRead      %d\n"
+                            + "blocksWritten   %d\n" + "seekTracks      %d\n"
+                            + "busyMillis      %d\n" + "headBlock       %d\n"
+                            + "dirtyBlocks     %d\n",
+                            diskSize, blockSize, reads, writes, syncs,
+                            blocksRead, blocksWritten, seekTracks, busyMillis,
+                            currentBlockId, dirtyBlocks );
+   }
+
    private synchronized void waitCommand( ) {
       while ( command == IDLE ) {
          try {
@@ -113,14 +181,27 @@ public class Disk extends Thread {
    }
 
    private void seek( ) {
-      int seekTime = transferTime + delayPerTrack 
-         * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+      // the head seeks to the first block, then moves on one track at a time
+      // for a transfer of several blocks; every block still costs its own
+      // transfer time, so a request of several blocks saves only the seeks
+      int count = ( command == SYNC ) ? 1 : buffer.length / blockSize;
+      int lastBlockId = targetBlockId + count - 1;
+      int tracks = Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+      int seekTime = transferTime * count
+         + delayPerTrack * Math.min( maxSeekTracks, tracks )
+         + delayPerTrack * ( lastBlockId/trackSize - targetBlockId/trackSize );
+      if ( Trace.enabled )
+         Trace.begin( "disk", "seek", "tracks", tracks );
       try {
          Thread.sleep( seekTime );
       } catch( InterruptedException e ) {
          SysLib.cerr( e.toString( ) + "\n" );
       }
-      currentBlockId = targetBlockId;
+      if ( Trace.enabled )
+         Trace.end( "disk", "seek" );
+      currentBlockId = lastBlockId;
+      seekTracks += tracks;
+      busyMillis += seekTime;
    }
 
    private synchronized void finishCommand( ) {
@@ -133,32 +214,59 @@ public class Disk extends Thread {
 
       while ( true ) {
          waitCommand( );
+         // the command's name on the trace, fixed before it can finish
+         String traced = commandNames[command];
+         if ( Trace.enabled )
+            Trace.begin( "disk", traced, "block", targetBlockId );
          seek( );
          // System.out.println( "Disk: command = " + command );
          switch( command ) {
             case READ:
-               System.arraycopy( data, targetBlockId * blockSize, 
-                     buffer, 0, 
-                     blockSize );
+               for ( int i = 0; i < buffer.length / blockSize; i++ )
+                  load( targetBlockId + i, buffer, i * blockSize );
+               reads++;
+               blocksRead += buffer.length / blockSize;
                break;
             case WRITE:
-               System.arraycopy( buffer, 0, 
-                     data, targetBlockId * blockSize, 
-                     blockSize );
+               for ( int i = 0; i < buffer.length / blockSize; i++ ) {
+                  int b = targetBlockId + i;
+                  if ( written[b] == null )
+                     written[b] = new byte[blockSize];
+                  System.arraycopy( buffer, i * blockSize,
+                        written[b], 0, blockSize );
+                  if ( dirty.get( b ) == false )
+                     dirtyBlocks++;
+                  dirty.set( b );
+               }
+               writes++;
+               blocksWritten += buffer.length / blockSize;
                break;
             case SYNC:
                try {
-                  FileOutputStream ofstream = new FileOutputStream( "DISK" );
-                  ofstream.write( data );
-                  ofstream.close( );
+                  if ( image == null )
+                     image = new RandomAccessFile( "DISK", "rw" );
+                  // the file grows with zeros to the full size of the disk
+                  image.setLength( ( long )diskSize * blockSize );
+                  stored = diskSize;
+                  for ( int b = dirty.nextSetBit( 0 ); b >= 0;
+                        b = dirty.nextSetBit( b + 1 ) ) {
+                     image.seek( ( long )b * blockSize );
+                     image.write( written[b], 0, blockSize );
+                     written[b] = null;
+                  }
+                  dirty.clear( );
+                  dirtyBlocks = 0;
                } catch ( FileNotFoundException e ) {
                   SysLib.cerr( e.toString( ) );
                } catch ( IOException e ) {
                   SysLib.cerr( e.toString( ) );
                }
                // SysLib.cerr( "threadOS: DISK synchronized\n" );
+               syncs++;
                break;
          }
+         if ( Trace.enabled )
+            Trace.end( "disk", traced );
          finishCommand( );
       }
    }
@@ -3,34 +3,63 @@ Derek Willms, Brian Quigley, Robert Brandenburg
 a Unix-like file system on our ThreadOS. User thread programs will be now relieved from painful direct access to
 disk blocks and given a vision of stream-oriented files.
  */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 public class FileSystem {
     private SuperBlock superblock; // superblock variable
     private Directory directory; // directory variable
     private FileTable filetable; // filetable variable
+    private BlockReclaimer reclaimer; // frees the blocks of deleted and emptied files in the background
+    private DedupIndex dedupIndex; // finds blocks already holding the bytes of a full block being written
+    private final ProcFs proc = new ProcFs(); // the virtual files under /proc
+    private static final String snapshotRoot = "/.snapshots"; // the directory that holds every snapshot
 
     // constructor
     public FileSystem(int diskBlocks) {
         superblock = new SuperBlock(diskBlocks);
         directory = new Directory(superblock.totalInodes);
         filetable = new FileTable(directory);
+        reclaimer = new BlockReclaimer(superblock);
+        reclaimer.start();
+        dedupIndex = new DedupIndex(superblock);
+        proc.register("fs", this::describe);
+        proc.register("cache", this::describeCaches);
 
-        // read the "/" file from disk
-        FileTableEntry fte = open("/", "r");
-        int dirSize = fsize(fte);
-        if (dirSize > 0) {
-            byte[] dirData = new byte[dirSize];
-            read(fte, dirData);
-            directory.bytes2directory(dirData);
+        // only the inode of the "/" file is read here; its entries are read as lookups reach them
+        Inode root = new Inode(0);
+        if (root.length >= directory.size()) {
+            directory.mount(root);
         }
-        close(fte);
     }
 
     public void sync() {
-        // open root directory
-        FileTableEntry fte = open("/", "w");
-        byte[] data = directory.directory2bytes();
-        // write and then close
-        write(fte, data);
+        // the last chunk written to each open compressed file is still only in its cache
+        for (FileTableEntry writer : filetable.writers()) {
+            synchronized (writer.inode) {
+                if (writer.inode.chunks != null && writer.inode.chunks.dirtyChunk() != -1 && storeChunk(writer) == 0) {
+                    writer.inode.toDisk(writer.iNumber);
+                }
+            }
+        }
+        // the bitmap written below must include the blocks still waiting to be freed
+        reclaimer.drain();
+        // open root directory without releasing its blocks
+        FileTableEntry fte = open("/", "w+");
+        int[] dirtyBlocks = directory.takeDirtyBlocks();
+        if (fsize(fte) < directory.size()) {
+            // the directory has never been written in full
+            write(fte, directory.directory2bytes());
+        } else {
+            // rewrite in place only the blocks holding entries that changed
+            for (int i = 0; i < dirtyBlocks.length; i++) {
+                int offset = dirtyBlocks[i] * SuperBlock.blockSize();
+                seek(fte, offset, 0);
+                write(fte, directory.directory2bytes(offset, Math.min(SuperBlock.blockSize(), directory.size() - offset)));
+            }
+        }
         close(fte);
         superblock.sync();
     }
@@ -38,17 +67,100 @@ public class FileSystem {
 
     // formats the disk, (i.e., Disk.java's data contents).
     // The parameter files specifies the maximum number of files to be created,
-    // (i.e., the number of inodes to be allocated) in your file system. The return value is 0 on success, otherwise -1.
-    public boolean format(int files) {
+    // (i.e., the number of inodes to be allocated) in your file system, and blockSize the bytes in each of its
+    // blocks, a power of two from Disk.blockSize to SuperBlock.maxBlockSize. The return value is 0 on success,
+    // otherwise -1.
+    public boolean format(int files, int blockSize) {
+        if (files <= 0 || !SuperBlock.isBlockSize(blockSize)) {
+            return false;
+        }
         while (!filetable.fempty()) { // wait for the file table to empty
         }
+        reclaimer.drain(); // nothing queued may be freed into the new bitmap
         // format and then update directory / file table
-        superblock.format(files);
+        superblock.format(files, blockSize);
+        dedupIndex.clear();
         directory = new Directory(superblock.totalInodes);
         filetable = new FileTable(directory);
         return true;
     }
 
+    // returns the number of bytes in each block of the volume
+    public int blockSize() {
+        return SuperBlock.blockSize();
+    }
+
+    // returns the virtual files under /proc, for other parts of the system to add theirs
+    public ProcFs proc() {
+        return proc;
+    }
+
+    // the text of /proc/fs: the volume's size, what is free, and what is open, all from memory
+    private String describe() {
+        int[] open = filetable.openCounts();
+        return String.format("blockSize       %d\n" + "totalBlocks     %d\n" + "freeBlocks      %d\n"
+                        + "totalInodes     %d\n" + "openEntries     %d\n" + "openInodes      %d\n"
+                        + "dedup           %s\n" + "pendingFrees    %d\n",
+                SuperBlock.blockSize(), superblock.totalBlocks, superblock.freeBlocks(),
+                superblock.totalInodes, open[0], open[1],
+                (superblock.features & SuperBlock.DEDUP) != 0 ? "on" : "off", reclaimer.pending());
+    }
+
+    // the text of /proc/cache: the hit ratios of the directory's path cache and of mapped file pages
+    private String describeCaches() {
+        long[] dentries = directory.dentryCounts();
+        long pageHits = MappedFile.pageHits.get();
+        long pageMisses = MappedFile.pageMisses.get();
+        return String.format("dentryHits      %d\n" + "dentryMisses    %d\n" + "dentryHitRatio  %s\n"
+                        + "dentryCached    %d\n" + "pageHits        %d\n" + "pageMisses      %d\n"
+                        + "pageHitRatio    %s\n",
+                dentries[0], dentries[1], ratio(dentries[0], dentries[1]), dentries[2],
+                pageHits, pageMisses, ratio(pageHits, pageMisses));
+    }
+
+    private static String ratio(long hits, long misses) {
+        return (hits + misses == 0) ? "-" : String.format("%.3f", (double) hits / (hits + misses));
+    }
+
+    // checks that the directory, the inodes and the free-block bitmap agree, as described in FileSystemCheck,
+    // repairing what it finds when repair is set. Repairs need every file closed, and lock the whole directory tree
+    // throughout, so no file can be opened, nor a directory made or removed, until the repair is done.
+    // Returns the number of problems found, or -1 if files are open during a repair.
+    public int fsck(boolean repair) {
+        if (!repair) {
+            reclaimer.drain(); // queued blocks belong to no inode until they are freed
+            return new FileSystemCheck(superblock, directory, false).run();
+        }
+        directory.lockTree();
+        try {
+            if (!filetable.fempty()) {
+                return -1;
+            }
+            reclaimer.drain();
+            int problems = new FileSystemCheck(superblock, directory, true).run();
+            if (problems > 0) {
+                dedupIndex.clear(); // a repair may have freed or rewritten blocks the index names
+                sync();
+            }
+            return problems;
+        } finally {
+            directory.unlockTree();
+        }
+    }
+
+    // turns block deduplication on or off for the volume, as described in DedupIndex; the setting is kept in the
+    // superblock. Returns 0.
+    public int dedup(boolean on) {
+        if (on) {
+            superblock.features |= SuperBlock.DEDUP;
+        } else {
+            superblock.features &= ~SuperBlock.DEDUP;
+            dedupIndex.clear();
+        }
+        superblock.sync();
+        return 0;
+    }
+
     // reads up to buffer.length bytes from the file indicated by fd, starting at the position currently pointed
     // to by the seek pointer. If bytes remaining between the current seek pointer and the end of file are less than
     // buffer.length, SysLib.read reads as many bytes as possible, putting them into the beginning of buffer.
@@ -59,47 +171,291 @@ public class FileSystem {
         if (fte == null || (fte.mode == "a") || (fte.mode == "w")) {
             return -1;
         }
-        int bufferIndex = 0;
-        int remainingBufferLength = buffer.length;
-        int fileSize = fsize(fte);
         synchronized (fte) {
-            // while loop to continue reading until we are finished reading from the starting position of the file's seekPtr to the end of the file,
-            // or until the buffer is full.
-            while (remainingBufferLength > 0 && fte.seekPtr < fileSize) {
-                int blockNumber = fte.inode.findBlockNumber(fte.seekPtr);
-                if (blockNumber == -1) {
-                    return bufferIndex;
-                }
-                // read data from the current block into a byte buffer
-                byte[] blockData = new byte[Disk.blockSize];
-                SysLib.rawread(blockNumber, blockData);
-                // find the offset to start reading from
-                int offset = fte.seekPtr % Disk.blockSize;
-                // find number of bytes to read in the current block
-                int blockReadLength = Disk.blockSize - offset;
-                // find number of bytes to read based on the size of the file and its current seekPtr position
-                int fileReadLength = fileSize - fte.seekPtr;
-                // if the buffer is too small to read the segment of the block from offset to the end or the rest of the file, then the buffer's size is the number of bytes read.
-                // otherwise, the number of bytes read is based on whichever is smaller between blockReadLength and fileReadLength.
-                int readLength = Math.min(Math.min(blockReadLength, remainingBufferLength), fileReadLength);
-                // call arraycopy to transfer the appropriate data from blockData to the buffer.
-                System.arraycopy(blockData, offset, buffer, bufferIndex, readLength);
-
-                // adjust the values of the file's seekPtr, the remaining buffer length, and the current buffer index based on the read that has just occurred.
-                remainingBufferLength -= readLength;
-                fte.seekPtr += readLength;
-                bufferIndex += readLength;
+            if (fte.procName != null && fte.seekPtr == 0) { // a virtual file read from its start shows the present
+                proc.generate(fte);
             }
+            int bufferIndex = readBytes(fte, fte.seekPtr, buffer, 0, buffer.length);
+            fte.seekPtr += bufferIndex;
             // return the location
             return bufferIndex;
         }
     }
 
+    // reads up to buffer.length bytes from the file indicated by fd, starting at the given offset. Neither uses nor
+    // moves the seek pointer, and does not lock the file table entry, so threads sharing fd may read different
+    // parts of the file at the same time. Returns the number of bytes read, or a negative value upon an error.
+    public int pread(FileTableEntry fte, byte[] buffer, int offset) {
+        // mode must be read
+        if (fte == null || (fte.mode == "a") || (fte.mode == "w") || offset < 0) {
+            return -1;
+        }
+        return readBytes(fte, offset, buffer, 0, buffer.length);
+    }
+
+    // copies up to length bytes from the file indicated by src, starting at its seek pointer, into the file indicated
+    // by dst at its seek pointer, entirely inside the kernel. Both seek pointers advance by the number of bytes copied.
+    // Returns the number of bytes copied, which stops short at the end of src, or a negative value upon an error.
+    public int copy(FileTableEntry src, FileTableEntry dst, int length) {
+        if (src == null || dst == null || (src.mode == "a") || (src.mode == "w") || dst.mode == "r" || length < 0) {
+            return -1;
+        }
+        // lock both entries in a fixed order so two opposite copies cannot deadlock
+        FileTableEntry first = src;
+        FileTableEntry second = dst;
+        if (dst.iNumber < src.iNumber || (dst.iNumber == src.iNumber
+                && System.identityHashCode(dst) < System.identityHashCode(src))) {
+            first = dst;
+            second = src;
+        }
+        synchronized (first) {
+            synchronized (second) {
+                // one block-sized kernel buffer carries every chunk
+                byte[] data = new byte[SuperBlock.blockSize()];
+                int copied = 0;
+                while (copied < length) {
+                    // end each chunk on a dst block boundary, so aligned copies write whole blocks without reading
+                    int chunk = Math.min(length - copied, SuperBlock.blockSize() - dst.seekPtr % SuperBlock.blockSize());
+                    int read = readBytes(src, src.seekPtr, data, 0, chunk);
+                    if (read <= 0) { // end of src
+                        break;
+                    }
+                    int written = writeBytes(dst, dst.seekPtr, data, 0, read);
+                    if (written < 0) {
+                        writeInode(dst);
+                        return -1;
+                    }
+                    writtenToMappings(dst, null, dst.seekPtr, data, 0, written);
+                    src.seekPtr += written;
+                    dst.seekPtr += written;
+                    copied += written;
+                    if (written < read) { // dst ran out of disk space
+                        break;
+                    }
+                }
+                // the inode goes to disk once for the whole copy
+                writeInode(dst);
+                return copied;
+            }
+        }
+    }
+
+    // reads the page of a mapped region that starts at byte position of the file into page
+    int readPage(FileTableEntry fte, byte[] page, int position) {
+        return readBytes(fte, position, page, 0, page.length);
+    }
+
+    // maps length bytes of the file indicated by fd, starting at offset, into a region whose pages are read from
+    // the file on first access. The region must lie inside the file, and the file must be open for reading;
+    // it can be written through when the file is open with "w+". Returns the region, or null upon an error.
+    public MappedFile mmap(FileTableEntry fte, int offset, int length) {
+        if (fte == null || (fte.mode == "a") || (fte.mode == "w") || offset < 0 || length < 0
+                || offset + length > fsize(fte)) {
+            return null;
+        }
+        MappedFile region = new MappedFile(this, fte, offset, length, fte.mode != "r");
+        fte.mappings.add(region);
+        return region;
+    }
+
+    // writes the dirty pages of a mapped region back to its file
+    public boolean msync(MappedFile region) {
+        return region.sync() >= 0;
+    }
+
+    // writes the dirty pages of a mapped region back to its file and unmaps it
+    public boolean munmap(MappedFile region) {
+        if (!region.entry().mappings.remove(region)) {
+            return false;
+        }
+        return region.unmap() >= 0;
+    }
+
+    // copies up to length bytes of the file, starting at byte position, into buffer[bufferIndex...]
+    // returns the number of bytes copied, which stops short at the end of the file
+    private int readBytes(FileTableEntry fte, int position, byte[] buffer, int bufferIndex, int length) {
+        Inode inode = fte.inode;
+        int start = bufferIndex;
+        int remainingBufferLength = length;
+        synchronized (inode) {
+            if (inode.chunks != null) {
+                return readCompressed(fte, position, buffer, bufferIndex, length);
+            }
+            if (inode.inline != null) { // the contents are already in memory with the inode
+                int count = Math.min(length, inode.length - position);
+                if (count <= 0) {
+                    return 0;
+                }
+                System.arraycopy(inode.inline, position, buffer, bufferIndex, count);
+                return count;
+            }
+        }
+        int fileSize = inode.length;
+        // while loop to continue reading until we are finished reading from position to the end of the file,
+        // or until the buffer is full.
+        while (remainingBufferLength > 0 && position < fileSize) {
+            int blockNumber;
+            synchronized (inode) { // only the lookup is locked; the disk transfer runs in parallel
+                blockNumber = inode.findBlockNumber(position);
+            }
+            // read data from the current block into a byte buffer; a hole reads as zeros without touching the disk
+            byte[] blockData = new byte[SuperBlock.blockSize()];
+            if (blockNumber != -1) {
+                SuperBlock.readBlock(blockNumber, blockData);
+            }
+            // find the offset to start reading from
+            int offset = position % SuperBlock.blockSize();
+            // find number of bytes to read in the current block
+            int blockReadLength = SuperBlock.blockSize() - offset;
+            // find number of bytes to read based on the size of the file and the current position
+            int fileReadLength = fileSize - position;
+            // if the buffer is too small to read the segment of the block from offset to the end or the rest of the file, then the buffer's size is the number of bytes read.
+            // otherwise, the number of bytes read is based on whichever is smaller between blockReadLength and fileReadLength.
+            int readLength = Math.min(Math.min(blockReadLength, remainingBufferLength), fileReadLength);
+            // call arraycopy to transfer the appropriate data from blockData to the buffer.
+            System.arraycopy(blockData, offset, buffer, bufferIndex, readLength);
+
+            // adjust the position, the remaining buffer length, and the current buffer index based on the read that has just occurred.
+            remainingBufferLength -= readLength;
+            position += readLength;
+            bufferIndex += readLength;
+        }
+        return bufferIndex - start;
+    }
+
+    // readBytes for a compressed file, a chunk at a time through the chunk cache; the caller holds the inode lock
+    private int readCompressed(FileTableEntry fte, int position, byte[] buffer, int bufferIndex, int length) {
+        int count = Math.min(length, fte.inode.length - position);
+        int done = 0;
+        while (done < count) {
+            int k = (position + done) / CompressedChunks.chunkSize();
+            int offset = (position + done) % CompressedChunks.chunkSize();
+            byte[] data = loadChunk(fte, k, false);
+            if (data == null) { // the chunk in the cache could not be stored to make room
+                break;
+            }
+            int chunk = Math.min(count - done, CompressedChunks.chunkSize() - offset);
+            System.arraycopy(data, offset, buffer, bufferIndex + done, chunk);
+            done += chunk;
+        }
+        return done;
+    }
+
+    // writeBytes for a compressed file: the bytes go into the cached chunk, which reaches the disk once the file
+    // moves on to another chunk or the writer closes it; the caller holds the inode lock
+    private int writeCompressed(FileTableEntry fte, int position, byte[] buffer, int location, int length) {
+        Inode inode = fte.inode;
+        int count = Math.min(length, CompressedChunks.maxLength() - position);
+        int done = 0;
+        while (done < count) {
+            int k = (position + done) / CompressedChunks.chunkSize();
+            int offset = (position + done) % CompressedChunks.chunkSize();
+            int chunk = Math.min(count - done, CompressedChunks.chunkSize() - offset);
+            // a chunk written over in full is not read first
+            byte[] data = loadChunk(fte, k, chunk == CompressedChunks.chunkSize());
+            if (data == null) { // the previous chunk could not be stored
+                break;
+            }
+            System.arraycopy(buffer, location + done, data, offset, chunk);
+            inode.chunks.changed();
+            done += chunk;
+            inode.length = Math.max(inode.length, position + done);
+        }
+        return done;
+    }
+
+    // returns chunk k of a compressed file uncompressed, making it the cached chunk; with whole set the caller
+    // overwrites all of it, so it is not read. The chunk cached before is stored first if it has changed.
+    // Returns null if that chunk cannot be stored. The caller holds the inode lock.
+    private byte[] loadChunk(FileTableEntry fte, int k, boolean whole) {
+        Inode inode = fte.inode;
+        byte[] data = inode.chunks.cached(k);
+        if (data != null) {
+            return data;
+        }
+        if (storeChunk(fte) < 0) {
+            return null;
+        }
+        if (whole) {
+            return inode.chunks.replace(k);
+        }
+        int first = CompressedChunks.slot(k) * SuperBlock.blockSize();
+        int block = inode.findBlockNumber(first);
+        if (block == -1) { // a chunk never written reads as zeros
+            return inode.chunks.inflate(k, null);
+        }
+        byte[] head = new byte[SuperBlock.blockSize()];
+        SuperBlock.readBlock(block, head);
+        int blocks = CompressedChunks.storedBlocks(head);
+        byte[] stored = new byte[blocks * SuperBlock.blockSize()];
+        System.arraycopy(head, 0, stored, 0, SuperBlock.blockSize());
+        for (int i = 1; i < blocks; i++) {
+            block = inode.findBlockNumber(first + i * SuperBlock.blockSize());
+            if (block != -1) {
+                SuperBlock.readBlock(block, head);
+                System.arraycopy(head, 0, stored, i * SuperBlock.blockSize(), SuperBlock.blockSize());
+            }
+        }
+        return inode.chunks.inflate(k, stored);
+    }
+
+    // deflates the cached chunk of a compressed file into its slot if it has changed, taking the blocks it now
+    // needs and freeing those it no longer does; the caller holds the inode lock and sends the inode to disk.
+    // Returns 0, -1 if the disk is full, or -2 on a file system error; on failure the chunk stays cached and dirty.
+    private int storeChunk(FileTableEntry fte) {
+        Inode inode = fte.inode;
+        int k = inode.chunks.dirtyChunk();
+        if (k == -1) {
+            return 0;
+        }
+        byte[] stored = inode.chunks.deflate();
+        int blocks = CompressedChunks.blocksFor(stored);
+        int first = CompressedChunks.slot(k) * SuperBlock.blockSize();
+        int[] targets = new int[blocks];
+        byte[] data = new byte[SuperBlock.blockSize()];
+        // find every block before writing any, so running out of space leaves the stored chunk as it was
+        for (int i = 0; i < blocks; i++) {
+            int position = first + i * SuperBlock.blockSize();
+            int block = inode.findBlockNumber(position);
+            if (block != -1) { // the block is about to be written over in place
+                dedupIndex.forget(block);
+            }
+            if (block == -1) {
+                block = allocateBlock(fte, position);
+            } else if (superblock.shares(block) > 0) {
+                // the copy keeps the shared contents until the new ones are written over it
+                block = unshare(fte, position, block, data);
+                if (block != -1) {
+                    SuperBlock.writeBlock(block, data);
+                }
+            }
+            if (block < 0) {
+                return block;
+            }
+            targets[i] = block;
+        }
+        for (int i = 0; i < blocks; i++) {
+            Arrays.fill(data, (byte) 0);
+            System.arraycopy(stored, i * SuperBlock.blockSize(), data, 0,
+                    Math.min(SuperBlock.blockSize(), stored.length - i * SuperBlock.blockSize()));
+            SuperBlock.writeBlock(targets[i], data);
+        }
+        // the rest of the slot becomes a hole again
+        for (int i = blocks; i < CompressedChunks.slotBlocks; i++) {
+            int position = first + i * SuperBlock.blockSize();
+            int block = inode.findBlockNumber(position);
+            if (block != -1) {
+                inode.replaceBlock(position, -1);
+                superblock.returnBlock(block);
+            }
+        }
+        inode.chunks.stored();
+        return 0;
+    }
+
     // this function writes the data from the buffer to the file
     //
     public int write(FileTableEntry fte, byte[] buffer) {
-        int location = 0;
-
         // not given a valid file table entry or we are suppose to
         // read instead of write
         if (fte == null || fte.mode == "r") {
@@ -107,69 +463,269 @@ public class FileSystem {
         }
         // go into critical section
         synchronized (fte) {
-            int buffLength = buffer.length;
-            while (buffLength > 0) { // loop over buffer
-                int currentBlock = fte.inode.findBlockNumber(fte.seekPtr); // try to find the given block
-                if (currentBlock == -1) { // need find a free block
-                    short freeBlock = (short) superblock.getFreeBlock();
-                    // attempt to submit block, then act based on return code
-                    int status = fte.inode.submitBlock(fte.seekPtr, freeBlock);
-                    switch ( status )
-                    // 1 = good to write, -1 = in use, 0 = indirect is empty
-                    {
-                        case Inode.INDIRECT_IN_USE:
-                            SysLib.cerr("Filesystem error on write\n");
-                            return -1;
-                        case Inode.INDIRECT_EMPTY: // indirect is empty, search for new location
-                            freeBlock = (short) superblock.getFreeBlock();
-                            status = fte.inode.submitBlock(fte.seekPtr, freeBlock); // attempt to submit location
-                            if (!fte.inode.setIndexBlock((short) status)) { // attempt to set index to new location
-                                SysLib.cerr("Filesystem error on write\n");
-                                return -1;
-                            }
-                            // attempt submit block again
-                            if ( fte.inode.submitBlock(fte.seekPtr, freeBlock) != Inode.INDIRECT_AVAILABLE ) {
-                                SysLib.cerr("Filesystem error on write\n");
-                                return -1;
-                            }
-                            break;
-                    }
-                    // update location
-                    currentBlock = freeBlock;
+            int location = writeBytes(fte, fte.seekPtr, buffer, 0, buffer.length);
+            if (location > 0) {
+                writtenToMappings(fte, null, fte.seekPtr, buffer, 0, location);
+                fte.seekPtr += location;
+            }
+            // send the inode to disk and return adjusted location
+            writeInode(fte);
+            return location;
+        }
+    }
+
+    // writes the contents of buffer to the file indicated by fd, starting at the given offset; an offset past the
+    // end of the file leaves a hole. Neither uses nor moves the seek pointer, and does not lock the file table entry.
+    // Returns the number of bytes written, or a negative value upon an error.
+    public int pwrite(FileTableEntry fte, byte[] buffer, int offset) {
+        if (fte == null || fte.mode == "r" || offset < 0) {
+            return -1;
+        }
+        int written = writeBytes(fte, offset, buffer, 0, buffer.length);
+        writeInode(fte);
+        writtenToMappings(fte, null, offset, buffer, 0, written);
+        return written;
+    }
+
+    // writes data, changed through the mapped region, back to its file at byte position
+    // returns the number of bytes written, or a negative value upon an error
+    int writeBack(MappedFile region, byte[] data, int position) {
+        FileTableEntry fte = region.entry();
+        int written = writeBytes(fte, position, data, 0, data.length);
+        writeInode(fte);
+        writtenToMappings(fte, region, position, data, 0, written);
+        return written;
+    }
+
+    // copies the count bytes of buffer[location...] just written to the file of fte at byte position into the pages
+    // of the regions mapped through fte, but for source, which holds them already. No other entry can have the file
+    // mapped, as fte is open for writing.
+    private void writtenToMappings(FileTableEntry fte, MappedFile source, int position, byte[] buffer, int location,
+                                   int count) {
+        if (count <= 0 || fte.mappings.isEmpty()) {
+            return;
+        }
+        for (MappedFile region : fte.mappings.toArray(new MappedFile[0])) {
+            if (region != source) {
+                region.written(position, buffer, location, count);
+            }
+        }
+    }
+
+    // writes length bytes of buffer[location...] into the file at byte position
+    // returns the number of bytes written, or -1 upon an error; the caller sends the inode to disk
+    private int writeBytes(FileTableEntry fte, int position, byte[] buffer, int location, int length) {
+        Inode inode = fte.inode;
+        int start = location;
+        int buffLength = length;
+        synchronized (inode) {
+            if (inode.chunks != null) {
+                return writeCompressed(fte, position, buffer, location, length);
+            }
+            if (inode.inline != null) {
+                if (position + length <= Inode.inlineSize) { // still fits inside the inode
+                    System.arraycopy(buffer, location, inode.inline, position, length);
+                    inode.length = Math.max(inode.length, position + length);
+                    return length;
                 }
+                if (!promote(fte)) { // the disk is full
+                    return 0;
+                }
+            }
+            // blocks reserved past the end and skipped over by this write must read as zeros once the end passes them
+            int skipped = Math.min(position / SuperBlock.blockSize(), Inode.maxBlocks());
+            if ((inode.length + SuperBlock.blockSize() - 1) / SuperBlock.blockSize() < skipped) {
+                clearReserved(fte, inode.length, skipped);
+            }
+        }
+        while (buffLength > 0) { // loop over buffer
+            // find write location based on given pointer and disk size
+            int diskLocation = position % SuperBlock.blockSize();
+            int adjustedLocation = SuperBlock.blockSize() - diskLocation;
+            int chunk = Math.min(adjustedLocation, buffLength);
 
-                byte[] data = new byte[Disk.blockSize];
-                // Attempt to read
-                if (SysLib.rawread(currentBlock, data) == -1) {
-                    System.exit(2);
+            if (position / SuperBlock.blockSize() >= Inode.maxBlocks()) { // past the largest possible file
+                break;
+            }
+            ByteBuffer fingerprint = null;
+            if (chunk == SuperBlock.blockSize() && (superblock.features & SuperBlock.DEDUP) != 0) {
+                fingerprint = DedupIndex.fingerprint(buffer, location);
+                if (shareDuplicate(fte, position, fingerprint)) {
+                    // another block already holds these bytes and the file now points at it, so nothing is written
+                    position += chunk;
+                    location += chunk;
+                    buffLength -= chunk;
+                    continue;
+                }
+            }
+            byte[] data = new byte[SuperBlock.blockSize()];
+            int currentBlock;
+            // block allocation and every block write are atomic per inode, so a whole-block write cannot interleave
+            // with the read-modify-write of a partial write to the same block
+            synchronized (inode) {
+                currentBlock = inode.findBlockNumber(position); // try to find the given block
+                // true once data holds what the block should contain; a hole is all zeros, and so is a block reserved
+                // by fallocate that lies wholly past the end of the file, since it was never written
+                boolean loaded = currentBlock == -1 || position - diskLocation >= inode.length;
+                if (currentBlock != -1) { // the bytes of the block are about to change, so no other file may share it
+                    dedupIndex.forget(currentBlock);
                 }
+                if (currentBlock == -1) { // need find a free block; a block that was a hole until now is all zeros
+                    currentBlock = allocateBlock(fte, position);
+                    if (currentBlock == -2) {
+                        return -1;
+                    }
+                    if (currentBlock == -1) { // the disk is full
+                        break;
+                    }
+                } else if (superblock.shares(currentBlock) > 0) {
+                    // the block is shared with a clone, so this file gets its own copy before changing it
+                    currentBlock = unshare(fte, position, currentBlock, (chunk < SuperBlock.blockSize() && !loaded) ? data : null);
+                    if (currentBlock == -1) { // the disk is full
+                        break;
+                    }
+                    loaded = true;
+                }
+                if (chunk < SuperBlock.blockSize()) {
+                    // Attempt to read
+                    if (!loaded && SuperBlock.readBlock(currentBlock, data) == -1) {
+                        System.exit(2);
+                    }
+                    // copy into data and write
+                    System.arraycopy(buffer, location, data, diskLocation, chunk);
+                    SuperBlock.writeBlock(currentBlock, data);
+                } else {
+                    // the whole block is replaced, so there is nothing to read first
+                    System.arraycopy(buffer, location, data, 0, chunk);
+                    SuperBlock.writeBlock(currentBlock, data);
+                    if (fingerprint != null) { // recorded before any other write to this file can change the block
+                        dedupIndex.add(fingerprint, currentBlock);
+                    }
+                }
+                // update inode to reflect adjusted length, before another write can take the block as unwritten
+                inode.length = Math.max(inode.length, position + chunk);
+            }
 
-                // find write location based on given pointer and disk size
-                int diskLocation = fte.seekPtr % Disk.blockSize;
-                int adjustedLocation = Disk.blockSize - diskLocation;
-                int length = Math.min(adjustedLocation, buffLength);
+            // update variables according to given location
+            position += chunk;
+            location += chunk;
+            buffLength -= chunk;
+        }
+        return location - start;
+    }
 
-                // copy into data and write
-                System.arraycopy(buffer, location, data, diskLocation, length);
-                SysLib.rawwrite(currentBlock, data);
+    // moves the inline contents of the entry's inode into a data block of their own, so the file can grow
+    // past Inode.inlineSize; the caller holds the inode lock. Returns false if no block is free.
+    private boolean promote(FileTableEntry fte) {
+        Inode inode = fte.inode;
+        if (inode.length > 0) {
+            int block = freeBlock(fte.iNumber);
+            if (block == -1) {
+                return false;
+            }
+            byte[] data = new byte[SuperBlock.blockSize()];
+            System.arraycopy(inode.inline, 0, data, 0, inode.length);
+            SuperBlock.writeBlock(block, data);
+            inode.direct[0] = block;
+        }
+        inode.inline = null;
+        return true;
+    }
 
-                // update variables according to given location
-                fte.seekPtr += length;
-                location += length;
-                buffLength -= length;
+    // gives the file its own copy of a block it shares with a clone, reading the shared contents into data unless
+    // data is null; the caller holds the inode lock and writes the copy. Returns the copy, or -1 if the disk is full.
+    private int unshare(FileTableEntry fte, int position, int block, byte[] data) {
+        int copy = freeBlock(fte.iNumber);
+        if (copy == -1) {
+            return -1;
+        }
+        if (data != null) {
+            SuperBlock.readBlock(block, data);
+        }
+        fte.inode.replaceBlock(position, copy);
+        superblock.returnBlock(block); // drops this file's reference only
+        return copy;
+    }
 
-                // update inode to reflect adjusted length
-                if (fte.seekPtr > fte.inode.length) {
-                    fte.inode.length = fte.seekPtr;
+    // sends the inode of the given entry to disk
+    private void writeInode(FileTableEntry fte) {
+        synchronized (fte.inode) {
+            fte.inode.toDisk(fte.iNumber);
+        }
+    }
+
+    // points the block of the file at byte position at a block already holding the bytes with the given
+    // fingerprint, taking a reference to it instead of writing a copy. Returns false if no such block is known,
+    // it cannot take another reference, or no index block can be found for it.
+    private boolean shareDuplicate(FileTableEntry fte, int position, ByteBuffer fingerprint) {
+        Inode inode = fte.inode;
+        synchronized (inode) {
+            int current = inode.findBlockNumber(position);
+            int block = dedupIndex.share(fingerprint);
+            if (block == -1) {
+                return false;
+            }
+            if (current == block) { // the file already holds these bytes here
+                superblock.returnBlock(block);
+            } else if (current == -1) {
+                if (placeBlock(fte, position, block) < 0) {
+                    superblock.returnBlock(block);
+                    return false;
                 }
+            } else {
+                dedupIndex.forget(current);
+                inode.replaceBlock(position, block);
+                superblock.returnBlock(current); // drops this file's reference only, if others share it
             }
-            // send the inode to disk and return adjusted location
-            fte.inode.toDisk(fte.iNumber);
-            return location;
+            inode.length = Math.max(inode.length, position + SuperBlock.blockSize());
+            return true;
         }
     }
 
+    // allocates a block for the given byte position of the file and registers it with the inode
+    // returns the block number, -1 if the disk is full, or -2 on a file system error
+    private int allocateBlock(FileTableEntry fte, int position) {
+        // allocate from the group this inode maps to, so writers to different files do not contend
+        int freeBlock = freeBlock(fte.iNumber);
+        if (freeBlock == -1) { // the disk is full
+            return -1;
+        }
+        int status = placeBlock(fte, position, freeBlock);
+        if (status < 0) {
+            superblock.returnBlock(freeBlock);
+        }
+        return status;
+    }
+
+    // registers block with the inode as the block holding the given byte position, which must be a hole, finding
+    // the index blocks first that the position needs and the file lacks. Returns the block, -1 if the disk is full,
+    // or -2 on a file system error.
+    private int placeBlock(FileTableEntry fte, int position, int freeBlock) {
+        // attempt to submit block, then act based on return code
+        int status = fte.inode.submitBlock(position, freeBlock);
+        while (status == Inode.INDIRECT_EMPTY) { // an index block on the way is missing, so a new block becomes it
+            int indexBlock = freeBlock(fte.iNumber);
+            if (indexBlock == -1) { // the disk is full
+                return -1;
+            }
+            if (!fte.inode.setIndexBlock(position, indexBlock)) {
+                superblock.returnBlock(indexBlock);
+                SysLib.cerr("Filesystem error on write\n");
+                return -2;
+            }
+            status = fte.inode.submitBlock(position, freeBlock);
+        }
+        // 1 = good to write, -1 = in use
+        if (status == Inode.INDIRECT_IN_USE) {
+            SysLib.cerr("Filesystem error on write\n");
+            return -2;
+        }
+        // update location
+        return freeBlock;
+    }
+
     // Updates the seek pointer corresponding to fd
+    // The pointer may be moved past the end of the file; a later write there leaves a hole that reads as zeros
     int seek(FileTableEntry fte, int offset, int whence) {
         //check for valid filetableEntry
         if (fte == null) {
@@ -181,34 +737,72 @@ public class FileSystem {
         // if whence is set to 0 set seek pointer to offset
         // else if whence is set to 1 set to current value plus offset
         // else if whence is set to 2 set the pointer to the size of the file plus offset
+        // else if whence is set to 3 or 4 set the pointer to the first data or hole at or after offset
         synchronized (fte) {
+            int position;
             switch (whence) {
-                case 0:
-                    if ((offset >= 0) && (offset <= fsize(fte))) {
-                        fte.seekPtr = offset;
-                    } else {
-                        return -1;
-                    }
+                case Kernel.SEEK_SET:
+                    position = offset;
                     break;
-                case 1:
-                    if ((fte.seekPtr + offset >= 0) && (fte.seekPtr + offset <= fsize(fte))) {
-                        fte.seekPtr += offset;
-                    } else {
-                        return -1;
-                    }
+                case Kernel.SEEK_CUR:
+                    position = fte.seekPtr + offset;
                     break;
-                case 2:
-                    if ((fsize(fte) + offset >= 0) && (fsize(fte) + offset <= fsize(fte))) {
-                        fte.seekPtr = (fsize(fte) + offset);
-                    } else {
-                        return -1;
-                    }
+                case Kernel.SEEK_END:
+                    position = fsize(fte) + offset;
                     break;
+                case Kernel.SEEK_DATA:
+                case Kernel.SEEK_HOLE:
+                    position = seekData(fte.inode, offset, whence == Kernel.SEEK_DATA);
+                    break;
+                default:
+                    return -1;
+            }
+            if (position < 0) {
+                return -1;
             }
+            fte.seekPtr = position;
             return fte.seekPtr;
         }
     }
 
+    // returns the first position at or after offset that holds data (or, when data is false, that lies in a hole),
+    // or -1 if there is none. The end of the file counts as a hole, so a hole is found for every offset inside it.
+    private int seekData(Inode inode, int offset, boolean data) {
+        synchronized (inode) {
+            int length = inode.length;
+            if (offset < 0 || offset >= length) {
+                return -1;
+            }
+            if (inode.inline != null) { // an inline file is all data
+                return data ? offset : length;
+            }
+            if (inode.chunks != null) { // a compressed file has data or holes a whole chunk at a time
+                int chunks = (length + CompressedChunks.chunkSize() - 1) / CompressedChunks.chunkSize();
+                int k = offset / CompressedChunks.chunkSize();
+                while (k < chunks && (inode.findBlockNumber(CompressedChunks.slot(k) * SuperBlock.blockSize()) != -1
+                        || inode.chunks.dirtyChunk() == k) != data) {
+                    k++;
+                }
+                if (k == offset / CompressedChunks.chunkSize()) {
+                    return offset;
+                }
+                if (k >= chunks) {
+                    return data ? -1 : length;
+                }
+                return k * CompressedChunks.chunkSize();
+            }
+            int blocks = (length + SuperBlock.blockSize() - 1) / SuperBlock.blockSize();
+            int block = inode.nextBlock(offset / SuperBlock.blockSize(), blocks, data);
+            if (block == offset / SuperBlock.blockSize()) { // offset itself already lies in what was asked for
+                return offset;
+            }
+            if (block >= blocks) {
+                return data ? -1 : length;
+            }
+            return block * SuperBlock.blockSize();
+        }
+    }
+
     // invalid offset error
     private void invalidOffset() {
         SysLib.cerr("invalid offset");
@@ -217,11 +811,29 @@ public class FileSystem {
     // opens the file specified by the fileName string in the given mode
     // (where "r" = ready only, "w" = write only, "w+" = read/write, "a" = append),
     // and allocates a new file descriptor, fd to this file.
+    // A "c" after the mode, as in "w+c", makes an empty file compressed, as described in CompressedChunks;
+    // a file that already holds data keeps the form it has.
     public FileTableEntry open(String fileName, String mode) {
+        boolean compress = mode.length() > 1 && mode.endsWith("c");
+        if (compress) {
+            mode = mode.substring(0, mode.length() - 1).intern(); // modes are compared by identity
+        }
+        if (isProc(fileName)) {
+            return proc.open(fileName, mode);
+        }
         FileTableEntry fte = filetable.falloc(fileName, mode);
         if (fte != null && mode == "w" && !deallocAllBlocks(fte)) { // no place to write
             return null;
         }
+        if (fte != null && compress && mode != "r") {
+            synchronized (fte.inode) {
+                if (fte.inode.inline != null && fte.inode.length == 0) {
+                    fte.inode.inline = null;
+                    fte.inode.chunks = new CompressedChunks();
+                    fte.inode.toDisk(fte.iNumber);
+                }
+            }
+        }
         return fte;
     }
 
@@ -230,11 +842,34 @@ public class FileSystem {
     public boolean close(FileTableEntry fte) {
         synchronized (fte) {
             fte.count--;
+            // changes made through mapped regions are committed like any other write
+            for (int i = 0; i < fte.mappings.size(); i++) {
+                MappedFile region = fte.mappings.get(i);
+                if (fte.count > 0) {
+                    region.sync();
+                } else {
+                    region.unmap();
+                }
+            }
             if (fte.count > 0) {
                 return true;
             }
+            fte.mappings.clear();
+        }
+        if (fte.procName != null) { // a virtual file was never in the file table
+            return true;
+        }
+        boolean stored = true;
+        synchronized (fte.inode) {
+            if (fte.inode.chunks != null) {
+                if (fte.mode != "r") { // the last chunk written is still only in the cache
+                    stored = storeChunk(fte) == 0;
+                    fte.inode.toDisk(fte.iNumber);
+                }
+                fte.inode.chunks.release();
+            }
         }
-        return filetable.ffree(fte);
+        return filetable.ffree(fte) && stored;
     }
 
     // destroys the file specified by fileName. If the file is currently open, it is not destroyed until the last open on it is closed, but new attempts to open it will fail.
@@ -247,34 +882,406 @@ public class FileSystem {
         return close(fte) && directory.ifree(fte.iNumber);
     }
 
+    // returns true if path names /proc or a virtual file in it: a path under /proc that the disk holds no entry
+    // for. An entry made before /proc existed keeps working, but no new one can be made there.
+    private boolean isProc(String path) {
+        return ProcFs.contains(path) && directory.namei(path) < 0;
+    }
+
+    // creates the directory named by path; its parent directory must already exist
+    public boolean mkdir(String path) {
+        if (ProcFs.contains(path)) {
+            return false;
+        }
+        return directory.mkdir(path) > 0;
+    }
+
+    // removes the directory named by path, which must be empty
+    public boolean rmdir(String path) {
+        return directory.rmdir(path);
+    }
+
+    // copies up to names.length entry names of the directory named by path into names[]
+    // returns the number of entries in the directory, or -1 if path is not a directory
+    public int readdir(String path, String[] names) {
+        if (isProc(path)) {
+            String name = path.startsWith("/") ? path.substring(1) : path;
+            return name.equals(ProcFs.root) || name.equals(ProcFs.root + "/") ? proc.list(names) : -1;
+        }
+        String[] entries = directory.readdir(path);
+        if (entries == null) {
+            return -1;
+        }
+        System.arraycopy(entries, 0, names, 0, Math.min(entries.length, names.length));
+        return entries.length;
+    }
+
+    // makes target a copy of the file source that shares all of its data blocks; only the inode and the index blocks
+    // are written, and a shared block is copied the first time either file changes it. target must not exist yet.
+    // Returns 0 on success, otherwise -1.
+    public int clone(String source, String target) {
+        if (directory.namei(target) >= 0) {
+            return -1;
+        }
+        FileTableEntry src = open(source, "r");
+        if (src == null) {
+            return -1;
+        }
+        FileTableEntry dst = open(target, "w");
+        if (dst == null) {
+            close(src);
+            return -1;
+        }
+        int result = cloneInode(src, dst);
+        close(dst);
+        close(src);
+        if (result < 0) {
+            delete(target);
+        }
+        return result;
+    }
+
+    // gives the empty file dst the contents of src by sharing its blocks; returns 0, or -1 if the disk is full or a
+    // block has too many references, in which case every reference taken so far is given back
+    private int cloneInode(FileTableEntry src, FileTableEntry dst) {
+        Inode from = src.inode;
+        Inode to = dst.inode;
+        synchronized (from) {
+            synchronized (to) {
+                if (from.inline != null) { // nothing to share; the contents fit in the inode
+                    to.inline = from.inline.clone();
+                } else {
+                    if (from.chunks != null) { // the shared blocks hold compressed chunks
+                        to.chunks = new CompressedChunks();
+                    }
+                    ArrayList<Integer> shared = new ArrayList<Integer>();
+                    ArrayList<Integer> copies = new ArrayList<Integer>();
+                    for (int i = 0; i < Inode.directSize; i++) {
+                        if (from.direct[i] != -1) {
+                            if (!superblock.share(from.direct[i])) {
+                                return undoShares(shared, copies);
+                            }
+                            shared.add(from.direct[i]);
+                        }
+                    }
+                    int[] roots = new int[Inode.levels];
+                    for (int level = 1; level <= Inode.levels; level++) {
+                        roots[level - 1] = -1;
+                        if (from.indirect[level - 1] != -1) {
+                            roots[level - 1] = copyIndex(from.indirect[level - 1], level, dst.iNumber, shared, copies);
+                            if (roots[level - 1] == -1) {
+                                return undoShares(shared, copies);
+                            }
+                        }
+                    }
+                    to.inline = null;
+                    System.arraycopy(from.direct, 0, to.direct, 0, Inode.directSize);
+                    System.arraycopy(roots, 0, to.indirect, 0, Inode.levels);
+                }
+                to.length = from.length;
+                to.toDisk(dst.iNumber);
+                return 0;
+            }
+        }
+    }
+
+    // copies the index block node, at the given height in its tree, and every index block below it into new blocks,
+    // sharing the data blocks they lead to, so each file can point its entries elsewhere. Records the blocks shared
+    // and the copies made. Returns the copy of node, or -1 if the disk is full or a block has too many references.
+    private int copyIndex(int node, int height, int hint, ArrayList<Integer> shared, ArrayList<Integer> copies) {
+        int copy = freeBlock(hint);
+        if (copy == -1) {
+            return -1;
+        }
+        copies.add(copy);
+        int[] entries = Inode.readIndex(node);
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] < 0) {
+                continue;
+            }
+            if (height > 1) {
+                entries[i] = copyIndex(entries[i], height - 1, hint, shared, copies);
+                if (entries[i] == -1) {
+                    return -1;
+                }
+            } else if (superblock.share(entries[i])) {
+                shared.add(entries[i]);
+            } else {
+                return -1;
+            }
+        }
+        Inode.writeIndex(copy, entries);
+        return copy;
+    }
+
+    // gives back every reference taken and every index block copied by a clone that failed; returns -1
+    private int undoShares(ArrayList<Integer> shared, ArrayList<Integer> copies) {
+        for (int block : shared) {
+            superblock.returnBlock(block);
+        }
+        for (int block : copies) {
+            superblock.returnBlock(block);
+        }
+        return -1;
+    }
+
+    // clones every file of the volume into snapshotRoot/name, keeping the directory tree, and returns the number
+    // of files captured, or -1 upon an error. Each file is captured as it is when its turn comes, so files being
+    // written by other threads are waited for; the caller must not itself hold a file open for writing.
+    public int snapshot(String name) {
+        if (name.length() == 0 || name.indexOf('/') >= 0) {
+            return -1;
+        }
+        if (directory.namei(snapshotRoot) < 0 && !mkdir(snapshotRoot)) {
+            return -1;
+        }
+        String target = snapshotRoot + "/" + name;
+        if (!mkdir(target)) { // already taken, or no free inode
+            return -1;
+        }
+        return snapshotDirectory("", target);
+    }
+
+    // clones the files below directory path (where "" is the root) into target
+    private int snapshotDirectory(String path, String target) {
+        String[] names = directory.readdir(path.length() == 0 ? "/" : path);
+        if (names == null) {
+            return -1;
+        }
+        int files = 0;
+        for (int i = 0; i < names.length; i++) {
+            String from = path + "/" + names[i];
+            String to = target + "/" + names[i];
+            if (from.equals(snapshotRoot)) { // snapshots are not captured again
+                continue;
+            }
+            int result;
+            if (directory.isDirectory(directory.namei(from))) {
+                result = mkdir(to) ? snapshotDirectory(from, to) : -1;
+            } else {
+                result = (clone(from, to) == 0) ? 1 : -1;
+            }
+            if (result < 0) {
+                return -1;
+            }
+            files += result;
+        }
+        return files;
+    }
+
     // clears inode and frees blocks
     private boolean deallocAllBlocks(FileTableEntry fileTableEntry) {
         // check valid inode and filetableentry
-        if (fileTableEntry.inode.count != 1 || fileTableEntry == null) {
+        if (fileTableEntry == null || fileTableEntry.inode.count != 1) {
             return false;
         }
-        // release indirect Inode
-        byte[] releasedBlocks = fileTableEntry.inode.releaseIndirect();
+        synchronized (fileTableEntry.inode) {
+            detachBlocks(fileTableEntry.inode);
+            fileTableEntry.inode.length = 0;
+            fileTableEntry.inode.inline = new byte[Inode.inlineSize]; // an empty file starts out inline again
+            if (fileTableEntry.inode.chunks != null) {
+                fileTableEntry.inode.chunks.release();
+                fileTableEntry.inode.chunks = null;
+            }
+            // finally writeback Inode
+            fileTableEntry.inode.toDisk(fileTableEntry.iNumber);
+        }
+        return true;
+    }
+
+    // takes every block away from the inode at once and queues them for the reclaimer, so the caller does not wait
+    // for them to be freed; the caller holds the inode lock and sends the inode to disk
+    private void detachBlocks(Inode inode) {
+        int[] pointers = inode.detachPointers();
+        if (pointers != null) {
+            reclaimer.reclaim(pointers);
+        }
+    }
+
+    // allocates a free block near the hint; if the disk looks full, waits for queued blocks to be freed and tries again
+    private int freeBlock(int hint) {
+        int block = superblock.getFreeBlock(hint);
+        if (block == -1 && reclaimer.drain()) {
+            block = superblock.getFreeBlock(hint);
+        }
+        if (block != -1) { // the block once held other bytes
+            dedupIndex.forget(block);
+        }
+        return block;
+    }
+
+    // returns every block of the inode from block index first on to the superblock, and each index block as well
+    // once none of its entries remain; the caller holds the inode lock and sends the inode to disk
+    private void releaseBlocks(Inode inode, int first) {
+        superblock.returnBlocks(inode.takeBlocks(first));
+    }
+
+    // makes the blocks reserved by fallocate that lie wholly past byte end, up to block index limit, read as zeros,
+    // before the end of the file moves past them without writing them: each is cleared, or if a clone shares it,
+    // becomes a hole. A file without reserved blocks has only holes there. The caller holds the inode lock.
+    private void clearReserved(FileTableEntry fte, int end, int limit) {
+        Inode inode = fte.inode;
+        byte[] zeros = null;
+        int first = (end + SuperBlock.blockSize() - 1) / SuperBlock.blockSize();
+        for (int i = inode.nextBlock(first, limit, true); i < limit; i = inode.nextBlock(i + 1, limit, true)) {
+            int position = i * SuperBlock.blockSize();
+            int block = inode.findBlockNumber(position);
+            if (superblock.shares(block) > 0) {
+                inode.replaceBlock(position, -1);
+                superblock.returnBlock(block); // drops this file's reference only
+                continue;
+            }
+            if (zeros == null) {
+                zeros = new byte[SuperBlock.blockSize()];
+            }
+            SuperBlock.writeBlock(block, zeros);
+        }
+    }
 
-        // if not free release indirect blocks
-        if (releasedBlocks != null) {
-            int num = SysLib.bytes2short(releasedBlocks, 0);
-            while (num != -1) {
-                superblock.returnBlock(num);
+    // reserves disk blocks for the first length bytes of the file indicated by fd, taking them from the allocator in
+    // one batch so they are contiguous where free space allows. The file size does not change; later writes within
+    // the reserved range find their blocks already allocated. The reserved blocks are not written: a block wholly
+    // past the end of the file is unwritten, so writes treat it as zeros instead of reading it, and it is cleared
+    // only if the end of the file moves past it without writing it. Returns 0 on success, otherwise -1.
+    public int fallocate(FileTableEntry fte, int length) {
+        if (fte == null || fte.mode == "r" || length < 0) {
+            return -1;
+        }
+        int blocks = (length + SuperBlock.blockSize() - 1) / SuperBlock.blockSize();
+        if (blocks > Inode.maxBlocks()) { // larger than the largest possible file
+            return -1;
+        }
+        Inode inode = fte.inode;
+        synchronized (fte) {
+            synchronized (inode) {
+                if (inode.chunks != null) { // how many blocks a compressed file needs is known only once written
+                    return -1;
+                }
+                if (inode.inline != null) {
+                    if (length <= Inode.inlineSize) { // the inode already holds this much
+                        return 0;
+                    }
+                    if (!promote(fte)) {
+                        return -1;
+                    }
+                }
+                // count the holes, plus the index blocks the reservation needs and the file lacks
+                int needed = 0;
+                for (int i = inode.nextBlock(0, blocks, false); i < blocks; i = inode.nextBlock(i + 1, blocks, false)) {
+                    needed++;
+                }
+                needed += inode.missingIndexBlocks(blocks);
+                int[] free = new int[needed];
+                int found = superblock.getFreeBlocks(fte.iNumber, free);
+                if (found < needed && reclaimer.drain()) { // blocks being freed may be enough
+                    int[] more = new int[needed - found];
+                    found += superblock.getFreeBlocks(fte.iNumber, more);
+                    System.arraycopy(more, 0, free, needed - more.length, more.length);
+                }
+                if (found < needed) {
+                    for (int i = 0; i < needed; i++) { // not enough room: give back what was taken
+                        superblock.returnBlock(free[i]);
+                    }
+                    return -1;
+                }
+                for (int i = 0; i < needed; i++) {
+                    dedupIndex.forget(free[i]);
+                }
+                int next = 0;
+                for (int i = inode.nextBlock(0, blocks, false); i < blocks; i = inode.nextBlock(i + 1, blocks, false)) {
+                    int position = i * SuperBlock.blockSize();
+                    while (inode.submitBlock(position, free[next]) == Inode.INDIRECT_EMPTY) {
+                        // the next reserved block becomes the missing index block on the way
+                        inode.setIndexBlock(position, free[next++]);
+                    }
+                    next++;
+                }
+                inode.toDisk(fte.iNumber);
+                return 0;
             }
         }
+    }
 
-        // release direct blocks
-        // if direct block exists, then release it and mark invalid
-        for (int i = 0; i < Inode.directSize; i++)
-            if (fileTableEntry.inode.direct[i] != -1) {
-                superblock.returnBlock(fileTableEntry.inode.direct[i]);
-                fileTableEntry.inode.direct[i] = -1;
+    // sets the size of the file indicated by fd to length bytes. Shrinking frees the blocks past the new end;
+    // growing only moves the end, leaving a hole that reads as zeros. The seek pointer is left where it is.
+    // Returns 0 on success, otherwise -1.
+    public int truncate(FileTableEntry fte, int length) {
+        if (fte == null || fte.mode == "r" || length < 0 || length > Inode.maxBlocks() * SuperBlock.blockSize()) {
+            return -1;
+        }
+        Inode inode = fte.inode;
+        synchronized (fte) {
+            int oldLength;
+            synchronized (inode) {
+                oldLength = inode.length;
+                if (inode.inline != null) {
+                    if (length <= Inode.inlineSize) { // clear what was cut off, then stay inline
+                        Arrays.fill(inode.inline, length, Inode.inlineSize, (byte) 0);
+                    } else if (!promote(fte)) {
+                        return -1;
+                    }
+                } else if (inode.chunks != null) {
+                    if (length > CompressedChunks.maxLength()) {
+                        return -1;
+                    }
+                    if (length < inode.length && truncateCompressed(fte, length) < 0) {
+                        return -1;
+                    }
+                } else if (length < inode.length) {
+                    // clear the rest of the new last block, so growing the file again exposes zeros
+                    int block = inode.findBlockNumber(length);
+                    if (length % SuperBlock.blockSize() != 0 && block != -1) {
+                        byte[] data = new byte[SuperBlock.blockSize()];
+                        dedupIndex.forget(block);
+                        if (superblock.shares(block) == 0) {
+                            SuperBlock.readBlock(block, data);
+                        } else if ((block = unshare(fte, length, block, data)) == -1) { // a clone keeps the old tail
+                            return -1;
+                        }
+                        Arrays.fill(data, length % SuperBlock.blockSize(), SuperBlock.blockSize(), (byte) 0);
+                        SuperBlock.writeBlock(block, data);
+                    }
+                    releaseBlocks(inode, (length + SuperBlock.blockSize() - 1) / SuperBlock.blockSize());
+                } else if (length > inode.length) { // the new end may pass blocks fallocate reserved
+                    clearReserved(fte, inode.length, (length + SuperBlock.blockSize() - 1) / SuperBlock.blockSize());
+                }
+                inode.length = length;
+                inode.toDisk(fte.iNumber);
             }
+            // the pages of a region are locked before the inode, so they are cleared once it is unlocked
+            if (length < oldLength) {
+                for (MappedFile region : fte.mappings.toArray(new MappedFile[0])) {
+                    region.truncated(length);
+                }
+            }
+        }
+        return 0;
+    }
 
-        // finally writeback Inode
-        fileTableEntry.inode.toDisk(fileTableEntry.iNumber);
-        return true;
+    // shrinks a compressed file to length bytes: the chunk cut in two keeps zeros past the new end, and the slots
+    // of the chunks after it are freed. The caller holds the inode lock. Returns 0, or -1 if the disk is full.
+    private int truncateCompressed(FileTableEntry fte, int length) {
+        Inode inode = fte.inode;
+        int k = length / CompressedChunks.chunkSize();
+        int offset = length % CompressedChunks.chunkSize();
+        int cached = inode.chunks.cachedChunk();
+        if (cached > k || (cached == k && offset == 0)) { // changes past the new end are dropped, not stored
+            inode.chunks.forget();
+        }
+        if (offset != 0) {
+            byte[] data = loadChunk(fte, k, false);
+            if (data == null) {
+                return -1;
+            }
+            Arrays.fill(data, offset, CompressedChunks.chunkSize(), (byte) 0);
+            inode.chunks.changed();
+            if (storeChunk(fte) < 0) {
+                return -1;
+            }
+            k++;
+        }
+        releaseBlocks(inode, CompressedChunks.slot(k));
+        return 0;
     }
 
     // this function returns the size in bytes for the given file
@@ -0,0 +1,348 @@
+/*
+The consistency checker behind SysLib.fsck( ). It cross-checks the three places that describe the disk: the
+directory, the inodes with their index blocks, and the free-block bitmap and share counts of the superblock. Every
+block a live inode points to must be a data block marked in use, whose share count is one less than the number of
+references to it; an index block must belong to one inode alone; every block marked in use must be referenced; and
+an inode the directory does not name must hold nothing.
+The inode blocks are split among the tasks of a fork/join pool. Each task reads its inode blocks and the index
+blocks of their files, checks each inode on its own, and lists the blocks it references. The lists are then merged
+in inode order, so in a conflict over an index block the lower inode wins. With repair set, bad pointers become
+holes, unnamed inodes are emptied, unreachable directory entries are removed, and the bitmap and share counts are
+made to match.
+ */
+
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+class FileSystemCheck {
+    private final int inodesPerBlock = SuperBlock.blockSize() / Inode.iNodeSize;
+
+    private final SuperBlock superblock;
+    private final Directory directory;
+    private final boolean repair;
+    private boolean[] live; // live[i] is set when the directory names inode i
+    private int[] owner; // owner[b] is the first inode found referencing block b, or -1
+    private int[] references; // references[b] counts the references to block b
+    private boolean[] isIndex; // isIndex[b] is set when block b is an index block
+    private int problems = 0;
+
+    FileSystemCheck(SuperBlock superblock, Directory directory, boolean repair) {
+        this.superblock = superblock;
+        this.directory = directory;
+        this.repair = repair;
+    }
+
+    // what one task found in its inodes
+    private static class Scan {
+        final ArrayList<Inode> inodes = new ArrayList<Inode>();      // every inode read, in order
+        final ArrayList<ArrayList<IndexBlock>> indexes = new ArrayList<ArrayList<IndexBlock>>(); // the index blocks of each
+        final ArrayList<String> messages = new ArrayList<String>();  // problems found
+        final ArrayList<Integer> changed = new ArrayList<Integer>(); // inodes repaired and to be written back
+
+        void add(Scan other) {
+            inodes.addAll(other.inodes);
+            indexes.addAll(other.indexes);
+            messages.addAll(other.messages);
+            changed.addAll(other.changed);
+        }
+    }
+
+    // one index block of an inode's trees, read and checked
+    private static class IndexBlock {
+        final int block;          // where the index block is
+        final int height;         // 1 when its entries point to data blocks, more when they point to index blocks
+        final int[] entries;      // its entries, with bad pointers already turned into holes
+        final IndexBlock parent;  // the index block pointing to this one, or null for the root of a tree
+        final int slot;           // the entry of parent pointing here, or for a root, the tree it is the root of
+        boolean dirty = false;    // set when entries differ from the disk
+        boolean dropped = false;  // set when this block, or one above it, was removed from its inode
+
+        IndexBlock(int block, int height, IndexBlock parent, int slot) {
+            this.block = block;
+            this.height = height;
+            this.parent = parent;
+            this.slot = slot;
+            entries = Inode.readIndex(block);
+        }
+    }
+
+    // checks the inodes stored in inode blocks [first, last)
+    private class InodeScan extends RecursiveTask<Scan> {
+        private static final long serialVersionUID = 1L;
+        private final int first;
+        private final int last;
+
+        InodeScan(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        protected Scan compute() {
+            if (last - first > 1) { // split the range until each task has one inode block
+                int middle = (first + last) / 2;
+                InodeScan left = new InodeScan(first, middle);
+                left.fork();
+                Scan scan = new InodeScan(middle, last).compute();
+                Scan result = left.join();
+                result.add(scan);
+                return result;
+            }
+            Scan scan = new Scan();
+            byte[] data = new byte[SuperBlock.blockSize()];
+            SuperBlock.readBlock(1 + first, data);
+            int end = Math.min((first + 1) * inodesPerBlock, superblock.totalInodes);
+            for (int i = first * inodesPerBlock; i < end; i++) {
+                Inode inode = new Inode(i, data);
+                scan.inodes.add(inode);
+                scan.indexes.add(checkInode(i, inode, scan));
+            }
+            return scan;
+        }
+    }
+
+    // runs the check and returns the number of problems found
+    int run() {
+        checkDirectory();
+        int inodeBlocks = (superblock.totalInodes + inodesPerBlock - 1) / inodesPerBlock;
+        Scan scan = ForkJoinPool.commonPool().invoke(new InodeScan(0, inodeBlocks));
+        for (String message : scan.messages) {
+            report(message);
+        }
+        mergeReferences(scan);
+        checkBitmap();
+        if (repair) {
+            superblock.recount(); // the free count kept on disk may be as stale as the bitmap was
+            for (int iNumber : new TreeSet<Integer>(scan.changed)) {
+                scan.inodes.get(iNumber).toDisk(iNumber);
+            }
+        }
+        return problems;
+    }
+
+    // removes directory entries that cannot be reached from the root, then notes which inodes are live
+    private void checkDirectory() {
+        for (int iNumber : directory.unlinked()) {
+            report("entry " + iNumber + " cannot be reached from the root" + repaired(", removed"));
+            if (repair) {
+                directory.unlink(iNumber);
+            }
+        }
+        live = new boolean[superblock.totalInodes];
+        for (int i = 0; i < live.length; i++) {
+            live[i] = directory.isLinked(i);
+        }
+    }
+
+    // checks one inode on its own and returns the index blocks of its trees, each after the one pointing to it
+    // runs inside the fork/join tasks, so it only reads shared state and records into scan
+    private ArrayList<IndexBlock> checkInode(int iNumber, Inode inode, Scan scan) {
+        ArrayList<IndexBlock> indexes = new ArrayList<IndexBlock>();
+        if (!live[iNumber]) {
+            if (inode.length != 0 || hasBlocks(inode)) {
+                scan.messages.add("inode " + iNumber + " holds data but is not in the directory" + repaired(", emptied"));
+                clear(inode);
+                scan.changed.add(iNumber);
+            }
+            return indexes;
+        }
+        int limit = (inode.inline != null) ? Inode.inlineSize
+                : (inode.chunks != null) ? CompressedChunks.maxLength() : Inode.maxBlocks() * SuperBlock.blockSize();
+        if (inode.length < 0 || inode.length > limit) {
+            scan.messages.add("inode " + iNumber + " has length " + inode.length + repaired(", set to " + limit));
+            inode.length = limit;
+            scan.changed.add(iNumber);
+        }
+        if (inode.inline != null) {
+            return indexes;
+        }
+        for (int i = 0; i < Inode.directSize; i++) {
+            if (inode.direct[i] != -1 && !isDataBlock(inode.direct[i])) {
+                scan.messages.add("inode " + iNumber + " points to block " + inode.direct[i] + repaired(", cleared"));
+                inode.direct[i] = -1;
+                scan.changed.add(iNumber);
+            }
+        }
+        for (int level = 1; level <= Inode.levels; level++) {
+            int root = inode.indirect[level - 1];
+            if (root == -1) {
+                continue;
+            }
+            if (!isDataBlock(root)) {
+                scan.messages.add("inode " + iNumber + " has index block " + root + repaired(", cleared"));
+                inode.indirect[level - 1] = -1;
+                scan.changed.add(iNumber);
+                continue;
+            }
+            // read the tree one level at a time; each index block is added after its parent
+            int first = indexes.size();
+            indexes.add(new IndexBlock(root, level, null, level - 1));
+            for (int n = first; n < indexes.size(); n++) {
+                IndexBlock index = indexes.get(n);
+                for (int i = 0; i < index.entries.length; i++) {
+                    int entry = index.entries[i];
+                    if (entry == -1) {
+                        continue;
+                    }
+                    if (!isDataBlock(entry)) {
+                        scan.messages.add("inode " + iNumber + " index block " + index.block + " entry " + i
+                                + " points to block " + entry + repaired(", cleared"));
+                        index.entries[i] = -1;
+                        index.dirty = true;
+                    } else if (index.height > 1) {
+                        indexes.add(new IndexBlock(entry, index.height - 1, index, i));
+                    }
+                }
+            }
+        }
+        return indexes; // the index blocks repaired here are written once mergeReferences( ) knows they are this inode's
+    }
+
+    // counts the references to every block, in inode order. Data blocks may be shared by clones, but an index block
+    // belongs to one inode alone, so a later reference that conflicts with an index block is dropped, together with
+    // everything below it.
+    private void mergeReferences(Scan scan) {
+        owner = new int[superblock.totalBlocks];
+        references = new int[superblock.totalBlocks];
+        isIndex = new boolean[superblock.totalBlocks];
+        for (int b = 0; b < owner.length; b++) {
+            owner[b] = -1;
+        }
+        for (int iNumber = 0; iNumber < scan.inodes.size(); iNumber++) {
+            Inode inode = scan.inodes.get(iNumber);
+            for (int i = 0; i < Inode.directSize; i++) {
+                if (inode.direct[i] != -1 && !claim(inode.direct[i], iNumber, false)) {
+                    inode.direct[i] = -1;
+                    scan.changed.add(iNumber);
+                }
+            }
+            ArrayList<IndexBlock> indexes = scan.indexes.get(iNumber);
+            for (IndexBlock index : indexes) {
+                if (index.parent != null && index.parent.dropped) {
+                    index.dropped = true;
+                    continue;
+                }
+                if (!claim(index.block, iNumber, true)) { // the block is already in use elsewhere
+                    index.dropped = true;
+                    if (index.parent == null) {
+                        inode.indirect[index.slot] = -1;
+                        scan.changed.add(iNumber);
+                    } else {
+                        index.parent.entries[index.slot] = -1;
+                        index.parent.dirty = true;
+                    }
+                    continue;
+                }
+                if (index.height > 1) { // the entries are claimed as index blocks when their turn comes
+                    continue;
+                }
+                for (int i = 0; i < index.entries.length; i++) {
+                    if (index.entries[i] != -1 && !claim(index.entries[i], iNumber, false)) {
+                        index.entries[i] = -1;
+                        index.dirty = true;
+                    }
+                }
+            }
+            for (IndexBlock index : indexes) {
+                if (index.dirty && !index.dropped) {
+                    writeIndex(index);
+                }
+            }
+        }
+    }
+
+    // records a reference from iNumber to block, or reports a conflict with an index block and returns false
+    private boolean claim(int block, int iNumber, boolean asIndex) {
+        if (isIndex[block] || (asIndex && owner[block] != -1)) {
+            int first = owner[block];
+            report("block " + block + " is used by inode " + first + " and inode " + iNumber
+                    + ", but an index block cannot be shared" + repaired(", removed from inode " + iNumber));
+            return false;
+        }
+        if (owner[block] == -1) {
+            owner[block] = iNumber;
+        }
+        references[block]++;
+        isIndex[block] = asIndex;
+        return true;
+    }
+
+    // makes the free-block bitmap and the share counts agree with the references the inodes hold
+    private void checkBitmap() {
+        for (int b = 0; b < superblock.totalBlocks; b++) {
+            if (superblock.isReserved(b)) {
+                continue;
+            }
+            boolean allocated = superblock.isAllocated(b);
+            if (allocated && references[b] == 0) {
+                report("block " + b + " is in use but belongs to no inode" + repaired(", freed"));
+                if (repair) {
+                    superblock.setShares(b, 0);
+                    superblock.returnBlock(b);
+                }
+            } else if (!allocated && references[b] > 0) {
+                report("block " + b + " of inode " + owner[b] + " is marked free" + repaired(", marked in use"));
+                if (repair) {
+                    superblock.claimBlock(b);
+                    superblock.setShares(b, references[b] - 1);
+                }
+            } else if (allocated && superblock.shares(b) != references[b] - 1) {
+                report("block " + b + " has " + references[b] + " references but a share count of "
+                        + superblock.shares(b) + repaired(", corrected"));
+                if (repair) {
+                    superblock.setShares(b, references[b] - 1);
+                }
+            }
+        }
+    }
+
+    private boolean isDataBlock(int block) {
+        return block >= 0 && block < superblock.totalBlocks && !superblock.isReserved(block);
+    }
+
+    private boolean hasBlocks(Inode inode) {
+        for (int i = 0; i < Inode.directSize; i++) {
+            if (inode.direct[i] != -1) {
+                return true;
+            }
+        }
+        for (int i = 0; i < Inode.levels; i++) {
+            if (inode.indirect[i] != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // empties an inode, leaving its blocks to be freed by the bitmap check
+    private void clear(Inode inode) {
+        inode.length = 0;
+        inode.count = 0;
+        inode.flag = 0;
+        for (int i = 0; i < Inode.directSize; i++) {
+            inode.direct[i] = -1;
+        }
+        for (int i = 0; i < Inode.levels; i++) {
+            inode.indirect[i] = -1;
+        }
+        inode.inline = new byte[Inode.inlineSize];
+        inode.chunks = null;
+    }
+
+    private void writeIndex(IndexBlock index) {
+        if (repair) {
+            Inode.writeIndex(index.block, index.entries);
+        }
+        index.dirty = false;
+    }
+
+    private String repaired(String action) {
+        return repair ? action : "";
+    }
+
+    private void report(String message) {
+        problems++;
+        SysLib.cout("fsck: " + message + "\n");
+    }
+}
@@ -1,17 +1,38 @@
 /*
 Derek Willms, Brian Quigley, Robert Brandenburg
 File table keeps track of all the files currently in ThreadOS
+Every open inode has one shared in-memory record holding its Inode and its reader/writer state. Any number of
+entries may read an inode at once, but a writer has it to itself, and waiting writers keep new readers out.
+Threads wait on the record of the inode they want, so closing one file never wakes threads waiting on another.
  */
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class FileTable {
-    private Vector table; // the actual entity of this file table
+    private ConcurrentHashMap<Integer, OpenInode> table; // the actual entity of this file table, keyed by iNumber
     private Directory dir; // the root directory
 
+    // the state shared by all file table entries open on one inode
+    private static class OpenInode {
+        Inode inode;                // the one in-memory copy of this inode, null until the first holder reads it
+        final HashSet<FileTableEntry> entries = new HashSet<FileTableEntry>(); // entries open on this inode
+        int holders = 0;            // entries plus threads still waiting to open this inode
+        int readers = 0;            // entries open for reading
+        boolean writer = false;     // true while an entry is open for writing
+        int waitingWriters = 0;     // writers blocked until the readers and writer leave
+        boolean closed = false;     // set once removed from the table
+
+        OpenInode(Inode inode) {
+            this.inode = inode;
+        }
+    }
+
     // constructor
     public FileTable(Directory dir) {
-        table = new Vector(); // instantiate a file (structure) table
+        table = new ConcurrentHashMap<Integer, OpenInode>(); // instantiate a file (structure) table
         this.dir = dir; // receive a reference to the directory from the file system
     }
 
@@ -20,93 +41,172 @@ public class FileTable {
     // increment this inode's count
     // immediately write back this inode to the disk
     // return a reference to this file (structure) table entry
-    public synchronized FileTableEntry falloc(String filename, String mode) {
-        short iNumber; // file number
-        Inode inode = null;
-        boolean needNode = true;
-        if (filename.equals("/")) { // root directory = 0
-            iNumber = 0;
-        } else {
-            iNumber = dir.namei(filename);
-        }
-        while (true) {
-            if (iNumber < 0)
-                break;
-            // create an inode with the number given
-            inode = new Inode(iNumber);
-            if (mode.equals("r")) { // read
-                if (inode.flag == 0) {
-                    inode.flag = 1;
-                    // else if read, write, or delete try waiting
-                    // to see if it's free
-                } else if (inode.flag > 1) {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                    }
-                    // woke up so restart
-                    continue;
+    public FileTableEntry falloc(String filename, String mode) {
+        boolean reading = mode.equals("r");
+        int iNumber; // file number
+        OpenInode open;
+        // the directory the file is in stays locked until the inode is held, so nobody else makes the same name
+        ReentrantLock locked = dir.lock(filename);
+        try {
+            if (filename.equals("/")) { // root directory = 0
+                iNumber = 0;
+            } else {
+                iNumber = dir.namei(filename);
+                if (dir.isDirectory(iNumber)) { // directories are changed through mkdir/rmdir only
+                    return null;
                 }
-                needNode = false; // do not need a new inode
-                break;
             }
-            // not a read
-            else {
-                // if it's unused or write change to read now
-                // since write is finished
-                if (inode.flag == 0 || inode.flag == 3) {
-                    inode.flag = 2;
-                    needNode = false; // do not need a new inode
-                    break;
+            if (iNumber < 0) {
+                if (reading) { // nothing to read
+                    return null;
                 }
-                if (inode.flag == 1 || inode.flag == 2) { // used or read already
-                    inode.flag = 4;
-                    inode.toDisk(iNumber);
+                // not reading, so allocate a new inode; registering it before the directory is
+                // released keeps other threads from reading the stale copy on disk
+                iNumber = dir.ialloc(filename);
+                if (iNumber < 0) {
+                    return null;
                 }
-                try {
-                    wait();
-                } catch (InterruptedException e) {
+                table.put(iNumber, new OpenInode(new Inode()));
+            }
+            // the inode is held before the directory is released, so while a thread holds the whole tree locked,
+            // a table found empty stays empty
+            open = hold(iNumber);
+        } finally {
+            dir.unlock(locked);
+        }
+
+        synchronized (open) {
+            if (open.inode == null) { // read outside the directory lock, so opens of other files go on meanwhile
+                open.inode = new Inode(iNumber);
+            }
+            if (reading) {
+                // readers share the inode, but give way to any writer
+                while (open.writer || open.waitingWriters > 0) {
+                    waitOn(open);
+                }
+                open.readers++;
+                open.inode.flag = 1;
+            } else {
+                // a writer needs the inode to itself
+                open.waitingWriters++;
+                while (open.writer || open.readers > 0) {
+                    waitOn(open);
                 }
+                open.waitingWriters--;
+                open.writer = true;
+                open.inode.flag = 2;
             }
+            // update count, send to disk, and add new file table entry to the table
+            open.inode.count++;
+            open.inode.toDisk(iNumber);
+            FileTableEntry fte = new FileTableEntry(open.inode, iNumber, mode);
+            open.entries.add(fte);
+            return fte;
+        }
+    }
 
+    // returns the record of inode iNumber, adding one if the inode is not open, after counting the caller among
+    // its holders so the record stays in the table
+    private OpenInode hold(int iNumber) {
+        while (true) {
+            OpenInode open = table.get(iNumber);
+            if (open == null) {
+                OpenInode added = new OpenInode(null);
+                open = table.putIfAbsent(iNumber, added);
+                if (open == null) {
+                    open = added;
+                }
+            }
+            synchronized (open) {
+                if (!open.closed) { // otherwise the last entry left while we looked it up, so start over
+                    open.holders++;
+                    return open;
+                }
+            }
         }
-        if (!mode.equals("r") && needNode == true) { // not reading and need to allocate a new node
-            iNumber = dir.ialloc(filename);
-            inode = new Inode();
-            inode.flag = 2;
-        } else if (needNode == true) { // if we still need a node
-            return null;
+    }
+
+    // waits until another entry on the same inode is freed
+    private void waitOn(OpenInode open) {
+        if (Trace.enabled) {
+            Trace.begin("wait", "open file");
+        }
+        try {
+            open.wait();
+        } catch (InterruptedException e) {
+        }
+        if (Trace.enabled) {
+            Trace.end("wait", "open file");
         }
-        // update count, send to disk, and add new file table entry to the table
-        inode.count++;
-        inode.toDisk(iNumber);
-        FileTableEntry fte = new FileTableEntry(inode, iNumber, mode);
-        table.addElement(fte);
-        return fte;
     }
 
     // receive a file table entry reference
     // save the corresponding inode to the disk
     // free this file table entry.
     // return true if this file table entry found in my table
-    public synchronized boolean ffree(FileTableEntry filetableentry) {
-        // attempt to remove entry from table
-        if (table.removeElement(filetableentry)) {
-            // update table counts to reflect removal
-            filetableentry.inode.count--;
-            filetableentry.inode.flag = 0;
-            filetableentry.inode.toDisk(filetableentry.iNumber);
-            filetableentry = null; // deallocate
-            notify();
+    public boolean ffree(FileTableEntry filetableentry) {
+        OpenInode open = table.get(filetableentry.iNumber);
+        if (open == null) {
+            return false;
+        }
+        synchronized (open) {
+            // attempt to remove entry from its inode
+            if (!open.entries.remove(filetableentry)) {
+                // could not remove entry
+                return false;
+            }
+            if (filetableentry.mode.equals("r")) {
+                open.readers--;
+            } else {
+                open.writer = false;
+            }
+            open.holders--;
+            // update inode counts to reflect removal
+            open.inode.count--;
+            open.inode.flag = (short) (open.readers > 0 ? 1 : 0);
+            open.inode.toDisk(filetableentry.iNumber);
+            if (open.holders == 0) { // nobody holds or waits for this inode any more
+                open.closed = true;
+                table.remove(filetableentry.iNumber, open);
+            }
+            // wake up only the threads waiting for this inode
+            open.notifyAll();
             return true;
         }
-        // could not remove entry
-        return false;
+    }
+
+    // returns the number of file table entries open, and the number of inodes they are open on
+    public int[] openCounts() {
+        int entries = 0;
+        int inodes = 0;
+        for (OpenInode open : table.values()) {
+            synchronized (open) {
+                entries += open.entries.size();
+            }
+            inodes++;
+        }
+        return new int[]{entries, inodes};
+    }
+
+    // returns every file table entry open for writing at the moment
+    public ArrayList<FileTableEntry> writers() {
+        ArrayList<FileTableEntry> writers = new ArrayList<FileTableEntry>();
+        for (OpenInode open : table.values()) {
+            synchronized (open) {
+                for (FileTableEntry fte : open.entries) {
+                    if (fte.mode != "r") {
+                        writers.add(fte);
+                    }
+                }
+            }
+        }
+        return writers;
     }
 
     // return if table is empty
-    // should be called before starting a format
-    public synchronized boolean fempty() {
+    // should be called before starting a format; called with the directory tree locked, the answer holds until it is
+    // unlocked, since no open can get past the directory meanwhile
+    public boolean fempty() {
         return table.isEmpty();
     }
-}
\ No newline at end of file
+}
@@ -2,19 +2,29 @@
 Derek Willms, Brian Quigley, Robert Brandenburg
 File Table Entry represents a single file with the file table
  */
+import java.util.Vector;
+
 public class FileTableEntry {  // Each table entry should have
     public int seekPtr;        //    a file seek pointer
     public final Inode inode;  //    a reference to an inode
-    public final short iNumber;//    this inode number
+    public final int iNumber;  //    this inode number
     public int count;          //    a count to maintain #threads sharing this
     public final String mode;  //    "r", "w", "w+", or "a"
+    public final Vector<MappedFile> mappings; // regions mapped through this entry
+    public final String procName; // the name of a virtual file under /proc, otherwise null
+
+    FileTableEntry(Inode i, int inumber, String m) {
+        this(i, inumber, m, null);
+    }
 
-    FileTableEntry(Inode i, short inumber, String m) {
+    FileTableEntry(Inode i, int inumber, String m, String proc) {
         seekPtr = 0;           // the seek pointer is set to the file top.
         inode = i;
         iNumber = inumber;
         count = 1;           // at least one thread is using this entry.
         mode = m;            // once file access mode is set, it never changes.
+        mappings = new Vector<MappedFile>();
+        procName = proc;
 
         if (mode.equals("a"))
             seekPtr = inode.length;
@@ -1,32 +1,72 @@
 /**
  * Derek Willms, Brian Quigley, Robert Brandenburg
  * Each inode describes one file. Our inode is a simplified version of the Unix inode (as explained in our textbook.)
- * It includes 12 pointers of the index block. The first 11 of these pointers point to direct blocks.
- * The last pointer points to an indirect block. In addition, each inode includes:
+ * It includes 6 block pointers of 32 bits each. The first 3 of these pointers point to direct blocks; the other 3
+ * point to the roots of index trees of one, two and three levels, whose index blocks hold a pointer per 4 bytes of
+ * the block size, and a disk can have billions of blocks. A file stays under a gigabyte, as the top two bits of its
+ * length on disk are flags. In addition, each inode includes:
  * (1) the length of the corresponding file,
  * (2) the number of file (structure) table entries that point to this inode, and
  * (3) the flag to indicate if it is unused (= 0), used(= 1), or in some other status
- * 16 inodes can be stored in one block.
+ * 16 inodes can be stored in one disk block, and so blockSize / 32 in one file system block; an inode is read and
+ * written through the disk block that holds it alone.
+ * While a file is open, its inode keeps the index blocks it used last in memory, so reading or writing a large file
+ * looks its blocks up without reading the index blocks on the way again. Index blocks are written through, so the
+ * disk always holds what the cache does.
+ * A pointer of -1 marks a hole: a block of the file that was never written, takes no disk block, and reads as zeros.
+ * Block 0 is the superblock, so a pointer of 0 is read as a hole as well, and an inode block of zeros holds
+ * 16 unused inodes.
+ * A file of up to 24 bytes keeps its contents inline, in the space of the pointers, and needs no data block at all.
+ * On disk the high bit of the length marks such an inode; it moves to blocks as soon as it grows past 24 bytes.
+ * The next bit marks a compressed file, whose pointers are grouped into the chunk slots of CompressedChunks.
  */
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class Inode {
     public static final int iNodeSize = 32;
-    public static final int directSize = 11;        // number of direct pointers to blocks
+    public static final int directSize = 3;         // number of direct pointers to blocks
+    public static final int levels = 3;             // number of index trees, of one, two and three levels
+    public static final int inlineSize = 24;        // bytes of file contents that fit in place of the pointers
+    private static final int INLINE = 0x80000000;   // set in the length on disk when the contents are inline
+    private static final int COMPRESSED = 0x40000000; // set in the length on disk when the file is compressed
     // flags to represent the inode's current status
-    public static final int INDIRECT_IN_USE = -1;  
+    public static final int INDIRECT_IN_USE = -1;
     public static final int INDIRECT_EMPTY = 0;
     public static final int INDIRECT_AVAILABLE = 1;
     public int length;                              // number of bytes in the file associated with this inode
     public short count;                             // number of file table entries pointing to this inode
     public short flag;                              // 0 = unused, 1 = used, etc
-    public short[] direct = new short[directSize];  // direct pointers to blocks
-    public short indirect;                          // an indirect pointer to a block
+    public int[] direct = new int[directSize];      // direct pointers to blocks
+    public int[] indirect = new int[levels];        // indirect[k] is the root index block of the tree of k + 1 levels
+    public byte[] inline;                           // the file contents when stored inline, otherwise null
+    public CompressedChunks chunks;                 // the chunk cache of a compressed file, otherwise null
+    private static final int cachedIndexBlocks = 16; // the most index blocks one inode keeps in memory
+    // toDisk( ) reads and rewrites the disk block its inode shares with 15 others, holding the lock of that block
+    // here, so that two inodes written at once do not undo each other; blocks share the locks in turn
+    private static final Object[] blockLocks = new Object[64];
+    static {
+        for (int i = 0; i < blockLocks.length; i++) {
+            blockLocks[i] = new Object();
+        }
+    }
+    // the entries of the index blocks used last, by block number, the least recently used first
+    private final LinkedHashMap<Integer, int[]> indexCache = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+            return size() > cachedIndexBlocks;
+        }
+    };
 
     // constructor with given number for inode
-    public Inode(short iNumber) {
-        int blockNumber = 1 + iNumber / 16;
-        byte[] data = new byte[Disk.blockSize];
-        SysLib.rawread(blockNumber, data);
-        int offset = (iNumber % 16) * iNodeSize;
+    public Inode(int iNumber) {
+        this(iNumber, readBlock(iNumber));
+    }
+
+    // constructor for inode iNumber out of its inode block, already read from disk
+    public Inode(int iNumber, byte[] data) {
+        int offset = (iNumber % (data.length / iNodeSize)) * iNodeSize;
 
         length = SysLib.bytes2int(data, offset);
         offset += 4;
@@ -35,11 +75,45 @@ public class Inode {
         flag = SysLib.bytes2short(data, offset);
         offset += 2;
 
+        if ((length & INLINE) != 0) { // the pointers hold the file contents
+            length &= ~INLINE;
+            inline = new byte[inlineSize];
+            System.arraycopy(data, offset, inline, 0, inlineSize);
+            Arrays.fill(direct, -1);
+            Arrays.fill(indirect, -1);
+            return;
+        }
+        if ((length & COMPRESSED) != 0) {
+            length &= ~COMPRESSED;
+            chunks = new CompressedChunks();
+        }
+        boolean blank = length == 0 && count == 0 && flag == 0;
         for (int i = 0; i < directSize; i++) {
-            direct[i] = SysLib.bytes2short(data, offset);
-            offset += 2;
+            direct[i] = pointer(SysLib.bytes2int(data, offset));
+            blank &= SysLib.bytes2int(data, offset) == 0;
+            offset += 4;
+        }
+        for (int i = 0; i < levels; i++) {
+            indirect[i] = pointer(SysLib.bytes2int(data, offset));
+            blank &= SysLib.bytes2int(data, offset) == 0;
+            offset += 4;
         }
-        indirect = SysLib.bytes2short(data, offset);
+        if (blank && chunks == null) { // never used since the disk was formatted, so a new file starts out inline
+            inline = new byte[inlineSize];
+        }
+    }
+
+    // reads the disk block holding inode iNumber
+    private static byte[] readBlock(int iNumber) {
+        byte[] data = new byte[Disk.blockSize];
+        SysLib.rawread(diskBlockOf(iNumber), data);
+        return data;
+    }
+
+    // returns the disk block holding inode iNumber, inside file system block 1 + iNumber / (blockSize / 32)
+    private static int diskBlockOf(int iNumber) {
+        int perBlock = SuperBlock.blockSize() / iNodeSize;
+        return (1 + iNumber / perBlock) * (SuperBlock.blockSize() / Disk.blockSize) + iNumber % perBlock / 16;
     }
 
     // default constructor
@@ -47,20 +121,19 @@ public class Inode {
         length = 0;
         count = 0;
         flag = 0;
-        for (int i = 0; i < directSize; i++) {
-            direct[i] = -1; // intialize each index to -1 (unused)
-        }
-        indirect = -1;
+        Arrays.fill(direct, -1); // intialize each index to -1 (unused)
+        Arrays.fill(indirect, -1);
+        inline = new byte[inlineSize]; // a new file starts out inline
     }
 
     //save to disk as the ith node
-    public void toDisk(short iNumber) {
+    public void toDisk(int iNumber) {
         // array for the data to get values
         byte[] data = new byte[iNodeSize];
         int offset = 0;
 
         // get the length
-        SysLib.int2bytes(length, data, offset);
+        SysLib.int2bytes(inline != null ? length | INLINE : chunks != null ? length | COMPRESSED : length, data, offset);
         offset += 4;
         // get the count
         SysLib.short2bytes(count, data, offset);
@@ -69,104 +142,391 @@ public class Inode {
         SysLib.short2bytes(flag, data, offset);
         offset += 2;
 
-        // get the pointers
-        for (int i = 0; i < directSize; i++) {
-            SysLib.short2bytes(direct[i], data, offset);
-            offset += 2;
+        if (inline != null) { // the contents take the place of the pointers
+            System.arraycopy(inline, 0, data, offset, inlineSize);
+        } else {
+            // get the pointers
+            for (int i = 0; i < directSize; i++) {
+                SysLib.int2bytes(direct[i], data, offset);
+                offset += 4;
+            }
+            // get the index tree roots
+            for (int i = 0; i < levels; i++) {
+                SysLib.int2bytes(indirect[i], data, offset);
+                offset += 4;
+            }
         }
-        // get final indirect
-        SysLib.short2bytes(indirect, data, offset);
 
         // read new data
-        int block = 1 + iNumber / 16;
+        int block = diskBlockOf(iNumber);
         byte[] newData = new byte[Disk.blockSize];
-        SysLib.rawread(block, newData);
-        offset = iNumber % 16 * iNodeSize;
+        synchronized (blockLocks[block % blockLocks.length]) {
+            SysLib.rawread(block, newData);
+            offset = iNumber % 16 * iNodeSize;
 
-        // copy the new data
-        System.arraycopy(data, 0, newData, offset, iNodeSize);
-        // write back new data
-        SysLib.rawwrite(block, newData);
+            // copy the new data
+            System.arraycopy(data, 0, newData, offset, iNodeSize);
+            // write back new data
+            SysLib.rawwrite(block, newData);
+        }
     }
 
-    // sets index block at given block number
-    // returns false if any any of the directs are not set
-    public boolean setIndexBlock(short indexBlockNumber) {
-        // loop over direct array, and if any are -1, then its not set and return false
-        for (int i = 0; i < directSize; i++) {
-            if (direct[i] == -1) {
-                return false;
+    // returns the number of block pointers in one index block
+    public static int pointersPerBlock() {
+        return SuperBlock.blockSize() / 4;
+    }
+
+    // returns the number of block indexes one pointer covers at the given height in an index tree,
+    // where a leaf entry, at height 0, covers one block; with large blocks this passes the int range
+    public static long span(int height) {
+        long span = 1;
+        for (int i = 0; i < height; i++) {
+            span *= pointersPerBlock();
+        }
+        return span;
+    }
+
+    // returns the number of levels of the index tree holding block index i, which is past the direct blocks
+    private static int levelOf(int i) {
+        long rel = i - directSize;
+        for (int level = 1; level < levels; level++) {
+            if (rel < span(level)) {
+                return level;
             }
+            rel -= span(level);
         }
+        return levels;
+    }
 
-        if (indirect != -1) {
-            return false;
-        } else {
-            indirect = indexBlockNumber;
-            byte[] data = new byte[Disk.blockSize];
+    // returns the first block index the index tree of the given number of levels covers
+    private static long firstOf(int level) {
+        long first = directSize;
+        for (int l = 1; l < level; l++) {
+            first += span(l);
+        }
+        return first;
+    }
 
-            for (int i = 0; i < Disk.blockSize / 2; i++) {
-                SysLib.short2bytes((short) -1, data, i * 2);
-            }
+    // returns the entry of an index block at the given height that leads to relative block index rel
+    private static int slot(int rel, int height) {
+        return (int) (rel / span(height - 1) % pointersPerBlock());
+    }
+
+    // turns a pointer read from disk into a block number or -1 for a hole
+    private static int pointer(int block) {
+        return (block > 0) ? block : -1;
+    }
+
+    // reads the entries of an index block
+    public static int[] readIndex(int block) {
+        byte[] data = new byte[SuperBlock.blockSize()];
+        SuperBlock.readBlock(block, data);
+        int[] entries = new int[pointersPerBlock()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = pointer(SysLib.bytes2int(data, i * 4));
+        }
+        return entries;
+    }
 
-            SysLib.rawwrite(indexBlockNumber, data);
+    // writes the entries of an index block
+    public static void writeIndex(int block, int[] entries) {
+        byte[] data = new byte[SuperBlock.blockSize()];
+        for (int i = 0; i < entries.length; i++) {
+            SysLib.int2bytes(entries[i], data, i * 4);
+        }
+        SuperBlock.writeBlock(block, data);
+    }
+
+    // returns the entries of one of this file's index blocks, reading it only if it is not cached; a caller that
+    // changes them writes them back with storeIndex( )
+    private int[] index(int block) {
+        int[] entries = indexCache.get(block);
+        if (entries == null) {
+            entries = readIndex(block);
+            indexCache.put(block, entries);
+        }
+        return entries;
+    }
+
+    // writes the entries of one of this file's index blocks and caches them
+    private void storeIndex(int block, int[] entries) {
+        writeIndex(block, entries);
+        indexCache.put(block, entries);
+    }
+
+    // returns the index block at height 1 whose entry holds block index i, or -1 if the tree is missing part of
+    // the way there; i must lie past the direct blocks
+    private int leafIndex(int i) {
+        int level = levelOf(i);
+        int rel = (int) (i - firstOf(level));
+        int node = indirect[level - 1];
+        for (int height = level; height > 1 && node > 0; height--) {
+            node = index(node)[slot(rel, height)];
+        }
+        return node;
+    }
+
+    // sets the first index block missing on the way to the block holding the given byte, filling it with holes
+    // returns false if the byte needs no index block or every one it needs is already there
+    public boolean setIndexBlock(int pointer, int indexBlockNumber) {
+        int i = pointer / SuperBlock.blockSize();
+        if (i < directSize || i >= maxBlocks()) {
+            return false;
+        }
+        int level = levelOf(i);
+        int rel = (int) (i - firstOf(level));
+        int[] holes = new int[pointersPerBlock()];
+        Arrays.fill(holes, -1);
+        if (indirect[level - 1] < 0) {
+            storeIndex(indexBlockNumber, holes);
+            indirect[level - 1] = indexBlockNumber;
             return true;
         }
+        int node = indirect[level - 1];
+        for (int height = level; height > 1; height--) {
+            int[] entries = index(node);
+            int child = entries[slot(rel, height)];
+            if (child < 0) {
+                storeIndex(indexBlockNumber, holes);
+                entries[slot(rel, height)] = indexBlockNumber;
+                storeIndex(node, entries);
+                return true;
+            }
+            node = child;
+        }
+        return false;
     }
 
     // takes a byte index and returns the data from that block
     public int findBlockNumber(int byteNumber) {
-        // each block contains 512 bytes, so we find the block number by dividing the byteNumber by 512.
-        int blockNumber = byteNumber / Disk.blockSize;
+        // each block contains blockSize bytes, so we find the block number by dividing the byteNumber by it.
+        int blockNumber = byteNumber / SuperBlock.blockSize();
+        if (blockNumber < 0 || blockNumber >= maxBlocks()) {
+            return -1;
+        }
         if (blockNumber < directSize) {
             return direct[blockNumber];
         }
-        if (indirect < 0) {
+        int leaf = leafIndex(blockNumber);
+        if (leaf < 0) {
             return -1;
         }
-        byte[] data = new byte[Disk.blockSize];
-        SysLib.rawread(indirect, data);
-        int offset = (blockNumber - directSize) * 2;
-        return (int) SysLib.bytes2short(data, offset);
+        return index(leaf)[slot((int) (blockNumber - firstOf(levelOf(blockNumber))), 1)];
+    }
+
+    // returns the number of blocks the direct pointers and the index trees can address, within a file whose
+    // length stays clear of the INLINE and COMPRESSED bits
+    public static int maxBlocks() {
+        return (int) Math.min(firstOf(levels) + span(levels), (COMPRESSED - 1) / SuperBlock.blockSize());
+    }
+
+    // returns the first block index from start up to limit that is allocated (or, when allocated is false, that is
+    // a hole), or limit if there is none. Index blocks come through the cache, and a missing subtree is passed
+    // over as a whole.
+    public int nextBlock(int start, int limit, boolean allocated) {
+        int end = Math.min(limit, maxBlocks());
+        int i = Math.max(start, 0);
+        while (i < end) {
+            int block;
+            long covered = 1; // the block indexes, aligned around i, that block stands for
+            int rel = 0;
+            if (i < directSize) {
+                block = direct[i];
+            } else {
+                int level = levelOf(i);
+                rel = (int) (i - firstOf(level));
+                block = indirect[level - 1];
+                covered = span(level);
+                for (int height = level; height >= 1 && block > 0; height--) {
+                    block = index(block)[slot(rel, height)];
+                    covered = span(height - 1);
+                }
+            }
+            if ((block > 0) == allocated) {
+                return i;
+            }
+            i = (block > 0) ? i + 1 : (int) Math.min(end, i + covered - rel % covered);
+        }
+        return Math.max(start, limit);
+    }
+
+    // returns the number of index blocks missing for the file to hold the blocks from index 0 up to blocks
+    public int missingIndexBlocks(int blocks) {
+        int missing = 0;
+        for (int level = 1; level <= levels; level++) {
+            int n = (int) Math.min(blocks - firstOf(level), span(level));
+            if (n > 0) {
+                missing += missingBelow(indirect[level - 1], level, n);
+            }
+        }
+        return missing;
+    }
+
+    // returns the number of index blocks missing at or below node, at the given height, to hold its first n entries
+    private int missingBelow(int node, int height, int n) {
+        int missing = 0;
+        if (node < 0) { // the whole subtree is missing
+            for (int h = height; h >= 1; h--) {
+                missing += (int) ((n + span(h) - 1) / span(h));
+            }
+            return missing;
+        }
+        if (height == 1) {
+            return 0;
+        }
+        int[] entries = index(node);
+        long childSpan = span(height - 1);
+        for (int s = 0; s * childSpan < n; s++) {
+            missing += missingBelow(entries[s], height - 1, (int) Math.min(childSpan, n - s * childSpan));
+        }
+        return missing;
     }
 
     // attempts to write the given block and returns a code to represent the result of the attempt
-    // 0 = good to write, 1 = in use, 2 = indirect is empty
-    public int submitBlock(int pointer, short freeBlock) {
-        int location = pointer / Disk.blockSize;
+    // 1 = set, -1 = in use or past the largest file, 0 = an index block on the way is missing; see setIndexBlock
+    public int submitBlock(int pointer, int freeBlock) {
+        int location = pointer / SuperBlock.blockSize();
         if (location < directSize) { // if found in direct
             if (direct[location] >= 0) // in use if not clean (0)
                 return INDIRECT_IN_USE;
-            if ((location > 0) && (direct[(location - 1)] == -1)) // good to write
-                return INDIRECT_AVAILABLE;
             direct[location] = freeBlock; // update location
             return INDIRECT_AVAILABLE;
         }
-        if (indirect < 0) { // indirect empty
+        if (location >= maxBlocks()) { // past the largest possible file
+            return INDIRECT_IN_USE;
+        }
+        int leaf = leafIndex(location);
+        if (leaf < 0) { // indirect empty
             return INDIRECT_EMPTY;
         }
-        // read indirect into data and write after adjusting for offset
-        byte[] data = new byte[Disk.blockSize];
-        SysLib.rawread(indirect, data);
-        int offset = (location - directSize) * 2;
-        if (SysLib.bytes2short(data, offset) > 0) { // in use
+        // read the index block and write after adjusting for offset
+        int[] entries = index(leaf);
+        int slot = slot((int) (location - firstOf(levelOf(location))), 1);
+        if (entries[slot] > 0) { // in use
             return INDIRECT_IN_USE;
         }
-        SysLib.short2bytes(freeBlock, data, offset);
-        SysLib.rawwrite(indirect, data);
+        entries[slot] = freeBlock;
+        storeIndex(leaf, entries);
         return INDIRECT_AVAILABLE;
     }
 
-    // release the indirect and return the data
-    public byte[] releaseIndirect() {
-        // if indirect is valid,read the raw data, set to free and then return data
-        if (indirect >= 0) {
-            byte[] data = new byte[Disk.blockSize];
-            SysLib.rawread(indirect, data);
-            indirect = -1;
-            return data;
+    // points the block holding the given byte at a different disk block, as when a shared block is copied;
+    // the index blocks on the way must exist
+    public void replaceBlock(int pointer, int block) {
+        int location = pointer / SuperBlock.blockSize();
+        if (location < directSize) {
+            direct[location] = block;
+            return;
+        }
+        int leaf = leafIndex(location);
+        int[] entries = index(leaf);
+        entries[slot((int) (location - firstOf(levelOf(location))), 1)] = block;
+        storeIndex(leaf, entries);
+    }
+
+    // takes every block from block index first on away from the inode, together with the index blocks left
+    // without entries, and returns them all; the caller holds the inode lock, frees them and sends the inode to disk
+    public int[] takeBlocks(int first) {
+        indexCache.clear(); // the index blocks are pruned on disk, and some are freed
+        BlockList taken = new BlockList();
+        for (int i = Math.max(first, 0); i < directSize; i++) {
+            if (direct[i] > 0) {
+                taken.add(direct[i]);
+                direct[i] = -1;
+            }
+        }
+        for (int level = 1; level <= levels; level++) {
+            long from = Math.max(0, first - firstOf(level));
+            if (indirect[level - 1] > 0 && from < span(level)
+                    && prune(indirect[level - 1], level, (int) from, taken)) {
+                taken.add(indirect[level - 1]);
+                indirect[level - 1] = -1;
+            }
+        }
+        return taken.toArray();
+    }
+
+    // takes every pointer away from the inode at once and returns them, the direct ones followed by the index tree
+    // roots, or null if there were none; blocksOf( ) later finds every block they lead to
+    public int[] detachPointers() {
+        indexCache.clear();
+        int[] pointers = new int[directSize + levels];
+        boolean any = false;
+        for (int i = 0; i < directSize; i++) {
+            pointers[i] = direct[i];
+            any |= direct[i] > 0;
+            direct[i] = -1;
+        }
+        for (int i = 0; i < levels; i++) {
+            pointers[directSize + i] = indirect[i];
+            any |= indirect[i] > 0;
+            indirect[i] = -1;
+        }
+        return any ? pointers : null;
+    }
+
+    // returns every block that pointers, as returned by detachPointers( ), lead to, index blocks included
+    public static int[] blocksOf(int[] pointers) {
+        BlockList blocks = new BlockList();
+        for (int i = 0; i < directSize; i++) {
+            if (pointers[i] > 0) {
+                blocks.add(pointers[i]);
+            }
+        }
+        for (int level = 1; level <= levels; level++) {
+            int root = pointers[directSize + level - 1];
+            if (root > 0) {
+                prune(root, level, 0, blocks);
+                blocks.add(root);
+            }
+        }
+        return blocks.toArray();
+    }
+
+    // adds to taken every block below index block node, at the given height, that covers relative block index from
+    // or later, and clears their entries. Returns true if node is left without entries, in which case the caller
+    // takes node as well; otherwise node is written back if it changed.
+    private static boolean prune(int node, int height, int from, BlockList taken) {
+        int[] entries = readIndex(node);
+        boolean empty = true;
+        boolean changed = false;
+        long childSpan = span(height - 1);
+        for (int s = 0; s < entries.length; s++) {
+            int child = entries[s];
+            if (child < 0) {
+                continue;
+            }
+            long low = s * childSpan;
+            if (low + childSpan <= from) { // wholly before the cut
+                empty = false;
+            } else if (height == 1 || prune(child, height - 1, (int) Math.max(0, from - low), taken)) {
+                taken.add(child);
+                entries[s] = -1;
+                changed = true;
+            } else {
+                empty = false;
+            }
+        }
+        if (!empty && changed) {
+            writeIndex(node, entries);
+        }
+        return empty;
+    }
+
+    // a growing list of block numbers
+    private static class BlockList {
+        private int[] blocks = new int[16];
+        private int count = 0;
+
+        void add(int block) {
+            if (count == blocks.length) {
+                blocks = Arrays.copyOf(blocks, count * 2);
+            }
+            blocks[count++] = block;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(blocks, count);
         }
-        // else return null
-        return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,191 @@
+/*
+A submission and completion ring in the manner of Linux io_uring, letting a user thread hand the kernel many file
+operations in one system call. Requests are queued with open( ), read( ), write( ), pread( ), pwrite( ), seek( ) and
+close( ), which return the queued Request so its tag can be set and throw IllegalStateException once the ring is
+full, and SysLib.submit( ) runs every queued request in one kernel entry, looking up the caller's TCB once for all
+of them. Each finished request then waits in the completion ring, in the order it ran, until reap( ) or poll( )
+hands it back with its result: what the matching SysLib call would have returned.
+A request marked with link( ) is chained to the next one queued. A request given CHAIN_FD as its descriptor uses the
+one returned by the last open of its chain, so open, read, close of a file can be queued before its descriptor is
+known. When a request of a chain fails, the rest of the chain completes with CANCELED instead of running, except a
+close of the chain's descriptor, which still runs so a failed chain never leaks a descriptor. A chain ends at the
+last request submitted, linked or not.
+A ring belongs to the thread that submits it first, since descriptors belong to threads; only that thread may submit
+it again. So a ring may be made in a program's constructor, which runs on the thread that loads the program.
+ */
+
+public class IoRing {
+    public static final int CHAIN_FD = Integer.MIN_VALUE; // the descriptor opened earlier in the same chain
+    public static final int CANCELED = -2; // the result of a request skipped because its chain failed
+
+    // one queued operation and, once it completes, its result
+    public static class Request {
+        final int opcode;     // the Kernel system call number
+        final int fd;         // the file descriptor, or CHAIN_FD
+        final byte[] buffer;  // the bytes read into or written from
+        final int offset;     // the file position of pread and pwrite, or the offset of seek
+        final int whence;     // the whence of seek
+        final String path;    // the file name and mode of open
+        final String mode;
+        boolean linked;       // set when the next request belongs to the same chain
+        int result;           // what the request returned once completed
+        private Object tag;   // the caller's own reference, handed back with the completion
+
+        Request(int opcode, int fd, byte[] buffer, int offset, int whence, String path, String mode) {
+            this.opcode = opcode;
+            this.fd = fd;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.whence = whence;
+            this.path = path;
+            this.mode = mode;
+        }
+
+        // chains this request to the next one queued
+        public Request link() {
+            linked = true;
+            return this;
+        }
+
+        // attaches the caller's own reference to this request
+        public Request tag(Object tag) {
+            this.tag = tag;
+            return this;
+        }
+
+        public Object tag() {
+            return tag;
+        }
+
+        // returns the system call number of this request, such as Kernel.READ
+        public int opcode() {
+            return opcode;
+        }
+
+        // returns the result of a completed request: a descriptor, a byte count or seek position, 0 or -1,
+        // or CANCELED
+        public int result() {
+            return result;
+        }
+    }
+
+    private TCB owner;                   // the thread that submitted first, or null before then
+    private final Request[] submissions;
+    private final Request[] completions; // twice the submissions, as io_uring sizes them
+    private int sqHead = 0, sqCount = 0; // the oldest queued request and the number queued
+    private int cqHead = 0, cqCount = 0; // the oldest completion and the number not yet reaped
+
+    // makes a ring that holds up to entries queued requests
+    public IoRing(int entries) {
+        if (entries <= 0) {
+            throw new IllegalArgumentException("ring size " + entries);
+        }
+        submissions = new Request[entries];
+        completions = new Request[entries * 2];
+    }
+
+    public Request open(String fileName, String mode) {
+        return queue(new Request(Kernel.OPEN, 0, null, 0, 0, fileName, mode));
+    }
+
+    public Request read(int fd, byte[] buffer) {
+        return queue(new Request(Kernel.READ, fd, buffer, 0, 0, null, null));
+    }
+
+    public Request write(int fd, byte[] buffer) {
+        return queue(new Request(Kernel.WRITE, fd, buffer, 0, 0, null, null));
+    }
+
+    public Request pread(int fd, byte[] buffer, int offset) {
+        return queue(new Request(Kernel.PREAD, fd, buffer, offset, 0, null, null));
+    }
+
+    public Request pwrite(int fd, byte[] buffer, int offset) {
+        return queue(new Request(Kernel.PWRITE, fd, buffer, offset, 0, null, null));
+    }
+
+    public Request seek(int fd, int offset, int whence) {
+        return queue(new Request(Kernel.SEEK, fd, null, offset, whence, null, null));
+    }
+
+    public Request close(int fd) {
+        return queue(new Request(Kernel.CLOSE, fd, null, 0, 0, null, null));
+    }
+
+    // returns the number of requests that can still be queued
+    public synchronized int space() {
+        return submissions.length - sqCount;
+    }
+
+    // returns the number of requests queued and not yet submitted
+    public synchronized int queued() {
+        return sqCount;
+    }
+
+    // moves up to done.length completed requests into done, oldest first, and returns how many were moved
+    public synchronized int reap(Request[] done) {
+        int n = 0;
+        while (n < done.length && cqCount > 0) {
+            done[n++] = takeCompletion();
+        }
+        return n;
+    }
+
+    // returns the oldest completed request, or null if there is none
+    public synchronized Request poll() {
+        return (cqCount > 0) ? takeCompletion() : null;
+    }
+
+    private Request takeCompletion() {
+        Request request = completions[cqHead];
+        completions[cqHead] = null;
+        cqHead = (cqHead + 1) % completions.length;
+        cqCount--;
+        return request;
+    }
+
+    private synchronized Request queue(Request request) {
+        if (sqCount == submissions.length) {
+            throw new IllegalStateException("threadOS: submission ring full");
+        }
+        submissions[(sqHead + sqCount) % submissions.length] = request;
+        sqCount++;
+        return request;
+    }
+
+    // returns true if the thread of tcb may submit this ring, making it the owner when no thread has submitted yet
+    synchronized boolean claim(TCB tcb) {
+        if (owner == null) {
+            owner = tcb;
+        }
+        return owner == tcb;
+    }
+
+    // takes the oldest queued request for the kernel to run, or null when none is queued or the completion ring
+    // has no room for it. A chain is taken only when its every request will fit, so it is never split.
+    synchronized Request nextSubmission(boolean inChain) {
+        if (sqCount == 0 || cqCount == completions.length) {
+            return null;
+        }
+        if (!inChain) {
+            int length = 1;
+            while (length <= sqCount && submissions[(sqHead + length - 1) % submissions.length].linked) {
+                length++;
+            }
+            if (cqCount + Math.min(length, sqCount) > completions.length) {
+                return null; // the completions of the chain would not fit
+            }
+        }
+        Request request = submissions[sqHead];
+        submissions[sqHead] = null;
+        sqHead = (sqHead + 1) % submissions.length;
+        sqCount--;
+        return request;
+    }
+
+    // puts a request the kernel has run into the completion ring
+    synchronized void complete(Request request) {
+        completions[(cqHead + cqCount) % completions.length] = request;
+        cqCount++;
+    }
+}
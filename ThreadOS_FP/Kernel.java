@@ -1,16 +1,18 @@
 import java.util.*;
 import java.lang.reflect.*;
 import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 public class Kernel
 {
    // Interrupt requests
    public final static int INTERRUPT_SOFTWARE = 1;  // System calls
    public final static int INTERRUPT_DISK     = 2;  // Disk interrupts
-   public final static int INTERRUPT_IO       = 3;  // Other I/O interrupts
+   public final static int INTERRUPT_IO       = 3;  // Console input
 
    // System calls
-   public final static int BOOT    =  0; // SysLib.boot( )
+   public final static int BOOT    =  0; // SysLib.boot( int diskBlocks )
    public final static int EXEC    =  1; // SysLib.exec(String args[])
    public final static int WAIT    =  2; // SysLib.join( )
    public final static int EXIT    =  3; // SysLib.exit( )
@@ -33,8 +35,45 @@ public class Kernel
    public final static int SIZE    = 16; // SysLib.size( int fd )
    public final static int SEEK    = 17; // SysLib.seek( int fd, int offest, 
    //              int whence )
-   public final static int FORMAT  = 18; // SysLib.format( int files )
+   public final static int FORMAT  = 18; // SysLib.format( int files,
+   //                 int blockSize )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
+   public final static int MKDIR   = 20; // SysLib.mkdir( String path )
+   public final static int RMDIR   = 21; // SysLib.rmdir( String path )
+   public final static int READDIR = 22; // SysLib.readdir( String path,
+   //                 String names[] )
+   public final static int PREAD   = 23; // SysLib.pread( int fd, byte b[],
+   //                 int offset )
+   public final static int PWRITE  = 24; // SysLib.pwrite( int fd, byte b[],
+   //                 int offset )
+   public final static int MMAP    = 25; // SysLib.mmap( int fd, int offset,
+   //                 int length )
+   public final static int MSYNC   = 26; // SysLib.msync( MappedFile region )
+   public final static int MUNMAP  = 27; // SysLib.munmap( MappedFile region )
+   public final static int COPY    = 28; // SysLib.copy( int srcFd, int dstFd,
+   //                 int length )
+   public final static int FALLOCATE = 29; // SysLib.fallocate( int fd,
+   //                 int length )
+   public final static int TRUNCATE  = 30; // SysLib.truncate( int fd,
+   //                 int length )
+   public final static int FSCK      = 31; // SysLib.fsck( boolean repair )
+   public final static int CLONE     = 32; // SysLib.clone( String source,
+   //                 String target )
+   public final static int SNAPSHOT  = 33; // SysLib.snapshot( String name )
+   public final static int DEDUP     = 34; // SysLib.dedup( boolean on )
+   public final static int BLOCKSIZE = 35; // SysLib.blockSize( )
+   public final static int STATS     = 36; // SysLib.stats( boolean reset )
+   public final static int SUBMIT    = 37; // SysLib.submit( IoRing ring )
+   public final static int TRACE     = 38; // SysLib.trace( boolean on ) and
+   //                 SysLib.traceDump( String fileName )
+   public final static int TRYCIN    = 39; // SysLib.tryCin( StringBuffer s )
+
+   // Seek whence values
+   public final static int SEEK_SET  = 0;
+   public final static int SEEK_CUR  = 1;
+   public final static int SEEK_END  = 2;
+   public final static int SEEK_DATA = 3; // the next byte that is not in a hole
+   public final static int SEEK_HOLE = 4; // the next hole, or the end of file
 
    // Predefined file descriptors
    public final static int STDIN  = 0;
@@ -44,10 +83,12 @@ public class Kernel
    // Return values
    public final static int OK = 0;
    public final static int ERROR = -1;
+   public final static int AGAIN = -2; // nothing to read yet
 
    // System thread references
    private static Scheduler scheduler;
    private static Disk disk;
+   private final static int defaultDiskBlocks = 1000; // used unless Boot is given a size
    private static Cache cache;
 
    // Synchronized Queues
@@ -57,190 +98,583 @@ public class Kernel
    // File System
    private static FileSystem fs;
 
-   private final static int COND_DISK_REQ = 1; // wait condition 
    private final static int COND_DISK_FIN = 2; // wait condition
+   private final static int COND_CONSOLE  = 3; // wait condition
+
+   // disk requests turned away wait on diskSlot, as diskRequest explains
+   private final static Object diskSlot = new Object( );
+
+   // threads waiting for the disk to take a request, or to finish one,
+   // for /proc/disk
+   private final static AtomicInteger diskRequestWaiters = new AtomicInteger( );
+   private final static AtomicInteger diskFinishWaiters = new AtomicInteger( );
+
+   // Standard input and output
+   private static Console console;
+
+   // A system call handler, given the param and args of SysLib's interrupt
+   private interface Syscall {
+      int call( int param, Object args );
+   }
+
+   // System call handlers, indexed by call number, and their names
+   private final static Syscall[] syscalls = new Syscall[TRYCIN + 1];
+   private final static String[] names = new String[TRYCIN + 1];
+
+   // Call counts, errors and latencies of every system call
+   private final static SyscallStats stats = new SyscallStats( names );
+
+   static {
+      register( BOOT, "BOOT", Kernel::sysBoot );
+      register( EXEC, "EXEC", ( param, args ) -> sysExec( ( String[] )args ) );
+      register( WAIT, "WAIT", Kernel::sysWait );
+      register( EXIT, "EXIT", Kernel::sysExit );
+      register( SLEEP, "SLEEP", Kernel::sysSleep );
+      register( RAWREAD, "RAWREAD", Kernel::sysRawRead );
+      register( RAWWRITE, "RAWWRITE", Kernel::sysRawWrite );
+      register( SYNC, "SYNC", Kernel::sysSync );
+      register( READ, "READ", Kernel::sysRead );
+      register( WRITE, "WRITE", Kernel::sysWrite );
+      register( CREAD, "CREAD", ( param, args ) ->
+                cache.read( param, ( byte[] )args ) ? OK : ERROR );
+      register( CWRITE, "CWRITE", ( param, args ) ->
+                cache.write( param, ( byte[] )args ) ? OK : ERROR );
+      register( CSYNC, "CSYNC", ( param, args ) -> { cache.sync( ); return OK; } );
+      register( CFLUSH, "CFLUSH", ( param, args ) -> { cache.flush( ); return OK; } );
+      register( OPEN, "OPEN", Kernel::sysOpen );
+      register( CLOSE, "CLOSE", Kernel::sysClose );
+      register( SIZE, "SIZE", Kernel::sysSize );
+      register( SEEK, "SEEK", Kernel::sysSeek );
+      register( FORMAT, "FORMAT", Kernel::sysFormat );
+      register( DELETE, "DELETE", ( param, args ) ->
+                fs.delete( ( String )args ) ? OK : ERROR );
+      register( MKDIR, "MKDIR", ( param, args ) ->
+                fs.mkdir( ( String )args ) ? OK : ERROR );
+      register( RMDIR, "RMDIR", ( param, args ) ->
+                fs.rmdir( ( String )args ) ? OK : ERROR );
+      register( READDIR, "READDIR", Kernel::sysReaddir );
+      register( PREAD, "PREAD", Kernel::sysPread );
+      register( PWRITE, "PWRITE", Kernel::sysPwrite );
+      register( MMAP, "MMAP", Kernel::sysMmap );
+      register( MSYNC, "MSYNC", ( param, args ) ->
+                fs.msync( ( MappedFile )args ) ? OK : ERROR );
+      register( MUNMAP, "MUNMAP", ( param, args ) ->
+                fs.munmap( ( MappedFile )args ) ? OK : ERROR );
+      register( COPY, "COPY", Kernel::sysCopy );
+      register( FALLOCATE, "FALLOCATE", Kernel::sysFallocate );
+      register( TRUNCATE, "TRUNCATE", Kernel::sysTruncate );
+      register( FSCK, "FSCK", ( param, args ) -> fs.fsck( param != 0 ) );
+      register( CLONE, "CLONE", Kernel::sysClone );
+      register( SNAPSHOT, "SNAPSHOT", Kernel::sysSnapshot );
+      register( DEDUP, "DEDUP", ( param, args ) -> fs.dedup( param != 0 ) );
+      register( BLOCKSIZE, "BLOCKSIZE", ( param, args ) -> fs.blockSize( ) );
+      register( STATS, "STATS", Kernel::sysStats );
+      register( SUBMIT, "SUBMIT", Kernel::sysSubmit );
+      register( TRACE, "TRACE", Kernel::sysTrace );
+      register( TRYCIN, "TRYCIN", Kernel::sysTryCin );
+   }
 
-   // Standard input
-   private static BufferedReader input
-      = new BufferedReader( new InputStreamReader( System.in ) );
+   private static void register( int cmd, String name, Syscall handler ) {
+      syscalls[cmd] = handler;
+      names[cmd] = name;
+   }
 
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
-      TCB myTcb;
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
-            switch( cmd ) { 
-               case BOOT:
-                  // instantiate and start a scheduler
-                  scheduler = new Scheduler( ); 
-                  scheduler.start( );
-
-                  // instantiate and start a disk
-                  disk = new Disk( 1000 );
-                  disk.start( );
-
-                  // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
-
-                  // instantiate synchronized queues
-                  ioQueue = new SyncQueue( );
-                  waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
-
-                  // instantiate a file system;
-                  fs = new FileSystem( 1000 );
-
-                  return OK;
-               case EXEC:
-                  return sysExec( ( String[] )args );
-               case WAIT:
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     int myTid = myTcb.getTid( ); // get my thread ID
-                     return waitQueue.enqueueAndSleep( myTid ); //wait on my tid
-                     // woken up by my child thread
-                  }
-                  return ERROR;
-               case EXIT:
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     int myPid = myTcb.getPid( ); // get my parent ID
-                     int myTid = myTcb.getTid( ); // get my ID
-                     if ( myPid != -1 ) {
-                        // wake up a thread waiting on my parent ID
-                        waitQueue.dequeueAndWakeup( myPid, myTid );
-                        // I'm terminated!
-                        scheduler.deleteThread( );
-                        return OK;
-                     }
-                  }
-                  return ERROR;
-               case SLEEP:   // sleep a given period of milliseconds
-                  scheduler.sleepThread( param ); // param = milliseconds
-                  return OK;
-               case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
-               case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
-               case SYNC:     // synchronize disk data to a real file
-                  fs.sync( );
-                  while ( disk.sync( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
-               case READ:
-                  switch ( param ) {
-                     case STDIN:
-                        try {
-                           String s = input.readLine(); // read a keyboard input
-                           if ( s == null ) {
-                              return ERROR;
-                           }
-                           // prepare a read buffer
-                           StringBuffer buf = ( StringBuffer )args;
-
-                           // append the keyboard intput to this read buffer
-                           buf.append( s ); 
-
-                           // return the number of chars read from keyboard
-                           return s.length( );
-                        } catch ( IOException e ) {
-                           System.out.println( e );
-                           return ERROR;
-                        }
-                     case STDOUT:
-                     case STDERR:
-                        System.out.println( "threaOS: caused read errors" );
-                        return ERROR;
-                  }
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt != null )
-                        return fs.read( ftEnt, ( byte[] )args );
-                  }
-                  return ERROR;
-               case WRITE:
-                  switch ( param ) {
-                     case STDIN:
-                        System.out.println( "threaOS: cannot write to System.in" );
-                        return ERROR;
-                     case STDOUT:
-                        System.out.print( (String)args );
-                        return OK;
-                     case STDERR:
-                        System.err.print( (String)args );
-                        return OK;
-                  }
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt != null )
-                        return fs.write( ftEnt, ( byte[] )args );
-                  }
-                  return ERROR;
-               case CREAD:   // to be implemented in assignment 4
-                  return cache.read( param, ( byte[] )args ) ? OK : ERROR;
-               case CWRITE:  // to be implemented in assignment 4
-                  return cache.write( param, ( byte[] )args ) ? OK : ERROR;
-               case CSYNC:   // to be implemented in assignment 4
-                  cache.sync( );
-                  return OK;
-               case CFLUSH:  // to be implemented in assignment 4
-                  cache.flush( );
-                  return OK;
-               case OPEN:    // to be implemented in project
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     String[] s = ( String[] )args;
-                     return myTcb.getFd( fs.open( s[0], s[1] ) );
-                  } else
-                  return ERROR;
-               case CLOSE:   // to be implemented in project
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt == null || fs.close( ftEnt ) == false )
-                        return ERROR;
-                     if ( myTcb.returnFd( param ) != ftEnt )
-                        return ERROR;
-                     return OK;
-                  }
-                  return ERROR;
-               case SIZE:    // to be implemented in project
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt != null )
-                        return fs.fsize( ftEnt );
-                  }
-                  return ERROR;
-               case SEEK:    // to be implemented in project
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     int[] seekArgs = ( int[] )args;
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt != null )
-                        return fs.seek( ftEnt, seekArgs[0], seekArgs[1] );
-                  } 
+            if ( cmd < 0 || cmd >= syscalls.length || syscalls[cmd] == null )
+               return ERROR;
+            // time the call, including any time spent waiting for the disk
+            if ( Trace.enabled )
+               Trace.begin( "syscall", names[cmd], "param", param );
+            long start = System.nanoTime( );
+            int result = syscalls[cmd].call( param, args );
+            stats.record( cmd, result, System.nanoTime( ) - start );
+            if ( Trace.enabled )
+               Trace.end( "syscall", names[cmd] );
+            return result;
+         case INTERRUPT_DISK: // Disk interrupts
+            // wake up the thread waiting for a service completion; the
+            // thread collecting it lets a waiting request in, in diskFinish
+            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
+
+            return OK;
+         case INTERRUPT_IO:   // Console input
+            // wake up a thread waiting for a line typed
+            ioQueue.dequeueAndWakeup( COND_CONSOLE );
+            return OK;
+      }
+      return OK;
+   }
+
+   private static int sysBoot( int param, Object args ) {
+      // instantiate and start a scheduler
+      scheduler = new Scheduler( ); 
+      scheduler.start( );
+
+      // instantiate and start a disk of the size asked for
+      int diskBlocks = ( param > 0 ) ? param : defaultDiskBlocks;
+      disk = new Disk( diskBlocks );
+      disk.start( );
+
+      // instantiate a cache memory
+      cache = new Cache( disk.blockSize, 10 );
+
+      // instantiate synchronized queues
+      ioQueue = new SyncQueue( );
+      waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
+
+      // instantiate a file system;
+      fs = new FileSystem( diskBlocks );
+
+      // the rest of /proc, beside what the file system shows itself
+      fs.proc( ).register( "disk", Kernel::describeDisk );
+      fs.proc( ).register( "threads", Kernel::describeThreads );
+      fs.proc( ).register( "syscalls", stats::report );
+
+      // instantiate and start the console, which reads the keyboard into
+      // a line buffer and batches output
+      console = new Console( );
+      console.install( );
+      console.start( );
+
+      return OK;
+   }
+
+   private static int sysWait( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         int myTid = myTcb.getTid( ); // get my thread ID
+         return waitQueue.enqueueAndSleep( myTid ); //wait on my tid
+         // woken up by my child thread
+      }
+      return ERROR;
+   }
+
+   private static int sysExit( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         int myPid = myTcb.getPid( ); // get my parent ID
+         int myTid = myTcb.getTid( ); // get my ID
+         if ( myPid != -1 ) {
+            // wake up a thread waiting on my parent ID
+            waitQueue.dequeueAndWakeup( myPid, myTid );
+            // I'm terminated!
+            scheduler.deleteThread( );
+            return OK;
+         }
+      }
+      return ERROR;
+   }
+
+   private static int sysSleep( int param, Object args ) {
+      scheduler.sleepThread( param ); // param = milliseconds
+      return OK;
+   }
+
+   // hands the disk the request that submit makes, waiting while the disk
+   // turns it away. Such requests wait on diskSlot rather than on ioQueue:
+   // a QueueNode gives its wakeup to whichever thread comes to sleep first,
+   // so a thread just turned away could take the wakeup meant for one that
+   // was already waiting, which then finds none left. The attempt and the
+   // wait both hold diskSlot, so the notify a finished request sends cannot
+   // fall between them
+   private static void diskRequest( BooleanSupplier submit ) {
+      synchronized ( diskSlot ) {
+         while ( submit.getAsBoolean( ) == false ) {
+            diskRequestWaiters.incrementAndGet( );
+            if ( Trace.enabled )
+               Trace.begin( "wait", "disk busy" );
+            try {
+               diskSlot.wait( );
+            } catch ( InterruptedException e ) {
+            }
+            if ( Trace.enabled )
+               Trace.end( "wait", "disk busy" );
+            diskRequestWaiters.decrementAndGet( );
+         }
+      }
+   }
+
+   // waits for the disk to finish the caller's request and collects it
+   private static void diskFinish( ) {
+      while ( disk.testAndResetReady( ) == false ) {
+         diskFinishWaiters.incrementAndGet( );
+         if ( Trace.enabled )
+            Trace.begin( "wait", "disk transfer" );
+         ioQueue.enqueueAndSleep( COND_DISK_FIN );
+         if ( Trace.enabled )
+            Trace.end( "wait", "disk transfer" );
+         diskFinishWaiters.decrementAndGet( );
+      }
+      // the disk takes requests again only now, so let one request that was
+      // turned away try again
+      synchronized ( diskSlot ) {
+         diskSlot.notify( );
+      }
+   }
+
+   // the text of /proc/disk: the disk's counters and the requests queued
+   // for it, the one being served included
+   private static String describeDisk( ) {
+      int serving = disk.busy( ) ? 1 : 0;
+      return disk.report( )
+         + String.format( "queueDepth      %d\n", serving
+                          + diskRequestWaiters.get( ) )
+         + String.format( "waitingToStart  %d\n", diskRequestWaiters.get( ) )
+         + String.format( "waitingToFinish %d\n", diskFinishWaiters.get( ) );
+   }
+
+   // the text of /proc/threads: one line per thread in the scheduler's
+   // queue, the one holding the time slice first
+   private static String describeThreads( ) {
+      TCB[] tcbs = scheduler.getTcbs( );
+      StringBuilder text = new StringBuilder( );
+      text.append( String.format( "%5s %5s %4s %-8s %s\n",
+                                  "tid", "pid", "fds", "state", "thread" ) );
+      for ( int i = 0; i < tcbs.length; i++ ) {
+         Thread thread = tcbs[i].getThread( );
+         String state = tcbs[i].getTerminated( ) ? "exiting"
+            : ( thread == null || !thread.isAlive( ) ) ? "new"
+            : ( i == 0 ) ? "running" : "ready";
+         text.append( String.format( "%5d %5d %4d %-8s %s\n",
+                                     tcbs[i].getTid( ), tcbs[i].getPid( ),
+                                     tcbs[i].getFdCount( ), state,
+                                     ( thread == null ) ? "-"
+                                     : thread.getName( ) ) );
+      }
+      return text.toString( );
+   }
+
+   // read a block of data from disk
+   private static int sysRawRead( int param, Object args ) {
+      diskRequest( ( ) -> disk.read( param, ( byte[] )args ) );
+      diskFinish( );
+      return OK;
+   }
+
+   // write a block of data to disk
+   private static int sysRawWrite( int param, Object args ) {
+      diskRequest( ( ) -> disk.write( param, ( byte[] )args ) );
+      diskFinish( );
+      return OK;
+   }
+
+   // synchronize disk data to a real file
+   private static int sysSync( int param, Object args ) {
+      fs.sync( );
+      diskRequest( disk::sync );
+      diskFinish( );
+      return OK;
+   }
+
+   private static int sysRead( int param, Object args ) {
+      TCB myTcb;
+      switch ( param ) {
+         case STDIN:
+            // a prompt written just before must show before the wait
+            console.flush( );
+            String s;
+            while ( ( s = console.poll( ) ) == null ) {
+               if ( console.atEnd( ) ) {
+                  // pass the end of input on to the next waiting reader
+                  ioQueue.dequeueAndWakeup( COND_CONSOLE );
                   return ERROR;
-               case FORMAT:  // to be implemented in project
-                  return ( fs.format( param ) == true ) ? OK : ERROR;
-               case DELETE:  // to be implemented in project
-                  return ( fs.delete( (String)args ) == true ) ? OK : ERROR;
+               }
+               if ( Trace.enabled )
+                  Trace.begin( "wait", "console input" );
+               ioQueue.enqueueAndSleep( COND_CONSOLE );
+               if ( Trace.enabled )
+                  Trace.end( "wait", "console input" );
             }
+            // append the keyboard input to the read buffer args
+            ( ( StringBuffer )args ).append( s );
+
+            // return the number of chars read from keyboard
+            return s.length( );
+         case STDOUT:
+         case STDERR:
+            System.out.println( "threaOS: caused read errors" );
             return ERROR;
-         case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
+      }
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         FileTableEntry ftEnt = myTcb.getFtEnt( param );
+         if ( ftEnt != null )
+            return fs.read( ftEnt, ( byte[] )args );
+      }
+      return ERROR;
+   }
+
+   private static int sysWrite( int param, Object args ) {
+      TCB myTcb;
+      switch ( param ) {
+         case STDIN:
+            System.out.println( "threaOS: cannot write to System.in" );
+            return ERROR;
+         case STDOUT:
+            System.out.print( (String)args );
+            return OK;
+         case STDERR:
+            System.err.print( (String)args );
+            return OK;
+      }
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         FileTableEntry ftEnt = myTcb.getFtEnt( param );
+         if ( ftEnt != null )
+            return fs.write( ftEnt, ( byte[] )args );
+      }
+      return ERROR;
+   }
+
+   private static int sysOpen( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         String[] s = ( String[] )args;
+         return myTcb.getFd( fs.open( s[0], s[1] ) );
+      } else
+      return ERROR;
+   }
+
+   private static int sysClose( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null )
+         return close( myTcb, param );
+      return ERROR;
+   }
+
+   private static int close( TCB myTcb, int fd ) {
+      FileTableEntry ftEnt = myTcb.getFtEnt( fd );
+      if ( ftEnt == null || fs.close( ftEnt ) == false )
+         return ERROR;
+      if ( myTcb.returnFd( fd ) != ftEnt )
+         return ERROR;
+      return OK;
+   }
+
+   private static int sysSize( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         FileTableEntry ftEnt = myTcb.getFtEnt( param );
+         if ( ftEnt != null )
+            return fs.fsize( ftEnt );
+      }
+      return ERROR;
+   }
+
+   private static int sysSeek( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         int[] seekArgs = ( int[] )args;
+         FileTableEntry ftEnt = myTcb.getFtEnt( param );
+         if ( ftEnt != null )
+            return fs.seek( ftEnt, seekArgs[0], seekArgs[1] );
+      } 
+      return ERROR;
+   }
+
+   private static int sysFormat( int param, Object args ) {
+      // without a block size, the volume gets blocks as large
+      // as the disk's
+      int blockSize = ( args == null ) ? Disk.blockSize
+         : ( ( int[] )args )[0];
+      return ( fs.format( param, blockSize ) == true ) ? OK : ERROR;
+   }
+
+   private static int sysReaddir( int param, Object args ) {
+      Object[] dirArgs = ( Object[] )args;
+      return fs.readdir( ( String )dirArgs[0], ( String[] )dirArgs[1] );
+   }
+
+   private static int sysPread( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         Object[] ioArgs = ( Object[] )args;
+         FileTableEntry ftEnt = myTcb.getFtEnt( param );
+         if ( ftEnt != null )
+            return fs.pread( ftEnt, ( byte[] )ioArgs[0],
+                             ( Integer )ioArgs[1] );
+      }
+      return ERROR;
+   }
+
+   private static int sysPwrite( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         Object[] ioArgs = ( Object[] )args;
+         FileTableEntry ftEnt = myTcb.getFtEnt( param );
+         if ( ftEnt != null )
+            return fs.pwrite( ftEnt, ( byte[] )ioArgs[0],
+                              ( Integer )ioArgs[1] );
+      }
+      return ERROR;
+   }
+
+   private static int sysMmap( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         // args[2] receives the mapped region
+         Object[] mapArgs = ( Object[] )args;
+         FileTableEntry ftEnt = myTcb.getFtEnt( param );
+         if ( ftEnt != null )
+            mapArgs[2] = fs.mmap( ftEnt, ( Integer )mapArgs[0],
+                                  ( Integer )mapArgs[1] );
+         if ( mapArgs[2] != null )
+            return OK;
+      }
+      return ERROR;
+   }
+
+   private static int sysCopy( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         int[] copyArgs = ( int[] )args;
+         FileTableEntry srcEnt = myTcb.getFtEnt( param );
+         FileTableEntry dstEnt = myTcb.getFtEnt( copyArgs[0] );
+         if ( srcEnt != null && dstEnt != null )
+            return fs.copy( srcEnt, dstEnt, copyArgs[1] );
+      }
+      return ERROR;
+   }
+
+   private static int sysFallocate( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         FileTableEntry ftEnt = myTcb.getFtEnt( param );
+         if ( ftEnt != null )
+            return fs.fallocate( ftEnt, ( ( int[] )args )[0] );
+      }
+      return ERROR;
+   }
 
-            // wake up the thread waiting for a request acceptance
-            ioQueue.dequeueAndWakeup( COND_DISK_REQ );
+   private static int sysTruncate( int param, Object args ) {
+      TCB myTcb;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+         FileTableEntry ftEnt = myTcb.getFtEnt( param );
+         if ( ftEnt != null )
+            return fs.truncate( ftEnt, ( ( int[] )args )[0] );
+      }
+      return ERROR;
+   }
+
+   private static int sysClone( int param, Object args ) {
+      String[] cloneArgs = ( String[] )args;
+      return fs.clone( cloneArgs[0], cloneArgs[1] );
+   }
 
+   // snapshots every file under the name args, but not while the caller
+   // holds a file open to write: cloning that file would wait for the
+   // caller to close it
+   private static int sysSnapshot( int param, Object args ) {
+      TCB myTcb;
+      // its own writer would never give way to the snapshot
+      if ( ( myTcb = scheduler.getMyTcb( ) ) == null || myTcb.holdsWriter( ) )
+         return ERROR;
+      return fs.snapshot( ( String )args );
+   }
+
+   // runs the requests queued on args, an IoRing, and moves each to its
+   // completions, all in this one kernel entry; returns how many were run
+   private static int sysSubmit( int param, Object args ) {
+      TCB myTcb;
+      IoRing ring = ( IoRing )args;
+      if ( ( myTcb = scheduler.getMyTcb( ) ) == null
+           || ring.claim( myTcb ) == false )
+         return ERROR;
+      int done = 0;
+      int chainFd = ERROR;    // the descriptor the chain's last open returned
+      boolean failed = false; // a request earlier in the chain failed
+      boolean inChain = false;
+      IoRing.Request request;
+      while ( ( request = ring.nextSubmission( inChain ) ) != null ) {
+         boolean chainClose = request.opcode == CLOSE
+            && request.fd == IoRing.CHAIN_FD && chainFd >= 0;
+         if ( failed && chainClose == false )
+            request.result = IoRing.CANCELED;
+         else {
+            int fd = ( request.fd == IoRing.CHAIN_FD ) ? chainFd : request.fd;
+            if ( Trace.enabled )
+               Trace.begin( "syscall", names[request.opcode], "param", fd );
+            long start = System.nanoTime( );
+            request.result = perform( myTcb, request, fd );
+            stats.record( request.opcode, request.result,
+                          System.nanoTime( ) - start );
+            if ( Trace.enabled )
+               Trace.end( "syscall", names[request.opcode] );
+            if ( request.opcode == OPEN && request.result >= 0 )
+               chainFd = request.result;
+            if ( request.result < 0 )
+               failed = true;
+         }
+         ring.complete( request );
+         done++;
+         inChain = request.linked;
+         if ( inChain == false ) { // the next request starts a chain anew
+            chainFd = ERROR;
+            failed = false;
+         }
+      }
+      return done;
+   }
+
+   // runs one request of a ring on descriptor fd, as its system call would
+   private static int perform( TCB myTcb, IoRing.Request request, int fd ) {
+      if ( request.opcode == OPEN )
+         return myTcb.getFd( fs.open( request.path, request.mode ) );
+      if ( request.opcode == CLOSE )
+         return close( myTcb, fd );
+      FileTableEntry ftEnt = myTcb.getFtEnt( fd );
+      if ( ftEnt == null )
+         return ERROR;
+      switch ( request.opcode ) {
+         case READ:
+            return fs.read( ftEnt, request.buffer );
+         case WRITE:
+            return fs.write( ftEnt, request.buffer );
+         case PREAD:
+            return fs.pread( ftEnt, request.buffer, request.offset );
+         case PWRITE:
+            return fs.pwrite( ftEnt, request.buffer, request.offset );
+         case SEEK:
+            return fs.seek( ftEnt, request.offset, request.whence );
+      }
+      return ERROR;
+   }
+
+   // appends the next line typed to args, a StringBuffer, without waiting;
+   // returns its length, AGAIN if no line is waiting yet, or ERROR once
+   // input has ended
+   private static int sysTryCin( int param, Object args ) {
+      String s = console.poll( );
+      if ( s == null )
+         return console.atEnd( ) ? ERROR : AGAIN;
+      ( ( StringBuffer )args ).append( s );
+      return s.length( );
+   }
+
+   // starts tracing when param is 1 and stops it when param is 0; when
+   // param is 2, writes the trace to args, the name of a host file, and
+   // returns the number of events written
+   private static int sysTrace( int param, Object args ) {
+      switch ( param ) {
+         case 0:
+            Trace.stop( );
             return OK;
-         case INTERRUPT_IO:   // other I/O interrupts (not implemented)
+         case 1:
+            Trace.start( );
             return OK;
+         case 2:
+            return Trace.dump( ( String )args );
       }
+      return ERROR;
+   }
+
+   // appends the table of call counts and latencies to args, a
+   // StringBuffer, then starts counting anew if param is nonzero
+   private static int sysStats( int param, Object args ) {
+      ( ( StringBuffer )args ).append( stats.report( ) );
+      if ( param != 0 )
+         stats.reset( );
       return OK;
    }
 
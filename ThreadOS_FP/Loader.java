@@ -15,6 +15,11 @@ public class Loader extends Thread
       SysLib.cout( "?:       print a help message\n" );
       SysLib.cout( "q:       exit from threadOS\n" );
       SysLib.cout( "l prog:  load prog\n" );
+      SysLib.cout( "f [-r]:  check the file system, repairing it with -r\n" );
+      SysLib.cout( "s [-r]:  print system call statistics, resetting them with -r\n" );
+      SysLib.cout( "t on:    start tracing kernel events\n" );
+      SysLib.cout( "t off:   stop tracing\n" );
+      SysLib.cout( "t dump [file]: write the trace as Chrome JSON, by default to trace.json\n" );
    }
 
    public void run( ) {
@@ -47,6 +52,35 @@ public class Loader extends Thread
                }
                SysLib.join( );
                break;
+            case 'f':
+               int problems = SysLib.fsck( cmdLine.endsWith( "-r" ) );
+               if ( problems == ERROR )
+                  SysLib.cerr( "fsck: close all files before repairing\n" );
+               else
+                  SysLib.cout( "fsck: " + problems + " problem(s) found\n" );
+               break;
+            case 's':
+               SysLib.cout( SysLib.stats( cmdLine.endsWith( "-r" ) ) );
+               break;
+            case 't':
+               String traceArgs[] = SysLib.stringToArgs( cmdLine );
+               if ( traceArgs.length >= 2 && traceArgs[1].equals( "on" ) )
+                  SysLib.trace( true );
+               else if ( traceArgs.length >= 2 && traceArgs[1].equals( "off" ) )
+                  SysLib.trace( false );
+               else if ( traceArgs.length >= 2 && traceArgs[1].equals( "dump" ) ) {
+                  String file = ( traceArgs.length > 2 ) ? traceArgs[2]
+                     : "trace.json";
+                  int events = SysLib.traceDump( file );
+                  if ( events == ERROR )
+                     SysLib.cerr( "trace: cannot write " + file + "\n" );
+                  else
+                     SysLib.cout( "trace: " + events + " events written to "
+                                  + file + "\n" );
+               }
+               else
+                  SysLib.cerr( "usage: t on | t off | t dump [file]\n" );
+               break;
             case 'r':
                break;
          }
@@ -0,0 +1,240 @@
+/*
+A region of an open file mapped into a user thread by SysLib.mmap( ). The region is split into block-sized
+pages that are read from the file only when first touched, so get( ) and put( ) on a page already in memory
+cost no system call. The bytes changed through put( ) are written back by SysLib.msync( ), SysLib.munmap( ),
+and when the file descriptor is closed; the last close of the descriptor also unmaps the region. Each page
+remembers the span of bytes changed in it, and only that span is written back, so a write( ) to other bytes
+of the same block is never overwritten. Bytes written to the file through its descriptor are copied into the
+pages already in memory, and bytes cut off by truncate( ) are cleared from them, so the region always shows
+the file as it is. Only the entry a region belongs to can change the file while it is open: a writer has
+the inode to itself.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MappedFile {
+    static final AtomicLong pageHits = new AtomicLong();   // accesses to pages already in memory, in every region
+    static final AtomicLong pageMisses = new AtomicLong(); // pages read from their file on first access
+    private final FileSystem fs;        // the file system that faults pages in and out
+    private final FileTableEntry fte;   // the open file this region belongs to
+    private final int offset;           // the file position of byte 0 of this region
+    private final int length;           // the number of bytes in this region
+    private final boolean writable;     // false when the file is open for reading only
+    private final int pageSize;         // the bytes in a page, one file system block
+    private final int firstPage;        // the file block holding byte 0 of this region
+    private byte[][] pages;             // pages[i] caches file block firstPage + i, null until touched
+    private int[] dirtyFrom;            // pages[i] bytes dirtyFrom[i] up to dirtyTo[i] changed since the last sync;
+    private int[] dirtyTo;              // the page is clean when the two are equal
+    private boolean unmapped;           // set once the region is unmapped
+
+    MappedFile(FileSystem fs, FileTableEntry fte, int offset, int length, boolean writable) {
+        this.fs = fs;
+        this.fte = fte;
+        this.offset = offset;
+        this.length = length;
+        this.writable = writable;
+        pageSize = SuperBlock.blockSize();
+        firstPage = offset / pageSize;
+        int lastPage = (offset + length - 1) / pageSize;
+        int count = (length > 0) ? lastPage - firstPage + 1 : 0;
+        pages = new byte[count][];
+        dirtyFrom = new int[count];
+        dirtyTo = new int[count];
+    }
+
+    // returns the open file this region belongs to
+    FileTableEntry entry() {
+        return fte;
+    }
+
+    // returns the number of bytes in this region
+    public int length() {
+        return length;
+    }
+
+    // returns the byte at the given index of this region
+    public synchronized byte get(int index) {
+        checkIndex(index, 1);
+        int position = offset + index;
+        return fault(position)[position % pageSize];
+    }
+
+    // copies dst.length bytes starting at the given index of this region into dst
+    public synchronized void get(int index, byte[] dst) {
+        checkIndex(index, dst.length);
+        int done = 0;
+        while (done < dst.length) {
+            int position = offset + index + done;
+            int chunk = Math.min(dst.length - done, pageSize - position % pageSize);
+            System.arraycopy(fault(position), position % pageSize, dst, done, chunk);
+            done += chunk;
+        }
+    }
+
+    // stores b at the given index of this region
+    public synchronized void put(int index, byte b) {
+        checkWritable();
+        checkIndex(index, 1);
+        int position = offset + index;
+        fault(position)[position % pageSize] = b;
+        markDirty(position, 1);
+    }
+
+    // copies all of src into this region starting at the given index
+    public synchronized void put(int index, byte[] src) {
+        checkWritable();
+        checkIndex(index, src.length);
+        int done = 0;
+        while (done < src.length) {
+            int position = offset + index + done;
+            int chunk = Math.min(src.length - done, pageSize - position % pageSize);
+            System.arraycopy(src, done, fault(position), position % pageSize, chunk);
+            markDirty(position, chunk);
+            done += chunk;
+        }
+    }
+
+    // returns a ByteBuffer over the page holding the given index, positioned at that index
+    // the part of a page handed out from a writable region is written back on the next sync
+    public synchronized ByteBuffer page(int index) {
+        checkIndex(index, 1);
+        int position = offset + index;
+        int page = position / pageSize - firstPage;
+        // the buffer only covers the bytes of the page that lie inside this region
+        int start = (page == 0) ? offset % pageSize : 0;
+        int end = Math.min(pageSize, offset + length - (firstPage + page) * pageSize);
+        ByteBuffer buffer = ByteBuffer.wrap(fault(position), start, end - start).slice();
+        buffer.position(position % pageSize - start);
+        if (!writable) {
+            return buffer.asReadOnlyBuffer();
+        }
+        markDirty((firstPage + page) * pageSize + start, end - start);
+        return buffer;
+    }
+
+    // writes the changed span of every dirty page back to the file
+    // returns the number of pages written, or -1 upon an error
+    int sync() {
+        // copy the spans out under the lock, and write them without it, so that the file system can copy them into
+        // the other regions of the file meanwhile
+        int[] positions;
+        byte[][] spans;
+        synchronized (this) {
+            if (unmapped) {
+                return -1;
+            }
+            positions = new int[pages.length];
+            spans = new byte[pages.length][];
+            for (int i = 0; i < pages.length; i++) {
+                if (dirtyFrom[i] < dirtyTo[i]) {
+                    positions[i] = (firstPage + i) * pageSize + dirtyFrom[i];
+                    spans[i] = Arrays.copyOfRange(pages[i], dirtyFrom[i], dirtyTo[i]);
+                    dirtyFrom[i] = dirtyTo[i] = 0;
+                }
+            }
+        }
+        int written = 0;
+        for (int i = 0; i < spans.length; i++) {
+            if (spans[i] == null) {
+                continue;
+            }
+            if (fs.writeBack(this, spans[i], positions[i]) != spans[i].length) {
+                synchronized (this) { // try the span again on the next sync
+                    markDirty(positions[i], spans[i].length);
+                }
+                return -1;
+            }
+            written++;
+        }
+        return written;
+    }
+
+    // writes the dirty pages back and drops every page; later accesses fail
+    int unmap() {
+        int written = sync();
+        synchronized (this) {
+            unmapped = true;
+            pages = new byte[0][];
+            dirtyFrom = new int[0];
+            dirtyTo = new int[0];
+        }
+        return written;
+    }
+
+    // copies the count bytes of buffer[location...] just written to the file at byte position into the pages of
+    // this region in memory
+    synchronized void written(int position, byte[] buffer, int location, int count) {
+        for (int i = 0; i < pages.length; i++) {
+            int pageStart = (firstPage + i) * pageSize;
+            int from = Math.max(position, pageStart);
+            int to = Math.min(position + count, pageStart + pageSize);
+            if (pages[i] != null && from < to) {
+                System.arraycopy(buffer, location + from - position, pages[i], from - pageStart, to - from);
+            }
+        }
+    }
+
+    // clears the bytes from file position length on, which the file was just truncated to, from the pages of this
+    // region in memory, and forgets the changes made to them
+    synchronized void truncated(int length) {
+        for (int i = 0; i < pages.length; i++) {
+            int cut = Math.max(0, length - (firstPage + i) * pageSize);
+            if (pages[i] != null && cut < pageSize) {
+                Arrays.fill(pages[i], cut, pageSize, (byte) 0);
+                dirtyTo[i] = Math.min(dirtyTo[i], cut);
+                dirtyFrom[i] = Math.min(dirtyFrom[i], dirtyTo[i]);
+            }
+        }
+    }
+
+    // widens the changed span of the page holding file position to take in count bytes from there, which lie in
+    // that page; the caller holds the lock of this region
+    private void markDirty(int position, int count) {
+        int page = position / pageSize - firstPage;
+        int from = position % pageSize;
+        if (dirtyFrom[page] == dirtyTo[page]) {
+            dirtyFrom[page] = from;
+            dirtyTo[page] = from + count;
+        } else {
+            dirtyFrom[page] = Math.min(dirtyFrom[page], from);
+            dirtyTo[page] = Math.max(dirtyTo[page], from + count);
+        }
+    }
+
+    // returns the page holding the given file position, reading it from the file on first touch
+    private byte[] fault(int position) {
+        int page = position / pageSize - firstPage;
+        if (Trace.enabled) {
+            Trace.instant("cache", (pages[page] != null) ? "page hit" : "page miss", "page", firstPage + page);
+        }
+        if (pages[page] != null) {
+            pageHits.incrementAndGet();
+        } else {
+            pageMisses.incrementAndGet();
+            byte[] data = new byte[pageSize];
+            int start = (firstPage + page) * pageSize;
+            // the region was mapped inside the file, so the only short read is at its end
+            fs.readPage(fte, data, start);
+            pages[page] = data;
+        }
+        return pages[page];
+    }
+
+    private void checkIndex(int index, int count) {
+        if (unmapped) {
+            throw new IllegalStateException("threadOS: region is unmapped");
+        }
+        if (index < 0 || count < 0 || index + count > length) {
+            throw new IndexOutOfBoundsException("threadOS: index " + index + " outside region of " + length);
+        }
+    }
+
+    private void checkWritable() {
+        if (!writable) {
+            throw new ReadOnlyBufferException();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+A read-only namespace of virtual files under /proc that show the live state of ThreadOS, such as /proc/disk and
+/proc/fs, read with the usual SysLib.open, read, seek and close. Each file is a generator registered by the part of
+the system it describes; opening the file runs the generator and holds its text in an inode that lives only in memory,
+with its contents inline, so reading it never touches the disk. A read from the start of the file runs the
+generator again, so seeking back to 0 shows the counters as they are now. The files cannot be written, deleted or
+mapped for writing, and readdir of /proc lists them. An entry the disk already holds under /proc, made before /proc
+existed, is still the disk's: FileSystem routes a path here only when the disk has no entry for it, and makes no new
+one there.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+public class ProcFs {
+    public static final String root = "proc"; // the directory of the virtual files, under "/"
+    private final Map<String, Supplier<String>> files = new TreeMap<String, Supplier<String>>();
+
+    // makes /proc/name show the text that generator returns each time it is read
+    public synchronized void register(String name, Supplier<String> generator) {
+        files.put(name, generator);
+    }
+
+    // returns true if path names /proc or a file in it, whether or not that file exists
+    public static boolean contains(String path) {
+        String name = path.startsWith("/") ? path.substring(1) : path;
+        return name.equals(root) || name.equals(root + "/") || name.startsWith(root + "/");
+    }
+
+    // opens the virtual file at path for reading, returning null if it does not exist or mode is not "r"
+    public synchronized FileTableEntry open(String path, String mode) {
+        String name = nameOf(path);
+        if (mode != "r" || !files.containsKey(name)) {
+            return null;
+        }
+        FileTableEntry fte = new FileTableEntry(new Inode(), -1, mode, name);
+        generate(fte);
+        return fte;
+    }
+
+    // replaces the contents of an open virtual file with what its generator returns now
+    public void generate(FileTableEntry fte) {
+        Supplier<String> generator;
+        synchronized (this) {
+            generator = files.get(fte.procName);
+        }
+        byte[] text = generator.get().getBytes(StandardCharsets.UTF_8);
+        synchronized (fte.inode) {
+            fte.inode.inline = text;
+            fte.inode.length = text.length;
+        }
+    }
+
+    // copies up to names.length file names into names and returns the number of files
+    public synchronized int list(String[] names) {
+        int i = 0;
+        for (String name : files.keySet()) {
+            if (i < names.length) {
+                names[i] = name;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static String nameOf(String path) {
+        String name = path.startsWith("/") ? path.substring(1) : path;
+        return name.startsWith(root + "/") ? name.substring(root.length() + 1) : "";
+    }
+}
@@ -58,6 +58,16 @@ public class Scheduler extends Thread
         return null;
     }
 
+    // Return the TCBs of every thread in the queue, the running one first
+    public TCB[] getTcbs( ) {
+        synchronized( queue ) {
+            TCB[] tcbs = new TCB[queue.size( )];
+            for ( int i = 0; i < tcbs.length; i++ )
+                tcbs[i] = ( TCB )queue.elementAt( i );
+            return tcbs;
+        }
+    }
+
     // A new feature added to p161 
     // Return the maximal number of threads to be spawned in the system
     public int getMaxThreads( ) {
@@ -170,7 +180,12 @@ public class Scheduler extends Thread
                     }
                 }
                 
+                // the slice shows on the scheduler's track as the thread it runs
+                if ( Trace.enabled )
+                    Trace.begin( "sched", "slice", "tid", currentTCB.getTid( ) );
                 schedulerSleep( );
+                if ( Trace.enabled )
+                    Trace.end( "sched", "slice" );
                 // System.out.println("* * * Context Switch * * * ");
                 
                 synchronized ( queue ) {
@@ -1,88 +1,519 @@
 /*
 Derek Willms, Brian Quigley, Robert Brandenburg
 The disk block 0 is called a superblock and used to describe (1) the number of disk blocks,
-(2) the number of inodes, and (3) the block number of the head block of the free list. This is the OS-managed block.
+(2) the number of inodes, and (3) the first data block, where free blocks begin. This is the OS-managed block.
 No other information must be recorded in and no user threads must be able to get access to the superblock.
+Free space is kept as a bitmap with one bit per disk block, stored in the last blocks of the disk. In memory the
+data blocks are split into allocation groups, each with its own part of the bitmap and its own lock, so threads
+writing different files allocate from different groups without contending with each other.
+Just before the bitmap, one byte per disk block counts the references to that block beyond the first, which lets
+cloned files share blocks. Returning a shared block only drops a reference; the block is freed with the last one.
+After the magic number, the superblock holds the volume's feature flags, such as DEDUP, and the number of free
+blocks, so that mounting a disk of millions of blocks reads none of the bitmap. Each allocation group reads its part
+of the bitmap and share counts the first time it is used, groups found full are passed over without being locked,
+and sync writes back only the bitmap and share count blocks that changed. Each group keeps what it changed since the
+volume was mounted under its own lock, and sync adds the groups up, so no allocation takes a lock shared by all.
+The file system block size is chosen when the disk is formatted and recorded here as well: a power of two from
+Disk.blockSize to maxBlockSize, so each file system block is a run of whole disk blocks that readBlock( ) and
+writeBlock( ) transfer in one disk request. Every block number above the disk is in file system blocks.
  */
+
+import java.util.BitSet;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 public class SuperBlock {
     private final int defaultInodeBlocks = 64;
+    private static final int magic = 0x54465433; // marks a disk formatted with 32-bit pointers and a block size
+    public static final int maxBlockSize = 64 * 1024; // the largest file system block
+    private static final int maxShares = 255;    // the most references to one block beyond the first
+    private static final int groupBlocks = 128;  // disk blocks per allocation group
+    // bytes per file system block of the mounted volume, set only by mounting and by format, which waits for
+    // every file to be closed first
+    private static volatile int blockSize = Disk.blockSize;
+    private int diskBlocks; // the number of disk blocks, which hold totalBlocks file system blocks
+    private int bitsPerBlock; // bitmap bits in one block
+    public static final int DEDUP = 1;           // feature flag: identical full blocks written are shared
     public int totalBlocks; // the number of disk blocks
     public int totalInodes; // the number of inodes
-    public int freeList; // the block number of the free list's head
+    public int freeList; // the first data block; every block before it holds the superblock or inodes
+    public volatile int features; // the feature flags turned on for this volume
+    private int bitmapStart; // the first of the blocks at the end of the disk that hold the bitmap
+    private int shareStart; // the first of the blocks before the bitmap that hold the share counts
+    private int groupCount; // the number of allocation groups
+    private AtomicReferenceArray<AllocationGroup> groups; // the data blocks, groupBlocks at a time; null until used
+    // the free data blocks when the volume was mounted or last counted; each group adds what it changed since
+    private volatile int mountedFree;
+
+    // one slice of the data blocks with its own free-space state; its monitor is its lock
+    private static class AllocationGroup {
+        final int first;    // the first block of this group
+        final int size;     // the number of blocks in this group
+        final BitSet used;  // bit i is set when block first + i is allocated
+        final byte[] shares; // the references to block first + i beyond the first, as an unsigned byte
+        int free;           // the number of clear bits in used
+        int rotor = 0;      // where the next search for a free block starts
+        volatile int freed; // blocks freed less blocks allocated since mountedFree was set
+        volatile boolean full; // true when free is 0, so that searches pass this group by without locking it
+        boolean bitmapDirty; // true when a bit of used changed since the last sync
+        boolean sharesDirty; // true when a share count changed since the last sync
+
+        AllocationGroup(int first, int size) {
+            this.first = first;
+            this.size = size;
+            used = new BitSet(size);
+            shares = new byte[size];
+            free = size;
+        }
+    }
 
     // SuperBlock constructor
     public SuperBlock(int diskSize) {
-        // read the superblock from disk
+        diskBlocks = diskSize;
+        // read the superblock from disk; what it says fits in the first disk block whatever the block size
         byte[] superBlock = new byte[Disk.blockSize];
         SysLib.rawread(0, superBlock);
         totalBlocks = SysLib.bytes2int(superBlock, 0);
         totalInodes = SysLib.bytes2int(superBlock, 4);
         freeList = SysLib.bytes2int(superBlock, 8);
+        int size = SysLib.bytes2int(superBlock, 24);
 
-        if ((totalBlocks == diskSize) && (totalInodes > 0) && (freeList >= 2)) { // disk contents are valid
-            return;
+        if (isBlockSize(size) && (totalBlocks == diskSize / (size / Disk.blockSize)) && (totalInodes > 0)
+                && (freeList >= 2) && (SysLib.bytes2int(superBlock, 12) == magic)) { // disk contents are valid
+            blockSize = size;
+            features = SysLib.bytes2int(superBlock, 16);
+            initGroups();
+            mountedFree = SysLib.bytes2int(superBlock, 20);
         } else { // need to format disk
-            totalBlocks = diskSize;
-            format(defaultInodeBlocks);
+            format(defaultInodeBlocks, Disk.blockSize);
         }
     }
 
-    // Clear the given number of Inode blocks
-    public void format(int inodeBlocks) {
+    // returns true if size can be the block size of a volume
+    public static boolean isBlockSize(int size) {
+        return size >= Disk.blockSize && size <= maxBlockSize && Integer.bitCount(size) == 1;
+    }
+
+    // returns the bytes per file system block of the mounted volume
+    public static int blockSize() {
+        return blockSize;
+    }
+
+    // reads file system block blockNumber into data, which is blockSize bytes long
+    public static int readBlock(int blockNumber, byte[] data) {
+        return SysLib.rawread(blockNumber * (blockSize / Disk.blockSize), data);
+    }
+
+    // writes data, which is blockSize bytes long, to file system block blockNumber
+    public static int writeBlock(int blockNumber, byte[] data) {
+        return SysLib.rawwrite(blockNumber * (blockSize / Disk.blockSize), data);
+    }
+
+    // Clear the given number of Inode blocks, making the volume's blocks size bytes long
+    public void format(int inodeBlocks, int size) {
+        blockSize = size;
+        totalBlocks = diskBlocks / (size / Disk.blockSize);
         totalInodes = inodeBlocks;
-        for (short i = 0; i < totalInodes; i++) {
-            Inode inode = new Inode();
-            inode.flag = 0;
-            inode.toDisk(i);
+        freeList = 2 + totalInodes * Inode.iNodeSize / blockSize;
+        // a block of zeros holds blockSize / 32 unused inodes
+        byte[] zeros = new byte[blockSize];
+        for (int b = 1; b < freeList; b++) {
+            writeBlock(b, zeros);
+        }
+        features = 0; // a new volume starts with every feature off
+        initGroups();
+        mountedFree = shareStart - freeList;
+        // every data block starts out free and unshared; the blocks outside the groups are always marked in use
+        for (int b = shareStart; b < bitmapStart; b++) {
+            writeBlock(b, zeros);
         }
-        freeList = 2 + totalInodes * 32 / Disk.blockSize;
-        for (int i = freeList; i < totalBlocks; i++) {
-            byte[] superBlock = new byte[Disk.blockSize];
-            for (int j = 0; j < Disk.blockSize; j++) {
-                superBlock[j] = 0;
+        for (int b = bitmapStart; b < totalBlocks; b++) {
+            byte[] bitmap = new byte[blockSize];
+            int base = (b - bitmapStart) * bitsPerBlock;
+            for (int bit = 0; bit < bitsPerBlock && base + bit < totalBlocks; bit++) {
+                if (isReserved(base + bit)) {
+                    bitmap[bit / 8] |= 1 << (bit % 8);
+                }
             }
-            SysLib.int2bytes(i + 1, superBlock, 0);
-            SysLib.rawwrite(i, superBlock);
+            writeBlock(b, bitmap);
         }
         sync();
     }
 
-    // Write back totalBlocks, totalInodes, and freeList to disk
+    // lays the allocation groups over the blocks between the inodes and the share counts, none of them read yet
+    private void initGroups() {
+        bitsPerBlock = blockSize * 8;
+        bitmapStart = totalBlocks - (totalBlocks + bitsPerBlock - 1) / bitsPerBlock;
+        shareStart = bitmapStart - (totalBlocks + blockSize - 1) / blockSize;
+        groupCount = Math.max(1, (shareStart - freeList + groupBlocks - 1) / groupBlocks);
+        groups = new AtomicReferenceArray<AllocationGroup>(groupCount);
+    }
+
+    // returns allocation group g, reading its part of the bitmap and share counts the first time
+    private AllocationGroup group(int g) {
+        AllocationGroup group = groups.get(g);
+        if (group != null) {
+            return group;
+        }
+        synchronized (groups) {
+            group = groups.get(g);
+            if (group == null) {
+                int first = freeList + g * groupBlocks;
+                group = new AllocationGroup(first, Math.max(0, Math.min(groupBlocks, shareStart - first)));
+                byte[] data = new byte[blockSize];
+                int loaded = -1;
+                for (int i = 0; i < group.size; i++) {
+                    int block = first + i;
+                    if (block / bitsPerBlock != loaded) {
+                        loaded = block / bitsPerBlock;
+                        readBlock(bitmapStart + loaded, data);
+                    }
+                    int bit = block % bitsPerBlock;
+                    if ((data[bit / 8] & (1 << (bit % 8))) != 0) {
+                        group.used.set(i);
+                        group.free--;
+                    }
+                }
+                // then the share counts, one byte per block
+                loaded = -1;
+                for (int i = 0; i < group.size; i++) {
+                    int block = first + i;
+                    if (block / blockSize != loaded) {
+                        loaded = block / blockSize;
+                        readBlock(shareStart + loaded, data);
+                    }
+                    group.shares[i] = data[block % blockSize];
+                }
+                group.full = group.free == 0;
+                groups.set(g, group);
+            }
+            return group;
+        }
+    }
+
+    // Write back totalBlocks, totalInodes, and freeList to disk, followed by the changed bitmap and share count blocks
     public void sync() {
         byte[] superBlock = new byte[Disk.blockSize];
         SysLib.int2bytes(totalBlocks, superBlock, 0);
         SysLib.int2bytes(totalInodes, superBlock, 4);
         SysLib.int2bytes(freeList, superBlock, 8);
-        SysLib.rawwrite(0, superBlock);
+        SysLib.int2bytes(magic, superBlock, 12);
+        SysLib.int2bytes(features, superBlock, 16);
+        SysLib.int2bytes(freeBlocks(), superBlock, 20);
+        SysLib.int2bytes(blockSize, superBlock, 24);
+        SysLib.rawwrite(0, superBlock); // the rest of block 0 is never used
+
+        // collect the blocks each group changed; a bit changed after its group is visited marks the group again
+        // for the next sync
+        BitSet bitmapBlocks = new BitSet();
+        BitSet shareBlocks = new BitSet();
+        for (int g = 0; g < groupCount; g++) {
+            AllocationGroup group = groups.get(g);
+            if (group == null) {
+                continue;
+            }
+            synchronized (group) {
+                int last = group.first + Math.max(group.size, 1) - 1;
+                if (group.bitmapDirty) {
+                    bitmapBlocks.set(group.first / bitsPerBlock, last / bitsPerBlock + 1);
+                    group.bitmapDirty = false;
+                }
+                if (group.sharesDirty) {
+                    shareBlocks.set(group.first / blockSize, last / blockSize + 1);
+                    group.sharesDirty = false;
+                }
+            }
+        }
+        byte[] data = new byte[blockSize];
+        for (int k = bitmapBlocks.nextSetBit(0); k >= 0; k = bitmapBlocks.nextSetBit(k + 1)) {
+            int base = k * bitsPerBlock;
+            readBlock(bitmapStart + k, data);
+            for (AllocationGroup group : groupsOver(base, base + bitsPerBlock)) {
+                synchronized (group) {
+                    for (int i = 0; i < group.size; i++) {
+                        int bit = group.first + i - base;
+                        if (bit >= 0 && bit < bitsPerBlock) {
+                            if (group.used.get(i)) {
+                                data[bit / 8] |= 1 << (bit % 8);
+                            } else {
+                                data[bit / 8] &= ~(1 << (bit % 8));
+                            }
+                        }
+                    }
+                }
+            }
+            writeBlock(bitmapStart + k, data);
+        }
+        for (int k = shareBlocks.nextSetBit(0); k >= 0; k = shareBlocks.nextSetBit(k + 1)) {
+            int base = k * blockSize;
+            readBlock(shareStart + k, data);
+            for (AllocationGroup group : groupsOver(base, base + blockSize)) {
+                synchronized (group) {
+                    int from = Math.max(base, group.first);
+                    int to = Math.min(base + blockSize, group.first + group.size);
+                    if (from < to) {
+                        System.arraycopy(group.shares, from - group.first, data, from - base, to - from);
+                    }
+                }
+            }
+            writeBlock(shareStart + k, data);
+        }
     }
 
-    // Dequeue the top block from the free list
+    // returns the allocation groups already read that hold any of the blocks from first up to end
+    private AllocationGroup[] groupsOver(int first, int end) {
+        int low = Math.max(first, freeList);
+        int high = Math.min(end, shareStart);
+        if (low >= high) {
+            return new AllocationGroup[0];
+        }
+        int from = (low - freeList) / groupBlocks;
+        int to = (high - 1 - freeList) / groupBlocks;
+        AllocationGroup[] found = new AllocationGroup[to - from + 1];
+        int count = 0;
+        for (int g = from; g <= to; g++) {
+            if (groups.get(g) != null) {
+                found[count++] = groups.get(g);
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    // records that count blocks of group were allocated, or freed when count is negative; the caller holds the
+    // lock of group
+    private static void allocated(AllocationGroup group, int count) {
+        group.free -= count;
+        group.freed -= count;
+        group.full = group.free == 0;
+        group.bitmapDirty = true;
+    }
+
+    // returns the first allocation group from g on that is not known to be full, or groupCount if there is none
+    private int nextOpen(int g) {
+        for (; g < groupCount; g++) {
+            AllocationGroup group = groups.get(g);
+            if (group == null || !group.full) {
+                return g;
+            }
+        }
+        return groupCount;
+    }
+
+    // returns true for the superblock, inode, share count and bitmap blocks, which are never allocated
+    boolean isReserved(int blockNumber) {
+        return blockNumber < freeList || blockNumber >= shareStart;
+    }
+
+    // returns the allocation group holding the given block, or null for reserved blocks
+    private AllocationGroup groupOf(int blockNumber) {
+        if (blockNumber < 0 || isReserved(blockNumber)) {
+            return null;
+        }
+        return group((blockNumber - freeList) / groupBlocks);
+    }
+
+    // Allocate a free block from the group of the calling thread
     public int getFreeBlock() {
-        int index = freeList;
-        if (index != -1) {
-            byte[] superBlock = new byte[Disk.blockSize];
+        return getFreeBlock((int) Thread.currentThread().getId());
+    }
 
-            SysLib.rawread(index, superBlock);
-            freeList = SysLib.bytes2int(superBlock, 0);
+    // Allocate a free block, starting with the group the hint (a thread or inode number) maps to
+    // and stealing from the following groups when that one is full
+    public int getFreeBlock(int hint) {
+        int start = (hint & Integer.MAX_VALUE) % groupCount;
+        for (int pass = 0; pass < 2; pass++) { // from the hinted group to the last, then from the first
+            int end = (pass == 0) ? groupCount : start;
+            for (int g = nextOpen(pass == 0 ? start : 0); g < end; g = nextOpen(g + 1)) {
+                AllocationGroup group = group(g);
+                synchronized (group) {
+                    if (group.free == 0) {
+                        continue;
+                    }
+                    int index = group.used.nextClearBit(group.rotor);
+                    if (index >= group.size) { // wrap around to the start of the group
+                        index = group.used.nextClearBit(0);
+                    }
+                    group.used.set(index);
+                    allocated(group, 1);
+                    group.rotor = index + 1;
+                    return group.first + index;
+                }
+            }
+        }
+        return -1;
+    }
 
-            SysLib.int2bytes(0, superBlock, 0);
-            SysLib.rawwrite(index, superBlock);
+    // Allocate blocks.length free blocks at once, as runs of neighbouring blocks where possible, starting with the
+    // group the hint maps to. Returns the number of blocks placed in blocks[], which is short only when the disk is full.
+    public int getFreeBlocks(int hint, int[] blocks) {
+        int count = 0;
+        int start = (hint & Integer.MAX_VALUE) % groupCount;
+        for (int pass = 0; pass < 2; pass++) {
+            int end = (pass == 0) ? groupCount : start;
+            for (int g = nextOpen(pass == 0 ? start : 0); g < end && count < blocks.length; g = nextOpen(g + 1)) {
+                AllocationGroup group = group(g);
+                synchronized (group) {
+                    // take each free run in turn, beginning at the rotor
+                    while (count < blocks.length && group.free > 0) {
+                        int index = group.used.nextClearBit(group.rotor);
+                        if (index >= group.size) { // wrap around to the start of the group
+                            index = group.used.nextClearBit(0);
+                        }
+                        int runEnd = group.used.nextSetBit(index);
+                        if (runEnd < 0 || runEnd > group.size) {
+                            runEnd = group.size;
+                        }
+                        int take = Math.min(runEnd - index, blocks.length - count);
+                        group.used.set(index, index + take);
+                        allocated(group, take);
+                        for (int j = 0; j < take; j++) {
+                            blocks[count++] = group.first + index + j;
+                        }
+                        group.rotor = index + take;
+                    }
+                }
+            }
         }
-        return index;
+        return count;
     }
 
-    // Enqueue a given block to the end of the free list
+    // Return a given block to the free blocks of its allocation group
     public boolean returnBlock(int blockNumber) {
-        if (blockNumber >= 0) {
-            byte[] superBlock = new byte[Disk.blockSize];
-            for (int i = 0; i < Disk.blockSize; i++) {
-                superBlock[i] = 0;
-            }
-            SysLib.int2bytes(freeList, superBlock, 0);
-            SysLib.rawwrite(blockNumber, superBlock);
-            freeList = blockNumber;
+        AllocationGroup group = groupOf(blockNumber);
+        if (group == null) {
+            return false;
+        }
+        synchronized (group) {
+            return release(group, blockNumber);
+        }
+    }
+
+    // drops one reference to the given block of group, freeing the block with the last; the caller holds the lock
+    // of group. Returns false if the block was already free.
+    private boolean release(AllocationGroup group, int blockNumber) {
+        int index = blockNumber - group.first;
+        if (!group.used.get(index)) { // already free
+            return false;
+        }
+        if (group.shares[index] != 0) { // another file still uses it
+            group.shares[index]--;
+            group.sharesDirty = true;
+            return true;
+        }
+        group.used.clear(index);
+        allocated(group, -1);
+        return true;
+    }
+
+    // Return many blocks at once, taking the lock of each allocation group once for all of its blocks
+    public void returnBlocks(int[] blockNumbers) {
+        int[] sorted = blockNumbers.clone();
+        Arrays.sort(sorted);
+        int i = 0;
+        while (i < sorted.length) {
+            AllocationGroup group = groupOf(sorted[i]);
+            if (group == null) {
+                i++;
+                continue;
+            }
+            synchronized (group) {
+                for (; i < sorted.length && groupOf(sorted[i]) == group; i++) {
+                    release(group, sorted[i]);
+                }
+            }
+        }
+    }
+
+    // Add a reference to an allocated block, so that it is freed only once every reference has been returned
+    // returns false if the block is free or already has the most references a block can have
+    public boolean share(int blockNumber) {
+        AllocationGroup group = groupOf(blockNumber);
+        if (group == null) {
+            return false;
+        }
+        synchronized (group) {
+            int index = blockNumber - group.first;
+            if (!group.used.get(index) || (group.shares[index] & 0xff) == maxShares) {
+                return false;
+            }
+            group.shares[index]++;
+            group.sharesDirty = true;
+            return true;
+        }
+    }
+
+    // returns the number of references to the given block beyond the first
+    public int shares(int blockNumber) {
+        AllocationGroup group = groupOf(blockNumber);
+        if (group == null) {
+            return 0;
+        }
+        synchronized (group) {
+            return group.shares[blockNumber - group.first] & 0xff;
+        }
+    }
+
+    // sets the number of references to the given block beyond the first; used to repair the counts
+    public void setShares(int blockNumber, int shares) {
+        AllocationGroup group = groupOf(blockNumber);
+        if (group != null) {
+            synchronized (group) {
+                group.shares[blockNumber - group.first] = (byte) Math.min(shares, maxShares);
+                group.sharesDirty = true;
+            }
+        }
+    }
+
+    // returns true if the given data block is marked in use
+    public boolean isAllocated(int blockNumber) {
+        AllocationGroup group = groupOf(blockNumber);
+        if (group == null) {
+            return false;
+        }
+        synchronized (group) {
+            return group.used.get(blockNumber - group.first);
+        }
+    }
+
+    // marks the given free data block in use; returns false if it is reserved or already in use
+    public boolean claimBlock(int blockNumber) {
+        AllocationGroup group = groupOf(blockNumber);
+        if (group == null || blockNumber >= totalBlocks) {
+            return false;
+        }
+        synchronized (group) {
+            int index = blockNumber - group.first;
+            if (group.used.get(index)) {
+                return false;
+            }
+            group.used.set(index);
+            allocated(group, 1);
             return true;
         }
-        return false;
+    }
+
+    // returns the number of free data blocks: the count at mount, changed by what every group read since did
+    public int freeBlocks() {
+        int count = mountedFree;
+        for (int g = 0; g < groupCount; g++) {
+            AllocationGroup group = groups.get(g);
+            if (group != null) {
+                count += group.freed;
+            }
+        }
+        return count;
+    }
+
+    // sets the number of free data blocks to the count of clear bits in every group, reading all of them;
+    // used to repair a count left stale on disk
+    public void recount() {
+        int count = 0;
+        for (int g = 0; g < groupCount; g++) {
+            AllocationGroup group = group(g);
+            synchronized (group) {
+                count += group.free - group.freed; // what freeBlocks( ) adds for the group comes on top
+            }
+        }
+        mountedFree = count;
     }
 }
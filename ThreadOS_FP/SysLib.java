@@ -12,8 +12,23 @@ public class SysLib {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FORMAT, files, null);
     }
 
+    // formats the disk as above with file system blocks of blockSize bytes, a power of two from Disk.blockSize
+    // (512) to 64 KB. Larger blocks take fewer disk requests to read or write a file in order. Returns 0 on success,
+    // otherwise -1.
+    public static int format(int files, int blockSize) {
+        int[] args = new int[]{blockSize};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FORMAT, files, args);
+    }
+
+    // returns the number of bytes in each block of the file system; reads and writes of whole, aligned blocks
+    // need no read of the block first
+    public static int blockSize() {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.BLOCKSIZE, 0, null);
+    }
+
     // opens the file specified by the fileName string in the given mode (where "r" = ready only, "w" = write only,
     // "w+" = read/write, "a" = append), and allocates a new file descriptor, fd to this file.
+    // Adding "c" to a mode that writes, as in "w+c", stores an empty file compressed; reads expand it transparently.
     public static int open(String fileName, String mode) {
         String[] args = new String[]{fileName, mode};
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.OPEN, 0, args);
@@ -35,12 +50,110 @@ public class SysLib {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, Kernel.WRITE, fd, buffer );
     }
 
+    // reads up to buffer.length bytes from the file indicated by fd, starting at offset bytes from the beginning of the file.
+    // Unlike SysLib.read, the seek pointer is neither used nor changed, so threads sharing fd can read different parts of
+    // the file at the same time. The return value is the number of bytes that have been read, or a negative value upon an error.
+    public static int pread(int fd, byte buffer[], int offset) {
+        Object[] args = new Object[]{buffer, offset};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.PREAD, fd, args);
+    }
+
+    // writes the contents of buffer to the file indicated by fd, starting at offset bytes from the beginning of the file.
+    // An offset past the end of the file leaves a hole. The seek pointer is neither used nor changed.
+    // The return value is the number of bytes that have been written, or a negative value upon an error.
+    public static int pwrite(int fd, byte buffer[], int offset) {
+        Object[] args = new Object[]{buffer, offset};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.PWRITE, fd, args);
+    }
+
+    // copies up to length bytes from the file indicated by srcFd, starting at its seek pointer, to the file indicated by dstFd
+    // at its seek pointer. The data never leaves the kernel. Both seek pointers are incremented by the number of bytes copied.
+    // The return value is the number of bytes that have been copied, or a negative value upon an error.
+    public static int copy(int srcFd, int dstFd, int length) {
+        int[] args = new int[]{dstFd, length};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.COPY, srcFd, args);
+    }
+
+    // reserves disk blocks for the first length bytes of the file indicated by fd without changing its size, so that
+    // later writes up to length need no block allocation. The blocks are allocated together and lie next to each other
+    // on disk where free space allows. The return value is 0 on success, or -1 upon an error.
+    public static int fallocate(int fd, int length) {
+        int[] args = new int[]{length};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FALLOCATE, fd, args);
+    }
+
+    // sets the size of the file indicated by fd to length bytes. Shrinking frees the disk blocks past the new end;
+    // growing leaves a hole that reads as zeros. The return value is 0 on success, or -1 upon an error.
+    public static int truncate(int fd, int length) {
+        int[] args = new int[]{length};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.TRUNCATE, fd, args);
+    }
+
+    // checks that the directory, the inodes, and the free-block bitmap agree, printing a line for each problem found.
+    // With repair set, bad block pointers are cleared, unnamed inodes are emptied, unreachable directory entries are removed,
+    // and the bitmap is corrected; every file must be closed. The return value is the number of problems found, or -1 upon an error.
+    public static int fsck(boolean repair) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FSCK, repair ? 1 : 0, null);
+    }
+
+    // creates the file target as a copy of the file source without copying any data: both files share the same disk blocks,
+    // and a block is copied only when one of the files first changes it. target must not exist yet.
+    // The return value is 0 on success, otherwise -1.
+    public static int clone(String source, String target) {
+        String[] args = new String[]{source, target};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CLONE, 0, args);
+    }
+
+    // clones every file into the directory "/.snapshots/name", keeping the directory tree, so the snapshot costs inodes and
+    // index blocks but no data blocks until files change. It is refused while the calling thread holds a file open
+    // for writing. The snapshot is not a point-in-time image of the volume: files are cloned one at a time, each as
+    // it is when its turn comes, and other threads may write to files already cloned or not yet reached, or make and
+    // delete files, meanwhile. Each file is captured whole, never in the middle of a write. For a consistent image,
+    // stop the writers first. The return value is the number of files captured, or -1 upon an error.
+    public static int snapshot(String name) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.SNAPSHOT, 0, name);
+    }
+
+    // turns block deduplication on or off for the file system. While it is on, a full block written with the same bytes
+    // as a block written earlier shares that block instead of taking a new one; a later change to either copy is made
+    // on a copy, as with clone. The setting is kept until it is changed or the disk is formatted. Returns 0.
+    public static int dedup(boolean on) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.DEDUP, on ? 1 : 0, null);
+    }
+
+    // maps length bytes of the file indicated by fd, starting at offset, into memory and returns the mapped region.
+    // Pages of the region are read from the file the first time they are touched, so later accesses through
+    // MappedFile.get and put need no system call. The region must lie inside the file and fd must be open with "r" or "w+";
+    // only "w+" regions can be written. The return value is null upon an error.
+    public static MappedFile mmap(int fd, int offset, int length) {
+        Object[] args = new Object[]{offset, length, null};
+        if (Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.MMAP, fd, args) == Kernel.ERROR) {
+            return null;
+        }
+        return (MappedFile) args[2];
+    }
+
+    // writes the pages of region changed since the last msync back to its file. Closing the file does the same.
+    // The return value is 0 on success, otherwise -1.
+    public static int msync(MappedFile region) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.MSYNC, 0, region);
+    }
+
+    // writes the changed pages of region back to its file and unmaps it. The last close of the file unmaps it as well.
+    // The return value is 0 on success, otherwise -1.
+    public static int munmap(MappedFile region) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.MUNMAP, 0, region);
+    }
+
     // Updates the seek pointer corresponding to fd as follows:
     // If whence is SEEK_SET (= 0), the file's seek pointer is set to offset bytes from the beginning of the file
     // If whence is SEEK_CUR (= 1), the file's seek pointer is set to its current value plus the offset. The offset can be positive or negative.
     // If whence is SEEK_END (= 2), the file's seek pointer is set to the size of the file plus the offset. The offset can be positive or negative.
-    // If the user attempts to set the seek pointer to a negative number you must clamp it to zero. If the user attempts to set the pointer to beyond the file size,
-    // you must set the seek pointer to the end of the file. In both cases, you should return success.
+    // If whence is SEEK_DATA (= 3), the file's seek pointer is set to the first byte at or after offset that is not in a hole.
+    // If whence is SEEK_HOLE (= 4), the file's seek pointer is set to the first hole at or after offset; the end of the file counts as one.
+    // The seek pointer may be set beyond the file size; writing there leaves a hole that reads as zeros and takes no disk blocks.
+    // The return value is the new seek pointer, or -1 if it would be negative or, for SEEK_DATA and SEEK_HOLE, if offset lies
+    // at or past the end of the file or no data follows it.
     public static int seek(int fd, int offset, int whence) {
         int[] args = new int[]{offset, whence};
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.SEEK, fd, args);
@@ -58,6 +171,24 @@ public class SysLib {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.DELETE, 0, fileName);
     }
 
+    // creates a new, empty directory. Every directory in path but the last one must already exist.
+    // The return value is 0 on success, otherwise -1.
+    public static int mkdir(String path) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.MKDIR, 0, path);
+    }
+
+    // removes the directory specified by path. The directory must be empty. The return value is 0 on success, otherwise -1.
+    public static int rmdir(String path) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.RMDIR, 0, path);
+    }
+
+    // copies up to names.length entry names of the directory specified by path into names.
+    // The return value is the number of entries in the directory, which may exceed names.length, or -1 upon an error.
+    public static int readdir(String path, String names[]) {
+        Object[] args = new Object[]{path, names};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.READDIR, 0, args);
+    }
+
     // returns the size in bytes of the file indicated by fd.
     public static int fsize(int fd) {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.SIZE, fd, null);
@@ -75,8 +206,13 @@ public class SysLib {
     }
 
     public static int boot() {
+        return boot(0);
+    }
+
+    // boots with a disk of the given number of blocks, or of the default size when diskBlocks is 0
+    public static int boot(int diskBlocks) {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
-                Kernel.BOOT, 0, null);
+                Kernel.BOOT, diskBlocks, null);
     }
 
     public static int exit() {
@@ -94,6 +230,17 @@ public class SysLib {
                 0, 0, null);
     }
 
+    public static int console() {
+        return Kernel.interrupt(Kernel.INTERRUPT_IO,
+                0, 0, null);
+    }
+
+    // appends the next line typed to s if one is waiting, without waiting for one. Returns the number of characters
+    // appended, Kernel.AGAIN if no line has been typed yet, or -1 once standard input has ended.
+    public static int tryCin(StringBuffer s) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.TRYCIN, 0, s);
+    }
+
     public static int cin(StringBuffer s) {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
                 Kernel.READ, 0, s);
@@ -144,6 +291,37 @@ public class SysLib {
                 Kernel.CSYNC, 0, null);
     }
 
+    // runs every request queued on ring, in order, within one system call, moving each to the ring's completions
+    // for IoRing.reap( ) to collect. Only the thread that submitted the ring first may submit it. Returns the number of
+    // requests run, which is fewer than were queued when the completions left unreaped have no room for more, or -1.
+    public static int submit(IoRing ring) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.SUBMIT, 0, ring);
+    }
+
+    // starts recording kernel events into per-thread trace buffers, emptying them first, or stops recording.
+    // The return value is 0.
+    public static int trace(boolean on) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.TRACE, on ? 1 : 0, null);
+    }
+
+    // writes the recorded kernel events to fileName on the host, in the Chrome trace_event JSON format that
+    // chrome://tracing and Perfetto open. Returns the number of events written, or -1 if the file cannot be written.
+    public static int traceDump(String fileName) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.TRACE, 2, fileName);
+    }
+
+    // returns a table of every system call made since boot or the last reset: how often it was called, how often it
+    // failed, and its latency at the 50th, 99th and 99.9th percentiles and at most. With reset, counting starts anew.
+    public static String stats(boolean reset) {
+        StringBuffer report = new StringBuffer();
+        Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.STATS, reset ? 1 : 0, report);
+        return report.toString();
+    }
+
+    public static String stats() {
+        return stats(false);
+    }
+
     public static String[] stringToArgs(String s) {
         StringTokenizer token = new StringTokenizer(s, " ");
         String[] progArgs = new String[token.countTokens()];
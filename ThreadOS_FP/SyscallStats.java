@@ -0,0 +1,125 @@
+/*
+Counts the calls, the errors and the latencies of every system call that Kernel.interrupt( ) dispatches. Latencies go
+into a histogram per call number with log-linear buckets in the manner of HdrHistogram: values below 32 ns have a
+bucket each, and every larger power of two is split into 32 buckets, so a percentile read back is within about 3% of
+the latency measured while a histogram stays a fixed 1888 counters whatever the range. Recording takes no lock, so
+the kernel can call record( ) from any thread; a report taken while calls are in flight may miss the latest of them.
+Calls that return a negative value count as errors.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class SyscallStats {
+    private static final int subBits = 5; // each power of two is split into 2^subBits buckets
+    private static final int subBuckets = 1 << subBits;
+    private static final int buckets = (64 - subBits) * subBuckets;
+
+    private final String[] names; // the name of each call number, null where none is registered
+    private final AtomicLongArray calls;
+    private final AtomicLongArray errors;
+    private final AtomicLongArray maxNanos;
+    private final AtomicReferenceArray<AtomicLongArray> histograms; // made when a call is first recorded
+
+    public SyscallStats(String[] names) {
+        this.names = names;
+        calls = new AtomicLongArray(names.length);
+        errors = new AtomicLongArray(names.length);
+        maxNanos = new AtomicLongArray(names.length);
+        histograms = new AtomicReferenceArray<AtomicLongArray>(names.length);
+    }
+
+    // records one call of cmd that returned result after the given nanoseconds
+    public void record(int cmd, int result, long nanos) {
+        AtomicLongArray histogram = histograms.get(cmd);
+        if (histogram == null) {
+            histograms.compareAndSet(cmd, null, new AtomicLongArray(buckets));
+            histogram = histograms.get(cmd);
+        }
+        histogram.incrementAndGet(bucketOf(Math.max(0, nanos)));
+        calls.incrementAndGet(cmd);
+        if (result < 0) {
+            errors.incrementAndGet(cmd);
+        }
+        long max = maxNanos.get(cmd);
+        while (nanos > max && !maxNanos.compareAndSet(cmd, max, nanos)) {
+            max = maxNanos.get(cmd);
+        }
+    }
+
+    // forgets every call recorded so far
+    public void reset() {
+        for (int cmd = 0; cmd < names.length; cmd++) {
+            histograms.set(cmd, null);
+            calls.set(cmd, 0);
+            errors.set(cmd, 0);
+            maxNanos.set(cmd, 0);
+        }
+    }
+
+    // returns one line per call made since the last reset, giving its count, its errors and its latency at the
+    // 50th, 99th and 99.9th percentiles and at most, in microseconds
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %8s %6s %10s %10s %10s %10s%n",
+                "syscall", "calls", "errors", "p50 us", "p99 us", "p999 us", "max us"));
+        for (int cmd = 0; cmd < names.length; cmd++) {
+            AtomicLongArray histogram = histograms.get(cmd);
+            if (histogram == null || names[cmd] == null) {
+                continue;
+            }
+            long[] counts = new long[buckets];
+            long total = 0;
+            for (int i = 0; i < buckets; i++) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                continue;
+            }
+            long max = maxNanos.get(cmd); // a bucket's highest value can exceed the largest latency in it
+            report.append(String.format("%-10s %8d %6d %10s %10s %10s %10s%n", names[cmd], calls.get(cmd),
+                    errors.get(cmd), micros(Math.min(max, percentile(counts, total, 0.50))),
+                    micros(Math.min(max, percentile(counts, total, 0.99))),
+                    micros(Math.min(max, percentile(counts, total, 0.999))), micros(max)));
+        }
+        return report.toString();
+    }
+
+    // returns the bucket that holds nanos: exact below subBuckets, then subBuckets buckets per power of two
+    private static int bucketOf(long nanos) {
+        if (nanos < subBuckets) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos); // at least subBits
+        int sub = (int) (nanos >>> (exponent - subBits)) & (subBuckets - 1);
+        return (exponent - subBits + 1) * subBuckets + sub;
+    }
+
+    // returns the largest value that falls in bucket i
+    private static long highestOf(int i) {
+        if (i < subBuckets) {
+            return i;
+        }
+        int shift = i / subBuckets - 1; // exponent - subBits
+        long lowest = (long) (subBuckets + i % subBuckets) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    // returns the value at or below which the given fraction of the total calls fall
+    private static long percentile(long[] counts, long total, double fraction) {
+        long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestOf(i);
+            }
+        }
+        return highestOf(counts.length - 1);
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+}
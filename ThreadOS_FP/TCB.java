@@ -40,6 +40,25 @@ public class TCB {
       return terminated;
    }
 
+   // returns the number of file descriptors open, not counting the
+   // standard ones
+   public synchronized int getFdCount( ) {
+      int count = 0;
+      for ( int i = 3; i < 32; i++ )
+         if ( ftEnt[i] != null )
+            count++;
+      return count;
+   }
+
+   // returns true if any file descriptor of this thread is open for
+   // writing, not counting the standard ones
+   public synchronized boolean holdsWriter( ) {
+      for ( int i = 3; i < ftEnt.length; i++ )
+         if ( ftEnt[i] != null && ftEnt[i].mode != "r" )
+            return true;
+      return false;
+   }
+
    // added for the file system
    public synchronized int getFd( FileTableEntry entry ) {
       if ( entry == null )
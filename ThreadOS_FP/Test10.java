@@ -0,0 +1,197 @@
+// Tests memory-mapped files: reading through a region, writing back with
+// msync, munmap and close, writes and truncates seen through a region, and
+// the regions mmap refuses. Formats the disk first.
+class Test10 extends Thread {
+  final byte[] data = new byte[512 * 14];
+
+  public void run( ) {
+    SysLib.format( 48 );
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte ) ( i % 101 );
+    int fd = SysLib.open( "mapped", "w+" );
+    SysLib.write( fd, data );
+    if ( test1( fd ) ) // read through a region
+      SysLib.cout( "Correct behavior of reading a mapped region.....1\n" );
+    if ( test2( fd ) ) // msync writes changes back
+      SysLib.cout( "Correct behavior of msync.......................1\n" );
+    if ( test3( fd ) ) // pwrite and truncate while mapped
+      SysLib.cout( "Correct behavior of writing a mapped file.......1\n" );
+    if ( test4( fd ) ) // close and munmap write back and unmap
+      SysLib.cout( "Correct behavior of close and munmap............1\n" );
+    if ( test5( ) ) // regions that cannot be mapped or written
+      SysLib.cout( "Correct behavior of mmap errors.................1\n" );
+    if ( test6( ) ) // fsck finds nothing wrong
+      SysLib.cout( "Correct behavior of fsck after mmap.............1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private boolean test1( int fd ) {
+    //.............................................."
+    SysLib.cout( "1: mmap( fd, 100, 6000 ) and get............" );
+    MappedFile region = SysLib.mmap( fd, 100, 6000 );
+    if ( region == null || region.length( ) != 6000 ) {
+      SysLib.cout( "region = " + region + " (wrong)\n" );
+      return false;
+    }
+    if ( region.get( 0 ) != data[100] || region.get( 5999 ) != data[6099] ) {
+      SysLib.cout( "get (wrong)\n" );
+      return false;
+    }
+    byte[] tmpBuf = new byte[1000];
+    region.get( 400, tmpBuf );
+    for ( int i = 0; i < tmpBuf.length; i++ )
+      if ( tmpBuf[i] != data[500 + i] ) {
+        SysLib.cout( "tmpBuf[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.munmap( region );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( int fd ) {
+    //.............................................."
+    SysLib.cout( "2: put and msync............................" );
+    MappedFile region = SysLib.mmap( fd, 0, data.length );
+    region.put( 5, ( byte ) -1 );
+    region.put( 1000, new byte[] { 9, 9, 9 } );
+    region.put( data.length - 1, ( byte ) -2 ); // the last page
+    if ( SysLib.msync( region ) != 0 ) {
+      SysLib.cout( "msync failed (wrong)\n" );
+      return false;
+    }
+    data[5] = -1;
+    data[1000] = data[1001] = data[1002] = 9;
+    data[data.length - 1] = -2;
+    byte[] tmpBuf = new byte[data.length];
+    SysLib.pread( fd, tmpBuf, 0 );
+    for ( int i = 0; i < data.length; i++ )
+      if ( tmpBuf[i] != data[i] ) {
+        SysLib.cout( "tmpBuf[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    if ( SysLib.munmap( region ) != 0 || SysLib.munmap( region ) != -1 ) {
+      SysLib.cout( "munmap (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( int fd ) {
+    //.............................................."
+    SysLib.cout( "3: pwrite and truncate under a region......" );
+    MappedFile region = SysLib.mmap( fd, 0, data.length );
+    int last = data.length - 50;
+    region.get( last ); // the last page is in memory before the truncate
+    region.put( 1600, ( byte ) 7 );
+    // beside the byte put, in the same block, then in a page already read
+    SysLib.pwrite( fd, new byte[] { 11, 11, 11, 11 }, 1700 );
+    SysLib.pwrite( fd, new byte[] { 12 }, 1610 );
+    byte seen = region.get( 1610 );
+    SysLib.truncate( fd, data.length - 100 );
+    byte cut = region.get( last );
+    if ( seen != 12 || cut != 0 ) {
+      SysLib.cout( "region shows " + seen + " and " + cut + " (wrong)\n" );
+      return false;
+    }
+    // the tail written back is seen as well
+    SysLib.pwrite( fd, java.util.Arrays.copyOfRange( data, data.length - 100, data.length ),
+                   data.length - 100 );
+    seen = region.get( last );
+    if ( SysLib.munmap( region ) != 0 || seen != data[last] ) {
+      SysLib.cout( "region shows " + seen + " after the tail (wrong)\n" );
+      return false;
+    }
+    // msync wrote only the byte put, not the block over the pwrites
+    data[1600] = 7;
+    data[1610] = 12;
+    data[1700] = data[1701] = data[1702] = data[1703] = 11;
+    byte[] tmpBuf = new byte[data.length + 1];
+    int size = SysLib.pread( fd, tmpBuf, 0 );
+    if ( size != data.length ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < data.length; i++ )
+      if ( tmpBuf[i] != data[i] ) {
+        SysLib.cout( "tmpBuf[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( int fd ) {
+    //.............................................."
+    SysLib.cout( "4: close( fd ) writes back and unmaps......." );
+    MappedFile region = SysLib.mmap( fd, 512, 1024 );
+    region.put( 1, ( byte ) 42 );
+    SysLib.close( fd );
+    boolean unmapped = false;
+    try {
+      region.get( 0 );
+    } catch ( IllegalStateException e ) {
+      unmapped = true;
+    }
+    if ( unmapped == false ) {
+      SysLib.cout( "still mapped (wrong)\n" );
+      return false;
+    }
+    fd = SysLib.open( "mapped", "r" );
+    byte[] tmpBuf = new byte[2];
+    SysLib.pread( fd, tmpBuf, 512 );
+    SysLib.close( fd );
+    if ( tmpBuf[0] != data[512] || tmpBuf[1] != 42 ) {
+      SysLib.cout( "tmpBuf[1] = " + tmpBuf[1] + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: mmap errors.............................." );
+    int fd = SysLib.open( "mapped", "r" );
+    if ( SysLib.mmap( fd, 7000, 500 ) != null || SysLib.mmap( fd, -1, 10 ) != null ) {
+      SysLib.cout( "mapped outside the file (wrong)\n" );
+      return false;
+    }
+    MappedFile region = SysLib.mmap( fd, 0, 10 );
+    boolean readOnly = false;
+    try {
+      region.put( 0, ( byte ) 1 );
+    } catch ( java.nio.ReadOnlyBufferException e ) {
+      readOnly = true;
+    }
+    SysLib.close( fd );
+    if ( readOnly == false ) {
+      SysLib.cout( "wrote through \"r\" (wrong)\n" );
+      return false;
+    }
+    fd = SysLib.open( "mapped", "a" );
+    region = SysLib.mmap( fd, 0, 10 );
+    SysLib.close( fd );
+    if ( region != null ) {
+      SysLib.cout( "mapped an \"a\" file (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test6( ) {
+    //.............................................."
+    SysLib.cout( "6: fsck( false )..........................." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,204 @@
+// Tests fallocate, truncate and sparse files: what each does to the file
+// size, to its contents and to the free blocks, which it reads from /proc/fs.
+// Formats the disk first.
+class Test11 extends Thread {
+  final byte[] data = new byte[512 * 20];
+
+  public void run( ) {
+    SysLib.format( 48 );
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte ) ( i % 97 + 1 );
+    int fd = SysLib.open( "reserved", "w+" );
+    SysLib.write( fd, new byte[100] );
+    if ( test1( fd ) ) // fallocate reserves blocks
+      SysLib.cout( "Correct behavior of fallocate...................1\n" );
+    if ( test2( fd ) ) // truncate shrinks and frees blocks
+      SysLib.cout( "Correct behavior of shrinking truncate..........1\n" );
+    SysLib.close( fd );
+    if ( test3( ) ) // holes read as zeros and take no blocks
+      SysLib.cout( "Correct behavior of sparse files................1\n" );
+    if ( test4( ) ) // bad arguments
+      SysLib.cout( "Correct behavior of fallocate/truncate errors...1\n" );
+    if ( test5( ) ) // fsck finds nothing wrong
+      SysLib.cout( "Correct behavior of fsck after truncate.........1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the free blocks shown in /proc/fs once no freed block waits to
+  // be reclaimed
+  private int freeBlocks( ) {
+    while ( true ) {
+      int fd = SysLib.open( "/proc/fs", "r" );
+      byte[] text = new byte[512];
+      int size = SysLib.read( fd, text );
+      SysLib.close( fd );
+      int free = -1, pending = -1;
+      for ( String line : new String( text, 0, Math.max( 0, size ) ).split( "\n" ) ) {
+        String[] words = line.trim( ).split( " +" );
+        if ( words[0].equals( "freeBlocks" ) )
+          free = Integer.parseInt( words[1] );
+        if ( words[0].equals( "pendingFrees" ) )
+          pending = Integer.parseInt( words[1] );
+      }
+      if ( pending == 0 )
+        return free;
+      SysLib.sleep( 10 );
+    }
+  }
+
+  private boolean readBack( int fd, int length ) {
+    byte[] tmpBuf = new byte[data.length];
+    int size = SysLib.pread( fd, tmpBuf, 0 );
+    if ( size != length ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < length; i++ )
+      if ( tmpBuf[i] != data[i] ) {
+        SysLib.cout( "tmpBuf[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  private boolean test1( int fd ) {
+    //.............................................."
+    SysLib.cout( "1: fallocate( fd, 512 * 20 )................" );
+    int before = freeBlocks( );
+    if ( SysLib.fallocate( fd, data.length ) != 0 ) {
+      SysLib.cout( "fallocate failed (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.fsize( fd ) != 100 ) {
+      SysLib.cout( "size = " + SysLib.fsize( fd ) + " (wrong)\n" );
+      return false;
+    }
+    int reserved = before - freeBlocks( );
+    if ( reserved < 19 ) {
+      SysLib.cout( "reserved " + reserved + " blocks (wrong)\n" );
+      return false;
+    }
+    // the reserved blocks past the end read as zeros once the file grows
+    if ( SysLib.truncate( fd, 2048 ) != 0 ) {
+      SysLib.cout( "truncate failed (wrong)\n" );
+      return false;
+    }
+    byte[] tmpBuf = new byte[2048];
+    SysLib.pread( fd, tmpBuf, 0 );
+    for ( int i = 0; i < tmpBuf.length; i++ )
+      if ( tmpBuf[i] != 0 ) {
+        SysLib.cout( "reserved byte " + i + " = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    before = freeBlocks( );
+    SysLib.seek( fd, 0, 0 );
+    if ( SysLib.write( fd, data ) != data.length || freeBlocks( ) != before ) {
+      SysLib.cout( "writing took more blocks (wrong)\n" );
+      return false;
+    }
+    if ( readBack( fd, data.length ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( int fd ) {
+    //.............................................."
+    SysLib.cout( "2: truncate( fd, 600 )......................" );
+    int before = freeBlocks( );
+    if ( SysLib.truncate( fd, 600 ) != 0 || SysLib.fsize( fd ) != 600 ) {
+      SysLib.cout( "size = " + SysLib.fsize( fd ) + " (wrong)\n" );
+      return false;
+    }
+    int freed = freeBlocks( ) - before;
+    if ( freed < 18 ) {
+      SysLib.cout( "freed " + freed + " blocks (wrong)\n" );
+      return false;
+    }
+    if ( readBack( fd, 600 ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: pwrite( \"sparse\", 512 * 100 )............" );
+    int before = freeBlocks( );
+    int fd = SysLib.open( "sparse", "w+" );
+    byte[] end = { 'e', 'n', 'd' };
+    if ( SysLib.pwrite( fd, end, 512 * 100 ) != 3 || SysLib.fsize( fd ) != 512 * 100 + 3 ) {
+      SysLib.cout( "size = " + SysLib.fsize( fd ) + " (wrong)\n" );
+      return false;
+    }
+    int used = before - freeBlocks( );
+    if ( used > 2 ) {
+      SysLib.cout( "the hole took " + used + " blocks (wrong)\n" );
+      return false;
+    }
+    byte[] tmpBuf = new byte[512 * 101];
+    int size = SysLib.pread( fd, tmpBuf, 0 );
+    if ( size != 512 * 100 + 3 || tmpBuf[512 * 100 + 2] != 'd' ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < 512 * 100; i++ )
+      if ( tmpBuf[i] != 0 ) {
+        SysLib.cout( "hole byte " + i + " = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    if ( SysLib.seek( fd, 0, Kernel.SEEK_DATA ) != 512 * 100
+         || SysLib.seek( fd, 0, Kernel.SEEK_HOLE ) != 0
+         || SysLib.seek( fd, 512 * 100, Kernel.SEEK_HOLE ) != 512 * 100 + 3 ) {
+      SysLib.cout( "SEEK_DATA/SEEK_HOLE (wrong)\n" );
+      return false;
+    }
+    // growing with truncate leaves a hole as well
+    if ( SysLib.truncate( fd, 512 * 120 ) != 0
+         || SysLib.pread( fd, tmpBuf, 512 * 110 ) != 512 * 10
+         || tmpBuf[0] != 0 || before - freeBlocks( ) != used ) {
+      SysLib.cout( "growing truncate (wrong)\n" );
+      return false;
+    }
+    SysLib.close( fd );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: fallocate/truncate errors................" );
+    int fd = SysLib.open( "reserved", "r" );
+    if ( SysLib.fallocate( fd, 10 ) != -1 || SysLib.truncate( fd, 0 ) != -1 ) {
+      SysLib.cout( "changed an \"r\" file (wrong)\n" );
+      return false;
+    }
+    SysLib.close( fd );
+    fd = SysLib.open( "reserved", "w+" );
+    if ( SysLib.fallocate( fd, -1 ) != -1 || SysLib.truncate( fd, -1 ) != -1 ) {
+      SysLib.cout( "a negative length (wrong)\n" );
+      return false;
+    }
+    SysLib.close( fd );
+    if ( SysLib.fallocate( fd, 10 ) != -1 || SysLib.truncate( fd, 0 ) != -1 ) {
+      SysLib.cout( "a closed descriptor (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: fsck( false )..........................." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,121 @@
+// Tests fsck: a clean disk, problems made by writing inodes with rawwrite,
+// repair refused while a file is open, and the files left after repair.
+// Formats the disk first; inode 1 is "a" and inode 2 is "b".
+class Test12 extends Thread {
+  final byte[] data = new byte[512 * 13];
+
+  public void run( ) {
+    SysLib.format( 48 );
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte ) ( i % 89 + 1 );
+    write( "a", data );
+    write( "b", data );
+    if ( test1( ) ) // nothing wrong on a clean disk
+      SysLib.cout( "Correct behavior of fsck on a clean disk........1\n" );
+    if ( test2( ) ) // each problem found and counted
+      SysLib.cout( "Correct behavior of fsck finding problems.......1\n" );
+    if ( test3( ) ) // no repair while a file is open
+      SysLib.cout( "Correct behavior of repair with a file open.....1\n" );
+    if ( test4( ) ) // repair, and the files it leaves
+      SysLib.cout( "Correct behavior of repair......................1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private void write( String name, byte[] buffer ) {
+    int fd = SysLib.open( name, "w" );
+    SysLib.write( fd, buffer );
+    SysLib.close( fd );
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: fsck( false ) on a clean disk..........." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: fsck( false ) on a broken disk.........." );
+    SysLib.sync( );
+    byte[] block = new byte[512];
+    SysLib.rawread( 1, block );
+    SysLib.int2bytes( 5000, block, 2 * 32 + 8 + 4 ); // b's second block is off the disk
+    SysLib.int2bytes( 100, block, 10 * 32 );         // inode 10 is in no directory
+    SysLib.int2bytes( -1, block, 10 * 32 + 8 );
+    SysLib.rawwrite( 1, block );
+    int problems = SysLib.fsck( false );
+    if ( problems < 2 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.fsck( false ) != problems ) {
+      SysLib.cout( "fsck( false ) repaired (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: fsck( true ) with \"a\" open............." );
+    int fd = SysLib.open( "a", "r" );
+    int result = SysLib.fsck( true );
+    SysLib.close( fd );
+    if ( result != -1 ) {
+      SysLib.cout( "result = " + result + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: fsck( true )............................" );
+    int found = SysLib.fsck( false );
+    int repaired = SysLib.fsck( true );
+    if ( repaired != found ) {
+      SysLib.cout( "repaired " + repaired + " of " + found + " (wrong)\n" );
+      return false;
+    }
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " after repair (wrong)\n" );
+      return false;
+    }
+    byte[] tmpBuf = new byte[data.length];
+    int fd = SysLib.open( "a", "r" );
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != data.length || java.util.Arrays.equals( tmpBuf, data ) == false ) {
+      SysLib.cout( "\"a\" changed (wrong)\n" );
+      return false;
+    }
+    // the bad pointer is cleared, leaving a hole that reads as zeros
+    fd = SysLib.open( "b", "r" );
+    size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != data.length || tmpBuf[600] != 0 || tmpBuf[1100] != data[1100] ) {
+      SysLib.cout( "\"b\" size = " + size + " (wrong)\n" );
+      return false;
+    }
+    // the files can be written again
+    write( "b", data );
+    SysLib.sync( );
+    if ( SysLib.fsck( false ) != 0 ) {
+      SysLib.cout( "problems after writing (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
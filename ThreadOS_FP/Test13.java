@@ -0,0 +1,184 @@
+// Tests copy-on-write clones and snapshots: a clone shares the data blocks
+// of its source until either file changes, and a snapshot keeps the files
+// as they were. Free blocks are read from /proc/fs. Formats the disk first.
+class Test13 extends Thread {
+  final byte[] data = new byte[512 * 13];
+
+  public void run( ) {
+    SysLib.format( 48 );
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte ) ( i % 83 + 1 );
+    int fd = SysLib.open( "original", "w" );
+    SysLib.write( fd, data );
+    SysLib.close( fd );
+    if ( test1( ) ) // a clone takes no data blocks
+      SysLib.cout( "Correct behavior of clone.......................1\n" );
+    if ( test2( ) ) // changing a clone leaves its source alone
+      SysLib.cout( "Correct behavior of copy-on-write...............1\n" );
+    if ( test3( ) ) // clone errors
+      SysLib.cout( "Correct behavior of clone errors................1\n" );
+    if ( test4( ) ) // a snapshot keeps the old contents
+      SysLib.cout( "Correct behavior of snapshot....................1\n" );
+    if ( test5( ) ) // fsck finds nothing wrong
+      SysLib.cout( "Correct behavior of fsck after clones...........1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the free blocks shown in /proc/fs once no freed block waits to
+  // be reclaimed
+  private int freeBlocks( ) {
+    while ( true ) {
+      int fd = SysLib.open( "/proc/fs", "r" );
+      byte[] text = new byte[512];
+      int size = SysLib.read( fd, text );
+      SysLib.close( fd );
+      int free = -1, pending = -1;
+      for ( String line : new String( text, 0, Math.max( 0, size ) ).split( "\n" ) ) {
+        String[] words = line.trim( ).split( " +" );
+        if ( words[0].equals( "freeBlocks" ) )
+          free = Integer.parseInt( words[1] );
+        if ( words[0].equals( "pendingFrees" ) )
+          pending = Integer.parseInt( words[1] );
+      }
+      if ( pending == 0 )
+        return free;
+      SysLib.sleep( 10 );
+    }
+  }
+
+  // returns true if the file name holds expected, printing what differs
+  private boolean holds( String name, byte[] expected ) {
+    byte[] tmpBuf = new byte[expected.length + 1];
+    int fd = SysLib.open( name, "r" );
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != expected.length ) {
+      SysLib.cout( name + " size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < expected.length; i++ )
+      if ( tmpBuf[i] != expected[i] ) {
+        SysLib.cout( name + " byte " + i + " = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: clone( \"original\", \"copy\" )............." );
+    int before = freeBlocks( );
+    if ( SysLib.clone( "original", "copy" ) != 0 ) {
+      SysLib.cout( "clone failed (wrong)\n" );
+      return false;
+    }
+    int used = before - freeBlocks( );
+    if ( used > 1 ) { // the index block only
+      SysLib.cout( "the clone took " + used + " blocks (wrong)\n" );
+      return false;
+    }
+    if ( holds( "copy", data ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: pwrite( \"copy\" ) and delete............" );
+    int before = freeBlocks( );
+    byte[] changed = data.clone( );
+    changed[600] = changed[601] = -1;
+    int fd = SysLib.open( "copy", "w+" );
+    SysLib.pwrite( fd, new byte[] { -1, -1 }, 600 );
+    SysLib.close( fd );
+    if ( before - freeBlocks( ) != 1 ) {
+      SysLib.cout( "copied " + ( before - freeBlocks( ) ) + " blocks (wrong)\n" );
+      return false;
+    }
+    if ( holds( "copy", changed ) == false || holds( "original", data ) == false )
+      return false;
+    // deleting the source leaves the blocks the clone still uses
+    SysLib.delete( "original" );
+    if ( holds( "copy", changed ) == false )
+      return false;
+    if ( SysLib.clone( "copy", "original" ) != 0 ) {
+      SysLib.cout( "clone back failed (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: clone errors............................" );
+    if ( SysLib.clone( "copy", "original" ) != -1 ) {
+      SysLib.cout( "cloned onto a file (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.clone( "missing", "other" ) != -1 ) {
+      SysLib.cout( "cloned a missing file (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.open( "other", "r" ) != -1 ) {
+      SysLib.cout( "a failed clone left a file (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: snapshot( \"before\" )...................." );
+    SysLib.mkdir( "/dir" );
+    int fd = SysLib.open( "/dir/inner", "w" );
+    SysLib.write( fd, data );
+    SysLib.close( fd );
+    int before = freeBlocks( );
+    int files = SysLib.snapshot( "before" );
+    if ( files != 3 ) {
+      SysLib.cout( "files = " + files + " (wrong)\n" );
+      return false;
+    }
+    int used = before - freeBlocks( );
+    if ( used > 3 ) { // index blocks only
+      SysLib.cout( "the snapshot took " + used + " blocks (wrong)\n" );
+      return false;
+    }
+    fd = SysLib.open( "/dir/inner", "w" );
+    SysLib.write( fd, new byte[] { 1, 2, 3 } );
+    SysLib.close( fd );
+    if ( holds( "/.snapshots/before/dir/inner", data ) == false
+         || holds( "/dir/inner", new byte[] { 1, 2, 3 } ) == false )
+      return false;
+    fd = SysLib.open( "copy", "w+" );
+    files = SysLib.snapshot( "busy" );
+    SysLib.close( fd );
+    if ( files != -1 ) {
+      SysLib.cout( "snapshot with a file open to write (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.snapshot( "before" ) != -1 ) {
+      SysLib.cout( "took \"before\" twice (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: fsck( false )..........................." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,210 @@
+// Tests compressed files, opened with a "c" after the mode: text read back
+// as written, in fewer blocks than a plain copy, through read, pread and
+// seek, and after pwrite and truncate. Free blocks are read from /proc/fs.
+// Formats the disk first.
+class Test14 extends Thread {
+  byte[] text;
+
+  public void run( ) {
+    SysLib.format( 48 );
+    StringBuilder lines = new StringBuilder( );
+    for ( int i = 0; lines.length( ) < 9000; i++ )
+      lines.append( "line " + ( i % 50 ) + " of some fairly repetitive text\n" );
+    text = lines.substring( 0, 9000 ).getBytes( );
+    if ( test1( ) ) // written in pieces, read back whole
+      SysLib.cout( "Correct behavior of writing a compressed file...1\n" );
+    if ( test2( ) ) // fewer blocks than a plain copy
+      SysLib.cout( "Correct behavior of compression.................1\n" );
+    if ( test3( ) ) // seek and pread
+      SysLib.cout( "Correct behavior of seeking a compressed file...1\n" );
+    if ( test4( ) ) // pwrite, truncate and fallocate
+      SysLib.cout( "Correct behavior of changing a compressed file..1\n" );
+    if ( test5( ) ) // sync stores open files, and fsck
+      SysLib.cout( "Correct behavior of sync and fsck...............1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the free blocks shown in /proc/fs once no freed block waits to
+  // be reclaimed
+  private int freeBlocks( ) {
+    while ( true ) {
+      int fd = SysLib.open( "/proc/fs", "r" );
+      byte[] buffer = new byte[512];
+      int size = SysLib.read( fd, buffer );
+      SysLib.close( fd );
+      int free = -1, pending = -1;
+      for ( String line : new String( buffer, 0, Math.max( 0, size ) ).split( "\n" ) ) {
+        String[] words = line.trim( ).split( " +" );
+        if ( words[0].equals( "freeBlocks" ) )
+          free = Integer.parseInt( words[1] );
+        if ( words[0].equals( "pendingFrees" ) )
+          pending = Integer.parseInt( words[1] );
+      }
+      if ( pending == 0 )
+        return free;
+      SysLib.sleep( 10 );
+    }
+  }
+
+  // returns true if the size bytes at tmpBuf are those of expected at
+  // offset, printing the first that differs
+  private boolean same( byte[] tmpBuf, int size, byte[] expected, int offset ) {
+    for ( int i = 0; i < size; i++ )
+      if ( tmpBuf[i] != expected[offset + i] ) {
+        SysLib.cout( "byte " + ( offset + i ) + " = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: write( \"packed\" ) in pieces of 700......" );
+    int fd = SysLib.open( "packed", "w+c" );
+    for ( int offset = 0; offset < text.length; offset += 700 ) {
+      int length = Math.min( 700, text.length - offset );
+      byte[] part = java.util.Arrays.copyOfRange( text, offset, offset + length );
+      if ( SysLib.write( fd, part ) != length ) {
+        SysLib.cout( "write at " + offset + " (wrong)\n" );
+        return false;
+      }
+    }
+    SysLib.close( fd );
+    fd = SysLib.open( "packed", "r" );
+    byte[] tmpBuf = new byte[text.length + 10];
+    int size = SysLib.read( fd, tmpBuf );
+    int fsize = SysLib.fsize( fd );
+    SysLib.close( fd );
+    if ( size != text.length || fsize != text.length ) {
+      SysLib.cout( "size = " + size + " fsize = " + fsize + " (wrong)\n" );
+      return false;
+    }
+    if ( same( tmpBuf, size, text, 0 ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: compressed and plain copies............." );
+    int before = freeBlocks( );
+    int fd = SysLib.open( "packed2", "w+c" );
+    SysLib.write( fd, text );
+    SysLib.close( fd );
+    int packed = before - freeBlocks( );
+    before = freeBlocks( );
+    fd = SysLib.open( "plain", "w" );
+    SysLib.write( fd, text );
+    SysLib.close( fd );
+    int plain = before - freeBlocks( );
+    if ( packed >= plain ) {
+      SysLib.cout( packed + " blocks against " + plain + " (wrong)\n" );
+      return false;
+    }
+    // a file that already holds data keeps its form
+    fd = SysLib.open( "plain", "w+c" );
+    byte[] tmpBuf = new byte[text.length];
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != text.length || same( tmpBuf, size, text, 0 ) == false ) {
+      SysLib.cout( "\"plain\" size = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: seek and pread( \"packed\" )..............." );
+    int fd = SysLib.open( "packed", "r" );
+    byte[] tmpBuf = new byte[100];
+    SysLib.seek( fd, 5000, 0 );
+    if ( SysLib.read( fd, tmpBuf ) != 100 || same( tmpBuf, 100, text, 5000 ) == false ) {
+      SysLib.cout( "read after seek (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    if ( SysLib.pread( fd, tmpBuf, 2040 ) != 100 || same( tmpBuf, 100, text, 2040 ) == false ) {
+      SysLib.cout( "pread (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    int size = SysLib.pread( fd, tmpBuf, text.length - 30 );
+    SysLib.close( fd );
+    if ( size != 30 || same( tmpBuf, 30, text, text.length - 30 ) == false ) {
+      SysLib.cout( "read at the end = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: pwrite and truncate( \"packed\" )........." );
+    int fd = SysLib.open( "packed", "w+" );
+    byte[] hello = "HELLO".getBytes( );
+    SysLib.pwrite( fd, hello, 4500 );
+    System.arraycopy( hello, 0, text, 4500, hello.length );
+    if ( SysLib.fallocate( fd, 20000 ) != -1 ) {
+      SysLib.cout( "fallocate on a compressed file (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    if ( SysLib.truncate( fd, 4600 ) != 0 || SysLib.fsize( fd ) != 4600 ) {
+      SysLib.cout( "truncate (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    SysLib.close( fd );
+    fd = SysLib.open( "packed", "r" );
+    byte[] tmpBuf = new byte[text.length];
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != 4600 || same( tmpBuf, size, text, 0 ) == false ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    // growing leaves zeros after the old end
+    fd = SysLib.open( "packed", "w+" );
+    SysLib.truncate( fd, 7000 );
+    size = SysLib.pread( fd, tmpBuf, 4590 );
+    SysLib.close( fd );
+    if ( size != 2410 || tmpBuf[9] != text[4599] || tmpBuf[10] != 0 || tmpBuf[2409] != 0 ) {
+      SysLib.cout( "grown size = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: sync( ) with \"open\" open, and fsck......" );
+    // sync stores the chunk a writer still holds in its cache; the file is
+    // made and synced first, so the directory takes no block meanwhile
+    int fd = SysLib.open( "open", "w+c" );
+    SysLib.close( fd );
+    SysLib.sync( );
+    int before = freeBlocks( );
+    fd = SysLib.open( "open", "w+c" );
+    SysLib.write( fd, java.util.Arrays.copyOf( text, 1000 ) ); // within the first chunk
+    SysLib.sync( );
+    int used = before - freeBlocks( );
+    SysLib.close( fd );
+    if ( used < 1 ) {
+      SysLib.cout( "sync stored nothing (wrong)\n" );
+      return false;
+    }
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
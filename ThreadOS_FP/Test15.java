@@ -0,0 +1,181 @@
+// Tests block deduplication: with dedup on, full blocks written again share
+// the blocks written first, and a later change to either copy is made on a
+// copy. Free blocks are read from /proc/fs. Formats the disk first.
+class Test15 extends Thread {
+  final byte[] data = new byte[512 * 13];
+
+  public void run( ) {
+    SysLib.format( 48 );
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte ) i;
+    if ( test1( ) ) // copies share blocks
+      SysLib.cout( "Correct behavior of dedup.......................1\n" );
+    if ( test2( ) ) // a change to one copy
+      SysLib.cout( "Correct behavior of changing a shared block.....1\n" );
+    if ( test3( ) ) // blocks repeated within a file
+      SysLib.cout( "Correct behavior of repeats within a file.......1\n" );
+    if ( test4( ) ) // delete, then dedup off
+      SysLib.cout( "Correct behavior of delete and dedup off........1\n" );
+    if ( test5( ) ) // fsck finds nothing wrong
+      SysLib.cout( "Correct behavior of fsck after dedup............1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the free blocks shown in /proc/fs once no freed block waits to
+  // be reclaimed
+  private int freeBlocks( ) {
+    while ( true ) {
+      int fd = SysLib.open( "/proc/fs", "r" );
+      byte[] text = new byte[512];
+      int size = SysLib.read( fd, text );
+      SysLib.close( fd );
+      int free = -1, pending = -1;
+      for ( String line : new String( text, 0, Math.max( 0, size ) ).split( "\n" ) ) {
+        String[] words = line.trim( ).split( " +" );
+        if ( words[0].equals( "freeBlocks" ) )
+          free = Integer.parseInt( words[1] );
+        if ( words[0].equals( "pendingFrees" ) )
+          pending = Integer.parseInt( words[1] );
+      }
+      if ( pending == 0 )
+        return free;
+      SysLib.sleep( 10 );
+    }
+  }
+
+  private void write( String name, byte[] buffer ) {
+    int fd = SysLib.open( name, "w" );
+    SysLib.write( fd, buffer );
+    SysLib.close( fd );
+  }
+
+  // returns true if the file name holds expected, printing what differs
+  private boolean holds( String name, byte[] expected ) {
+    byte[] tmpBuf = new byte[expected.length + 1];
+    int fd = SysLib.open( name, "r" );
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != expected.length ) {
+      SysLib.cout( name + " size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < expected.length; i++ )
+      if ( tmpBuf[i] != expected[i] ) {
+        SysLib.cout( name + " byte " + i + " = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: dedup( true ) and three copies.........." );
+    if ( SysLib.dedup( true ) != 0 ) {
+      SysLib.cout( "dedup failed (wrong)\n" );
+      return false;
+    }
+    int before = freeBlocks( );
+    write( "first", data );
+    int one = before - freeBlocks( );
+    write( "second", data );
+    write( "third", data );
+    int three = before - freeBlocks( );
+    if ( three - one > 2 ) { // the index blocks only
+      SysLib.cout( "two more copies took " + ( three - one ) + " blocks (wrong)\n" );
+      return false;
+    }
+    if ( holds( "first", data ) == false || holds( "third", data ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: pwrite( \"second\", 600 )................." );
+    int before = freeBlocks( );
+    int fd = SysLib.open( "second", "w+" );
+    SysLib.pwrite( fd, new byte[] { 9, 9 }, 600 );
+    SysLib.close( fd );
+    if ( before - freeBlocks( ) != 1 ) {
+      SysLib.cout( "copied " + ( before - freeBlocks( ) ) + " blocks (wrong)\n" );
+      return false;
+    }
+    byte[] changed = data.clone( );
+    changed[600] = changed[601] = 9;
+    if ( holds( "second", changed ) == false || holds( "first", data ) == false
+         || holds( "third", data ) == false )
+      return false;
+    // the copy is the file's own now, so writing it back goes in place
+    before = freeBlocks( );
+    fd = SysLib.open( "second", "w+" );
+    SysLib.pwrite( fd, java.util.Arrays.copyOfRange( data, 512, 1024 ), 512 );
+    SysLib.close( fd );
+    if ( freeBlocks( ) != before || holds( "second", data ) == false ) {
+      SysLib.cout( "writing the block back (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: six equal blocks in \"repeats\"..........." );
+    byte[] same = new byte[512 * 6];
+    java.util.Arrays.fill( same, ( byte ) 7 );
+    int before = freeBlocks( );
+    write( "repeats", same );
+    if ( before - freeBlocks( ) > 2 ) {
+      SysLib.cout( "took " + ( before - freeBlocks( ) ) + " blocks (wrong)\n" );
+      return false;
+    }
+    int fd = SysLib.open( "repeats", "w+" );
+    SysLib.pwrite( fd, new byte[] { 1 }, 0 );
+    SysLib.close( fd );
+    same[0] = 1;
+    if ( holds( "repeats", same ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: delete, then dedup( false )............." );
+    int before = freeBlocks( );
+    SysLib.delete( "first" );
+    SysLib.delete( "third" );
+    if ( freeBlocks( ) - before > 2 ) { // "second" still holds the data
+      SysLib.cout( "freed " + ( freeBlocks( ) - before ) + " blocks (wrong)\n" );
+      return false;
+    }
+    if ( holds( "second", data ) == false )
+      return false;
+    SysLib.dedup( false );
+    before = freeBlocks( );
+    write( "fourth", data );
+    if ( before - freeBlocks( ) < 13 ) {
+      SysLib.cout( "shared with dedup off (wrong)\n" );
+      return false;
+    }
+    if ( holds( "fourth", data ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: fsck( false )..........................." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,190 @@
+// Tests large sparse files that reach every index tree of the inode: 3
+// direct blocks, then trees of one, two and three levels whose index blocks
+// hold 128 pointers each on blocks of 512 bytes. Free blocks are read from
+// /proc/fs. Formats the disk first.
+class Test16 extends Thread {
+  final static int POINTERS = 128;
+  final static int SINGLE = 3;                                 // the first block of each tree
+  final static int DOUBLE = SINGLE + POINTERS;
+  final static int TRIPLE = DOUBLE + POINTERS * POINTERS;
+  // one block past the largest file, whose length on disk keeps its top two
+  // bits for flags; short of the end of the triple tree
+  final static int LIMIT = ( 0x40000000 - 1 ) / 512;
+  // the byte offsets written: in a direct block, the first block of each
+  // tree, and the last block a file can have
+  final int[] offsets = { 100, SINGLE * 512, DOUBLE * 512 + 7, TRIPLE * 512 + 300,
+                          LIMIT * 512 - 8 };
+
+  public void run( ) {
+    SysLib.format( 48 );
+    int before = freeBlocks( );
+    if ( test1( ) ) // write through every tree
+      SysLib.cout( "Correct behavior of writing a huge sparse file..1\n" );
+    if ( test2( ) ) // read it back
+      SysLib.cout( "Correct behavior of reading a huge sparse file..1\n" );
+    if ( test3( ) ) // nothing past the largest file
+      SysLib.cout( "Correct behavior of the file size limit.........1\n" );
+    if ( test4( ) ) // truncate back through the trees
+      SysLib.cout( "Correct behavior of truncating a huge file......1\n" );
+    if ( test5( before ) ) // delete frees it all, and fsck
+      SysLib.cout( "Correct behavior of deleting a huge file........1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the free blocks shown in /proc/fs once no freed block waits to
+  // be reclaimed
+  private int freeBlocks( ) {
+    while ( true ) {
+      int fd = SysLib.open( "/proc/fs", "r" );
+      byte[] text = new byte[512];
+      int size = SysLib.read( fd, text );
+      SysLib.close( fd );
+      int free = -1, pending = -1;
+      for ( String line : new String( text, 0, Math.max( 0, size ) ).split( "\n" ) ) {
+        String[] words = line.trim( ).split( " +" );
+        if ( words[0].equals( "freeBlocks" ) )
+          free = Integer.parseInt( words[1] );
+        if ( words[0].equals( "pendingFrees" ) )
+          pending = Integer.parseInt( words[1] );
+      }
+      if ( pending == 0 )
+        return free;
+      SysLib.sleep( 10 );
+    }
+  }
+
+  // the eight bytes written at offsets[i]
+  private byte[] marker( int i ) {
+    byte[] bytes = new byte[8];
+    for ( int j = 0; j < 8; j++ )
+      bytes[j] = ( byte ) ( 10 * i + j + 1 );
+    return bytes;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: pwrite( \"huge\" ) in every tree.........." );
+    int before = freeBlocks( );
+    int fd = SysLib.open( "huge", "w+" );
+    for ( int i = 0; i < offsets.length; i++ )
+      if ( SysLib.pwrite( fd, marker( i ), offsets[i] ) != 8 ) {
+        SysLib.cout( "pwrite at " + offsets[i] + " (wrong)\n" );
+        SysLib.close( fd );
+        return false;
+      }
+    int size = SysLib.fsize( fd );
+    SysLib.close( fd );
+    if ( size != LIMIT * 512 ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    // one data block each, and one index block per level of each tree
+    // touched: 1 + 2 + 3, and 3 more for the last block's own path
+    int used = before - freeBlocks( );
+    if ( used > 5 + 9 ) {
+      SysLib.cout( "took " + used + " blocks (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: pread( \"huge\" ) and SEEK_DATA............" );
+    int fd = SysLib.open( "huge", "r" );
+    byte[] tmpBuf = new byte[8];
+    for ( int i = 0; i < offsets.length; i++ ) {
+      if ( SysLib.pread( fd, tmpBuf, offsets[i] ) != 8
+           || java.util.Arrays.equals( tmpBuf, marker( i ) ) == false ) {
+        SysLib.cout( "pread at " + offsets[i] + " (wrong)\n" );
+        SysLib.close( fd );
+        return false;
+      }
+    }
+    // the holes between read as zeros
+    byte[] hole = new byte[1024];
+    SysLib.pread( fd, hole, TRIPLE * 512 - 1024 );
+    for ( int i = 0; i < hole.length; i++ )
+      if ( hole[i] != 0 ) {
+        SysLib.cout( "hole byte " + i + " = " + hole[i] + " (wrong)\n" );
+        SysLib.close( fd );
+        return false;
+      }
+    int data = SysLib.seek( fd, DOUBLE * 512 + 512, Kernel.SEEK_DATA );
+    SysLib.close( fd );
+    if ( data != TRIPLE * 512 ) {
+      SysLib.cout( "SEEK_DATA = " + data + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: pwrite( \"huge\" ) past the largest file..." );
+    int fd = SysLib.open( "huge", "w+" );
+    int written = SysLib.pwrite( fd, new byte[16], LIMIT * 512 - 8 );
+    int past = SysLib.pwrite( fd, new byte[8], LIMIT * 512 );
+    int size = SysLib.fsize( fd );
+    SysLib.close( fd );
+    if ( written != 8 || past > 0 || size != LIMIT * 512 ) {
+      SysLib.cout( "wrote " + written + " and " + past + ", size = " + size
+                   + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: truncate( \"huge\", DOUBLE * 512 + 15 )..." );
+    int before = freeBlocks( );
+    int fd = SysLib.open( "huge", "w+" );
+    if ( SysLib.truncate( fd, DOUBLE * 512 + 15 ) != 0 ) {
+      SysLib.cout( "truncate failed (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    byte[] tmpBuf = new byte[16];
+    int size = SysLib.pread( fd, tmpBuf, DOUBLE * 512 + 7 );
+    SysLib.close( fd );
+    if ( size != 8 || tmpBuf[0] != marker( 2 )[0] || tmpBuf[7] != marker( 2 )[7] ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    // the triple tree and its two data blocks are gone
+    int freed = freeBlocks( ) - before;
+    if ( freed < 2 + 3 ) {
+      SysLib.cout( "freed " + freed + " blocks (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( int before ) {
+    //.............................................."
+    SysLib.cout( "5: delete( \"huge\" ) and fsck( false )......" );
+    if ( SysLib.delete( "huge" ) != 0 ) {
+      SysLib.cout( "delete failed (wrong)\n" );
+      return false;
+    }
+    int free = freeBlocks( );
+    if ( free != before ) {
+      SysLib.cout( "free blocks = " + free + " of " + before + " (wrong)\n" );
+      return false;
+    }
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
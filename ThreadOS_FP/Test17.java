@@ -0,0 +1,206 @@
+// Tests IoRing: chains that pass a descriptor from open to read and close,
+// chains cut short by a failure, tags handed back with each completion, a
+// full ring, and a ring submitted by a thread that does not own it. The
+// ring is made in the constructor, on the thread that loads the program.
+// "l Test17" runs the test and formats the disk first; "Test17 other" is
+// the child that tries the parent's ring.
+class Test17 extends Thread {
+  static IoRing ring;             // the parent's ring, made before it runs
+  static int otherResult;         // what submit returned to the child
+  final boolean other;            // true for the child
+  final byte[] data = new byte[700];
+
+  public Test17( String args[] ) {
+    other = true;
+  }
+
+  public Test17( ) {
+    other = false;
+    ring = new IoRing( 8 );
+  }
+
+  public void run( ) {
+    if ( other ) {
+      ring.pread( 3, new byte[10], 0 );
+      otherResult = SysLib.submit( ring );
+      SysLib.exit( );
+      return;
+    }
+    SysLib.format( 48 );
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte ) ( i % 97 + 1 );
+    if ( test1( ) ) // open, write, close; open, read, close
+      SysLib.cout( "Correct behavior of ring chains.................1\n" );
+    if ( test2( ) ) // a failure cancels the rest of its chain
+      SysLib.cout( "Correct behavior of a failed chain..............1\n" );
+    if ( test3( ) ) // tags, reap and poll
+      SysLib.cout( "Correct behavior of ring completions............1\n" );
+    if ( test4( ) ) // a full ring and another thread
+      SysLib.cout( "Correct behavior of ring limits.................1\n" );
+    if ( test5( ) ) // fsck finds nothing wrong
+      SysLib.cout( "Correct behavior of fsck after the ring.........1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // submits the ring and reaps exactly expected completions, printing what
+  // differs; returns them, or null
+  private IoRing.Request[] submit( int expected ) {
+    int submitted = SysLib.submit( ring );
+    IoRing.Request[] done = new IoRing.Request[expected + 1];
+    int reaped = ring.reap( done );
+    if ( submitted != expected || reaped != expected ) {
+      SysLib.cout( "submitted " + submitted + ", reaped " + reaped + " (wrong)\n" );
+      return null;
+    }
+    return done;
+  }
+
+  // returns true if the completions hold results, printing the first that
+  // differs; a result of 0 stands for any descriptor
+  private boolean results( IoRing.Request[] done, int[] results ) {
+    for ( int i = 0; i < results.length; i++ ) {
+      int result = done[i].result( );
+      if ( ( results[i] == 0 && done[i].opcode( ) == Kernel.OPEN ) ? result < 3
+           : result != results[i] ) {
+        SysLib.cout( "request " + i + " = " + result + " (wrong)\n" );
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: open, write, close as one chain........." );
+    ring.open( "chained", "w+" ).link( );
+    ring.write( IoRing.CHAIN_FD, data ).link( );
+    ring.close( IoRing.CHAIN_FD );
+    IoRing.Request[] done = submit( 3 );
+    if ( done == null || results( done, new int[] { 0, 700, 0 } ) == false )
+      return false;
+    byte[] tmpBuf = new byte[800];
+    ring.open( "chained", "r" ).link( );
+    ring.read( IoRing.CHAIN_FD, tmpBuf ).link( );
+    ring.close( IoRing.CHAIN_FD );
+    done = submit( 3 );
+    if ( done == null || results( done, new int[] { 0, 700, 0 } ) == false )
+      return false;
+    for ( int i = 0; i < data.length; i++ )
+      if ( tmpBuf[i] != data[i] ) {
+        SysLib.cout( "byte " + i + " = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: chains that fail........................" );
+    // the open fails, so nothing else runs, the close included
+    ring.open( "missing", "r" ).link( );
+    ring.read( IoRing.CHAIN_FD, new byte[10] ).link( );
+    ring.close( IoRing.CHAIN_FD );
+    ring.pread( 99, new byte[10], 0 ); // a chain of its own
+    IoRing.Request[] done = submit( 4 );
+    if ( done == null
+         || results( done, new int[] { -1, IoRing.CANCELED, IoRing.CANCELED, -1 } ) == false )
+      return false;
+    // the pwrite fails, so the read is skipped but the close still runs
+    ring.open( "chained", "r" ).link( );
+    ring.pwrite( IoRing.CHAIN_FD, new byte[10], 0 ).link( );
+    ring.read( IoRing.CHAIN_FD, new byte[10] ).link( );
+    ring.close( IoRing.CHAIN_FD );
+    done = submit( 4 );
+    if ( done == null
+         || results( done, new int[] { 0, -1, IoRing.CANCELED, 0 } ) == false )
+      return false;
+    // the descriptor was closed, so the file can be opened to write again
+    int fd = SysLib.open( "chained", "a" );
+    if ( fd < 3 || SysLib.close( fd ) != 0 ) {
+      SysLib.cout( "the chain kept \"chained\" open (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: tags, reap( ) and poll( )..............." );
+    int fd = SysLib.open( "chained", "r" );
+    byte[][] parts = new byte[5][100];
+    for ( int k = 0; k < 5; k++ )
+      ring.pread( fd, parts[k], 100 * k + 50 ).tag( "part " + k );
+    int submitted = SysLib.submit( ring );
+    IoRing.Request[] two = new IoRing.Request[2];
+    int reaped = ring.reap( two );
+    if ( submitted != 5 || reaped != 2 ) {
+      SysLib.cout( "submitted " + submitted + ", reaped " + reaped + " (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    for ( int k = 0; k < 5; k++ ) {
+      IoRing.Request request = ( k < 2 ) ? two[k] : ring.poll( );
+      if ( request == null || request.tag( ).equals( "part " + k ) == false
+           || request.result( ) != 100 || parts[k][0] != data[100 * k + 50] ) {
+        SysLib.cout( "completion " + k + " (wrong)\n" );
+        SysLib.close( fd );
+        return false;
+      }
+    }
+    SysLib.close( fd );
+    if ( ring.poll( ) != null || SysLib.submit( ring ) != 0 ) {
+      SysLib.cout( "completions left over (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: a full ring and another thread.........." );
+    int fd = SysLib.open( "chained", "r" );
+    for ( int k = 0; k < 8; k++ )
+      ring.seek( fd, k, 0 );
+    try {
+      ring.seek( fd, 8, 0 );
+      SysLib.cout( "queued past the end of the ring (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    } catch ( IllegalStateException e ) {
+    }
+    IoRing.Request[] done = submit( 8 );
+    SysLib.close( fd );
+    if ( done == null || done[7].result( ) != 7 )
+      return false;
+    // only the thread that submitted the ring first may submit it again
+    otherResult = 0;
+    SysLib.exec( new String[] { "Test17", "other" } );
+    SysLib.join( );
+    if ( otherResult != -1 || ring.queued( ) != 1 ) {
+      SysLib.cout( "another thread's submit = " + otherResult + " (wrong)\n" );
+      return false;
+    }
+    done = submit( 1 ); // the child's request runs as this thread's
+    if ( done == null || done[0].result( ) != -1 )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: fsck( false )..........................." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
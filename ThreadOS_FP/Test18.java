@@ -0,0 +1,154 @@
+// Tests kernel tracing: the events recorded while tracing is on, written
+// by traceDump to a file on the host in the Chrome trace_event JSON format,
+// which this test reads back through java.io. Nothing is recorded while
+// tracing is off, and a file that cannot be written is refused. Formats the
+// disk first; the dump goes to Test18.json in the directory ThreadOS runs
+// in, and is deleted at the end.
+import java.io.File;
+import java.nio.file.Files;
+
+class Test18 extends Thread {
+  final static String DUMP = "Test18.json";
+  int events;                     // the events written by the first dump
+
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( test1( ) ) // a dump of a few calls
+      SysLib.cout( "Correct behavior of traceDump...................1\n" );
+    if ( test2( ) ) // every call a span of its own
+      SysLib.cout( "Correct behavior of trace events................1\n" );
+    if ( test3( ) ) // nothing recorded while off
+      SysLib.cout( "Correct behavior of trace( false )..............1\n" );
+    if ( test4( ) ) // trace( true ) empties the buffers
+      SysLib.cout( "Correct behavior of trace( true )...............1\n" );
+    if ( test5( ) ) // a file that cannot be written, and fsck
+      SysLib.cout( "Correct behavior of trace errors................1\n" );
+    new File( DUMP ).delete( );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the host file name as text, or an empty string if it cannot be
+  // read
+  private String dump( String name ) {
+    try {
+      return new String( Files.readAllBytes( new File( name ).toPath( ) ) );
+    } catch ( java.io.IOException e ) {
+      return "";
+    }
+  }
+
+  // returns the number of times pattern occurs in text
+  private int count( String text, String pattern ) {
+    int n = 0;
+    for ( int i = text.indexOf( pattern ); i >= 0; i = text.indexOf( pattern, i + 1 ) )
+      n++;
+    return n;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: trace( true ), three files, traceDump..." );
+    if ( SysLib.trace( true ) != 0 ) {
+      SysLib.cout( "trace( true ) failed (wrong)\n" );
+      return false;
+    }
+    for ( int k = 0; k < 3; k++ ) {
+      int fd = SysLib.open( "traced" + k, "w" );
+      SysLib.write( fd, new byte[1000] );
+      SysLib.close( fd );
+    }
+    SysLib.sync( );
+    SysLib.trace( false );
+    events = SysLib.traceDump( DUMP );
+    String text = dump( DUMP );
+    if ( events <= 0 || text.startsWith( "{\"displayTimeUnit\":\"ms\",\"traceEvents\":[" ) == false
+         || text.trim( ).endsWith( "]}" ) == false ) {
+      SysLib.cout( "events = " + events + ", " + text.length( ) + " characters (wrong)\n" );
+      return false;
+    }
+    // a line per thread's name, and one per event
+    int lines = count( text, "\n{\"name\":" );
+    int threads = count( text, "\"ph\":\"M\"" );
+    if ( lines - threads != events ) {
+      SysLib.cout( ( lines - threads ) + " events in the file (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: the events of the dump.................." );
+    String text = dump( DUMP );
+    // each call begins and ends a span, but for trace( true ), which only
+    // ends one, and trace( false ), which only begins one
+    int opens = count( text, "\"name\":\"OPEN\"" );
+    int writes = count( text, "\"name\":\"WRITE\"" );
+    int closes = count( text, "\"name\":\"CLOSE\"" );
+    if ( opens != 6 || writes != 6 || closes != 6 ) {
+      SysLib.cout( opens + " OPEN, " + writes + " WRITE, " + closes + " CLOSE (wrong)\n" );
+      return false;
+    }
+    if ( count( text, "\"name\":\"TRACE\"" ) != 2 ) {
+      SysLib.cout( "TRACE events (wrong)\n" );
+      return false;
+    }
+    // sync wrote the blocks to disk
+    if ( count( text, "\"cat\":\"disk\"" ) == 0 ) {
+      SysLib.cout( "no disk events (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: calls while tracing is off.............." );
+    int fd = SysLib.open( "untraced", "w" );
+    SysLib.write( fd, new byte[1000] );
+    SysLib.close( fd );
+    SysLib.sync( );
+    int again = SysLib.traceDump( DUMP );
+    if ( again != events || count( dump( DUMP ), "\"name\":\"OPEN\"" ) != 6 ) {
+      SysLib.cout( "events = " + again + " of " + events + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: trace( true ) starts empty.............." );
+    SysLib.trace( true );
+    SysLib.trace( false );
+    int fresh = SysLib.traceDump( DUMP );
+    String text = dump( DUMP );
+    if ( fresh < 0 || fresh >= events || count( text, "\"name\":\"OPEN\"" ) != 0 ) {
+      SysLib.cout( "events = " + fresh + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: traceDump to a missing directory........" );
+    if ( SysLib.traceDump( "no such directory/" + DUMP ) != -1 ) {
+      SysLib.cout( "dumped to a missing directory (wrong)\n" );
+      return false;
+    }
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,172 @@
+// Tests the virtual files under /proc: the names readdir lists, the fields
+// of /proc/fs, a read from the start showing the counters as they are now,
+// and every way of changing /proc refused. Formats the disk first.
+class Test19 extends Thread {
+  final static String[] FILES = { "cache", "disk", "fs", "syscalls", "threads" };
+
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( test1( ) ) // readdir( "/proc" )
+      SysLib.cout( "Correct behavior of readdir of /proc............1\n" );
+    if ( test2( ) ) // the fields of /proc/fs
+      SysLib.cout( "Correct behavior of /proc/fs....................1\n" );
+    if ( test3( ) ) // seek to 0 reads the counters again
+      SysLib.cout( "Correct behavior of rereading /proc.............1\n" );
+    if ( test4( ) ) // /proc cannot be changed
+      SysLib.cout( "Correct behavior of /proc errors................1\n" );
+    if ( test5( ) ) // fsck finds nothing wrong
+      SysLib.cout( "Correct behavior of fsck after /proc............1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the text read from fd at its seek pointer, at most 2048 bytes
+  private String read( int fd ) {
+    byte[] text = new byte[2048];
+    int size = SysLib.read( fd, text );
+    return new String( text, 0, Math.max( 0, size ) );
+  }
+
+  // returns the number on the line of text that starts with field, or -1
+  private int field( String text, String field ) {
+    for ( String line : text.split( "\n" ) ) {
+      String[] words = line.trim( ).split( " +" );
+      if ( words.length == 2 && words[0].equals( field ) )
+        return Integer.parseInt( words[1] );
+    }
+    return -1;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: readdir( \"/proc\" )......................" );
+    String[] names = new String[10];
+    int count = SysLib.readdir( "/proc", names );
+    if ( count != FILES.length ) {
+      SysLib.cout( "count = " + count + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < FILES.length; i++ )
+      if ( FILES[i].equals( names[i] ) == false ) {
+        SysLib.cout( "names[" + i + "] = " + names[i] + " (wrong)\n" );
+        return false;
+      }
+    String[] two = new String[2];
+    if ( SysLib.readdir( "/proc/", two ) != FILES.length || two[1].equals( "disk" ) == false ) {
+      SysLib.cout( "readdir into a short array (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.readdir( "/proc/fs", names ) != -1 ) {
+      SysLib.cout( "readdir of a file (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: read( \"/proc/fs\" )......................" );
+    int file = SysLib.open( "plain", "w" );
+    int fd = SysLib.open( "/proc/fs", "r" );
+    String text = read( fd );
+    SysLib.close( fd );
+    SysLib.close( file );
+    int total = field( text, "totalBlocks" );
+    int free = field( text, "freeBlocks" );
+    if ( field( text, "blockSize" ) != 512 || field( text, "totalInodes" ) != 48
+         || field( text, "openEntries" ) != 1 || field( text, "openInodes" ) != 1
+         || total <= 0 || free <= 0 || free >= total || text.contains( "dedup           off" ) == false ) {
+      SysLib.cout( "\n" + text + "(wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: seek( \"/proc/fs\", 0 ) after a write....." );
+    int fd = SysLib.open( "/proc/fs", "r" );
+    int before = field( read( fd ), "freeBlocks" );
+    int file = SysLib.open( "plain", "w" );
+    SysLib.write( file, new byte[512 * 13] );
+    SysLib.close( file );
+    if ( read( fd ).length( ) != 0 ) {
+      SysLib.cout( "read past the end (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    SysLib.seek( fd, 0, 0 );
+    int after = field( read( fd ), "freeBlocks" );
+    SysLib.close( fd );
+    if ( before - after < 13 ) {
+      SysLib.cout( "freeBlocks " + before + " then " + after + " (wrong)\n" );
+      return false;
+    }
+    // the other files show what was just done
+    fd = SysLib.open( "/proc/syscalls", "r" );
+    String calls = read( fd );
+    SysLib.close( fd );
+    fd = SysLib.open( "/proc/threads", "r" );
+    String threads = read( fd );
+    SysLib.close( fd );
+    if ( calls.contains( "OPEN" ) == false || calls.contains( "WRITE" ) == false ) {
+      SysLib.cout( "\n" + calls + "(wrong)\n" );
+      return false;
+    }
+    if ( threads.contains( "tid" ) == false || threads.contains( "running" ) == false ) {
+      SysLib.cout( "\n" + threads + "(wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: writing, deleting and making in /proc..." );
+    String[] modes = { "w", "w+", "a" };
+    for ( int i = 0; i < modes.length; i++ )
+      if ( SysLib.open( "/proc/fs", modes[i] ) != -1 ) {
+        SysLib.cout( "opened /proc/fs \"" + modes[i] + "\" (wrong)\n" );
+        return false;
+      }
+    int fd = SysLib.open( "/proc/disk", "r" );
+    int written = SysLib.write( fd, new byte[10] );
+    SysLib.close( fd );
+    if ( written != -1 ) {
+      SysLib.cout( "wrote /proc/disk (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.delete( "/proc/fs" ) != -1 || SysLib.mkdir( "/proc" ) != -1
+         || SysLib.mkdir( "/proc/sub" ) != -1 ) {
+      SysLib.cout( "delete or mkdir in /proc (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.open( "/proc/new", "w" ) != -1 || SysLib.open( "/proc/nope", "r" ) != -1 ) {
+      SysLib.cout( "opened a file /proc does not have (wrong)\n" );
+      return false;
+    }
+    String[] names = new String[10];
+    if ( SysLib.readdir( "/proc", names ) != FILES.length ) {
+      SysLib.cout( "/proc changed (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: fsck( false )..........................." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,93 @@
+// Tests the console: tryCin returns at once when no line is waiting, cout
+// and cerr keep their order, and a line typed is read by tryCin or cin.
+// Tests 3 and 4 ask for a line to be typed: "hello", then "world".
+class Test20 extends Thread {
+
+  public void run( ) {
+    if ( test1( ) ) // nothing typed yet
+      SysLib.cout( "Correct behavior of tryCin with no line.........1\n" );
+    if ( test2( ) ) // cout and cerr in turn
+      SysLib.cout( "Correct behavior of cout and cerr...............1\n" );
+    if ( test3( ) ) // polling for a line
+      SysLib.cout( "Correct behavior of tryCin with a line..........1\n" );
+    if ( test4( ) ) // waiting for a line
+      SysLib.cout( "Correct behavior of cin.........................1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: tryCin( ) with nothing typed............" );
+    StringBuffer s = new StringBuffer( "kept" );
+    long start = System.currentTimeMillis( );
+    for ( int i = 0; i < 1000; i++ ) {
+      int result = SysLib.tryCin( s );
+      if ( result != Kernel.AGAIN ) {
+        SysLib.cout( "result = " + result + " (wrong)\n" );
+        return false;
+      }
+    }
+    long elapsed = System.currentTimeMillis( ) - start;
+    if ( s.toString( ).equals( "kept" ) == false || elapsed > 1000 ) {
+      SysLib.cout( "s = " + s + " after " + elapsed + " ms (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: cout, cerr, cout reads \"1 2 3\"........." );
+    int first = SysLib.cout( "1 " );
+    int second = SysLib.cerr( "2 " );
+    int third = SysLib.cout( "3 " );
+    if ( first != 0 || second != 0 || third != 0 ) {
+      SysLib.cout( "results " + first + " " + second + " " + third + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: type hello and press enter: " );
+    StringBuffer s = new StringBuffer( );
+    int result = Kernel.AGAIN;
+    // poll for up to a minute; the prompt shows while this thread runs on
+    for ( int i = 0; i < 600 && result == Kernel.AGAIN; i++ ) {
+      result = SysLib.tryCin( s );
+      if ( result == Kernel.AGAIN )
+        SysLib.sleep( 100 );
+    }
+    if ( result != 5 || s.toString( ).equals( "hello" ) == false ) {
+      SysLib.cout( "result = " + result + ", s = " + s + " (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.tryCin( s ) != Kernel.AGAIN ) {
+      SysLib.cout( "the line was read twice (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "3: successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: type world and press enter: " );
+    StringBuffer s = new StringBuffer( );
+    int result = SysLib.cin( s );
+    if ( result != 5 || s.toString( ).equals( "world" ) == false ) {
+      SysLib.cout( "result = " + result + ", s = " + s + " (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.tryCin( s ) != Kernel.AGAIN ) {
+      SysLib.cout( "the line was read twice (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "4: successfully completed\n" );
+    return true;
+  }
+}
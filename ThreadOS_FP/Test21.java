@@ -0,0 +1,134 @@
+// Tests the system call table of SysLib.stats: the calls and errors counted
+// for calls this test makes a known number of times, the latency columns,
+// and stats( true ) starting the counts anew. Counts are kept for every
+// thread, so only calls no other thread makes meanwhile are checked.
+// Formats the disk first.
+class Test21 extends Thread {
+
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( test1( ) ) // nothing but stats itself after a reset
+      SysLib.cout( "Correct behavior of stats( true )...............1\n" );
+    if ( test2( ) ) // calls and errors
+      SysLib.cout( "Correct behavior of call counts.................1\n" );
+    if ( test3( ) ) // latency percentiles
+      SysLib.cout( "Correct behavior of latency columns.............1\n" );
+    if ( test4( ) ) // a call number with no handler
+      SysLib.cout( "Correct behavior of an unknown call.............1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the calls and errors on the line of name in report, or null if
+  // report has no line for it
+  private long[] counts( String report, String name ) {
+    for ( String line : report.split( "\n" ) ) {
+      String[] words = line.trim( ).split( " +" );
+      if ( words[0].equals( name ) )
+        return new long[] { Long.parseLong( words[1] ), Long.parseLong( words[2] ) };
+    }
+    return null;
+  }
+
+  // returns true if report counts calls and errors for name, printing what
+  // differs
+  private boolean counted( String report, String name, long calls, long errors ) {
+    long[] found = counts( report, name );
+    if ( found == null || found[0] != calls || found[1] != errors ) {
+      SysLib.cout( name + " = " + ( found == null ? "none"
+                   : found[0] + " calls, " + found[1] + " errors" ) + " (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: stats( true ), then stats( )............" );
+    SysLib.stats( true );
+    String report = SysLib.stats( );
+    String[] lines = report.split( "\n" );
+    // the header, then the one call made since the reset
+    if ( lines.length != 2 || lines[0].startsWith( "syscall" ) == false
+         || counted( report, "STATS", 1, 0 ) == false ) {
+      SysLib.cout( "\n" + report + "(wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: open, seek, fsize and delete counted...." );
+    SysLib.stats( true );
+    int fd = SysLib.open( "counted", "w" );
+    for ( int i = 0; i < 5; i++ )
+      SysLib.seek( fd, i, 0 );
+    for ( int i = 0; i < 3; i++ )
+      SysLib.fsize( fd );
+    SysLib.seek( 99, 0, 0 );       // a descriptor not open
+    SysLib.close( fd );
+    SysLib.open( "missing", "r" );
+    SysLib.open( "missing", "r" );
+    SysLib.delete( "/nodir/missing" ); // no such directory
+    SysLib.mkdir( "/dir" );
+    SysLib.readdir( "/dir", new String[4] );
+    SysLib.readdir( "/nodir", new String[4] );
+    String report = SysLib.stats( );
+    if ( counted( report, "OPEN", 3, 2 ) == false || counted( report, "SEEK", 6, 1 ) == false
+         || counted( report, "SIZE", 3, 0 ) == false || counted( report, "CLOSE", 1, 0 ) == false
+         || counted( report, "DELETE", 1, 1 ) == false || counted( report, "MKDIR", 1, 0 ) == false
+         || counted( report, "READDIR", 2, 1 ) == false || counted( report, "STATS", 1, 0 ) == false )
+      return false;
+    // no line for a call not made since the reset
+    if ( counts( report, "PREAD" ) != null || counts( report, "RMDIR" ) != null ) {
+      SysLib.cout( "a call never made (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: p50 <= p99 <= p999 <= max..............." );
+    SysLib.stats( true );
+    int fd = SysLib.open( "counted", "r" );
+    for ( int i = 0; i < 1000; i++ )
+      SysLib.seek( fd, i, 0 );
+    SysLib.close( fd );
+    String report = SysLib.stats( );
+    for ( String line : report.split( "\n" ) ) {
+      String[] words = line.trim( ).split( " +" );
+      if ( words[0].equals( "syscall" ) )
+        continue;
+      double p50 = Double.parseDouble( words[3] );
+      double p99 = Double.parseDouble( words[4] );
+      double p999 = Double.parseDouble( words[5] );
+      double max = Double.parseDouble( words[6] );
+      if ( p50 < 0 || p50 > p99 || p99 > p999 || p999 > max ) {
+        SysLib.cout( "\n" + line + " (wrong)\n" );
+        return false;
+      }
+    }
+    if ( counted( report, "SEEK", 1000, 0 ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: a call number with no handler..........." );
+    SysLib.stats( true );
+    int result = Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, 999, 0, null );
+    String report = SysLib.stats( );
+    if ( result != -1 || report.split( "\n" ).length != 2 ) {
+      SysLib.cout( "result = " + result + "\n" + report + "(wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
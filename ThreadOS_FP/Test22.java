@@ -0,0 +1,171 @@
+// Tests SysLib.copy, which copies between two open files inside the kernel:
+// aligned and unaligned copies, copies longer than what is left of the
+// source, and bad descriptors and modes. Runs every test on a disk formatted
+// with blocks of 512 bytes, then again with blocks of 4096 bytes.
+class Test22 extends Thread {
+  int blockSize;                  // the file system block size of this round
+  byte[] source;                  // the contents of "source", six blocks and a bit
+
+  public void run( ) {
+    int[] sizes = { 512, 4096 };
+    for ( int i = 0; i < sizes.length; i++ ) {
+      blockSize = sizes[i];
+      SysLib.format( 48, blockSize );
+      source = new byte[blockSize * 6 + 123];
+      for ( int j = 0; j < source.length; j++ )
+        source[j] = ( byte ) ( j % 251 + 1 );
+      int fd = SysLib.open( "source", "w" );
+      SysLib.write( fd, source );
+      SysLib.close( fd );
+      if ( test1( ) ) // whole blocks into an empty file
+        SysLib.cout( "Correct behavior of an aligned copy.............1\n" );
+      if ( test2( ) ) // from and into the middle of blocks
+        SysLib.cout( "Correct behavior of an unaligned copy...........1\n" );
+      if ( test3( ) ) // stops at the end of the source
+        SysLib.cout( "Correct behavior of copying past the end........1\n" );
+      if ( test4( ) ) // bad descriptors, modes and lengths
+        SysLib.cout( "Correct behavior of copy errors.................1\n" );
+      if ( test5( ) ) // fsck finds nothing wrong
+        SysLib.cout( "Correct behavior of fsck after copies...........1\n" );
+    }
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the seek pointer of fd
+  private int position( int fd ) {
+    return SysLib.seek( fd, 0, 1 );
+  }
+
+  // returns true if the file name holds expected, printing what differs
+  private boolean holds( String name, byte[] expected ) {
+    byte[] tmpBuf = new byte[expected.length + 1];
+    int fd = SysLib.open( name, "r" );
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != expected.length ) {
+      SysLib.cout( name + " size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < expected.length; i++ )
+      if ( tmpBuf[i] != expected[i] ) {
+        SysLib.cout( name + " byte " + i + " = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: copy( source, \"whole\", 4 blocks ) at " + blockSize + "..." );
+    int src = SysLib.open( "source", "r" );
+    int dst = SysLib.open( "whole", "w" );
+    int copied = SysLib.copy( src, dst, blockSize * 4 );
+    int srcAt = position( src ), dstAt = position( dst );
+    SysLib.close( src );
+    SysLib.close( dst );
+    if ( copied != blockSize * 4 || srcAt != copied || dstAt != copied ) {
+      SysLib.cout( "copied " + copied + ", seek pointers " + srcAt + " and " + dstAt
+                   + " (wrong)\n" );
+      return false;
+    }
+    if ( holds( "whole", java.util.Arrays.copyOf( source, copied ) ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: copy( source + 100, \"middle\" + 300 ) at " + blockSize + "." );
+    // "middle" starts out three blocks of its own, which the copy overwrites
+    // in part and extends
+    byte[] expected = new byte[blockSize * 3];
+    java.util.Arrays.fill( expected, ( byte ) -7 );
+    int dst = SysLib.open( "middle", "w+" );
+    SysLib.write( dst, expected );
+    int src = SysLib.open( "source", "r" );
+    SysLib.seek( src, 100, 0 );
+    SysLib.seek( dst, 300, 0 );
+    int length = blockSize * 2 + 77 + blockSize / 2;
+    int copied = SysLib.copy( src, dst, length );
+    int srcAt = position( src ), dstAt = position( dst );
+    SysLib.close( src );
+    SysLib.close( dst );
+    if ( copied != length || srcAt != 100 + length || dstAt != 300 + length ) {
+      SysLib.cout( "copied " + copied + ", seek pointers " + srcAt + " and " + dstAt
+                   + " (wrong)\n" );
+      return false;
+    }
+    expected = java.util.Arrays.copyOf( expected, Math.max( expected.length, 300 + length ) );
+    System.arraycopy( source, 100, expected, 300, length );
+    if ( holds( "middle", expected ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: copy( source, \"tail\" ) past the end at " + blockSize + "." );
+    int src = SysLib.open( "source", "r" );
+    int dst = SysLib.open( "tail", "w" );
+    int start = source.length - blockSize - 50;
+    SysLib.seek( src, start, 0 );
+    int copied = SysLib.copy( src, dst, blockSize * 10 );
+    int again = SysLib.copy( src, dst, 10 ); // at the end of the source
+    int srcAt = position( src ), dstAt = position( dst );
+    SysLib.close( src );
+    SysLib.close( dst );
+    if ( copied != source.length - start || again != 0 || srcAt != source.length
+         || dstAt != copied ) {
+      SysLib.cout( "copied " + copied + " then " + again + ", seek pointers " + srcAt
+                   + " and " + dstAt + " (wrong)\n" );
+      return false;
+    }
+    if ( holds( "tail", java.util.Arrays.copyOfRange( source, start, source.length ) ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: copy errors at " + blockSize + "......................." );
+    int src = SysLib.open( "source", "r" );
+    int dst = SysLib.open( "errors", "w" );
+    int wrongWay = SysLib.copy( dst, src, 10 );    // from a "w" file into an "r" file
+    int negative = SysLib.copy( src, dst, -1 );
+    int notOpen = SysLib.copy( src, 30, 10 );
+    int fromClosed = SysLib.copy( 30, dst, 10 );
+    int srcAt = position( src ), dstAt = position( dst );
+    SysLib.close( src );
+    SysLib.close( dst );
+    if ( wrongWay != -1 || negative != -1 || notOpen != -1 || fromClosed != -1 ) {
+      SysLib.cout( "results " + wrongWay + " " + negative + " " + notOpen + " " + fromClosed
+                   + " (wrong)\n" );
+      return false;
+    }
+    if ( srcAt != 0 || dstAt != 0 || holds( "errors", new byte[0] ) == false ) {
+      SysLib.cout( "a failed copy moved or wrote (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: fsck( false ) at " + blockSize + "....................." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    if ( holds( "source", source ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
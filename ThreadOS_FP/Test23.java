@@ -0,0 +1,241 @@
+// Tests BufferedFileOutputStream and BufferedFileInputStream: small writes
+// gathered into whole buffers, readLine over lines shorter and longer than
+// the buffer, large reads that go straight to the file, reads cut short at
+// the end of the file, and a buffer that is not a multiple of the block
+// size. How often each stream enters the kernel is read from SysLib.stats.
+// Formats the disk first.
+import java.io.IOException;
+
+class Test23 extends Thread {
+  final byte[] data = new byte[512 * 9 + 300];
+
+  public void run( ) {
+    SysLib.format( 48 );
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte ) ( i % 241 + 1 );
+    try {
+      if ( test1( ) ) // small writes, then one large one
+        SysLib.cout( "Correct behavior of BufferedFileOutputStream....1\n" );
+      if ( test2( ) ) // lines of every kind
+        SysLib.cout( "Correct behavior of readLine....................1\n" );
+      if ( test3( ) ) // large reads and the end of the file
+        SysLib.cout( "Correct behavior of buffered reads..............1\n" );
+      if ( test4( ) ) // a buffer of 700 bytes
+        SysLib.cout( "Correct behavior of an unaligned buffer.........1\n" );
+      if ( test5( ) ) // closed streams and bad arguments, and fsck
+        SysLib.cout( "Correct behavior of stream errors...............1\n" );
+    } catch ( IOException e ) {
+      SysLib.cout( e + " (wrong)\n" );
+    }
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the number of calls of name counted since the last reset
+  private long calls( String name ) {
+    for ( String line : SysLib.stats( ).split( "\n" ) ) {
+      String[] words = line.trim( ).split( " +" );
+      if ( words[0].equals( name ) )
+        return Long.parseLong( words[1] );
+    }
+    return 0;
+  }
+
+  // returns true if the file name holds expected, printing what differs
+  private boolean holds( String name, byte[] expected ) {
+    byte[] tmpBuf = new byte[expected.length + 1];
+    int fd = SysLib.open( name, "r" );
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != expected.length ) {
+      SysLib.cout( name + " size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < expected.length; i++ )
+      if ( tmpBuf[i] != expected[i] ) {
+        SysLib.cout( name + " byte " + i + " = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  // returns true if the size bytes at b[offset...] are those of data at
+  // from, printing the first that differs
+  private boolean same( byte[] b, int offset, int from, int size ) {
+    for ( int i = 0; i < size; i++ )
+      if ( b[offset + i] != data[from + i] ) {
+        SysLib.cout( "byte " + ( from + i ) + " = " + b[offset + i] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  private boolean test1( ) throws IOException {
+    //.............................................."
+    SysLib.cout( "1: 1000 bytes one at a time, then 3000....." );
+    SysLib.stats( true );
+    BufferedFileOutputStream out
+      = new BufferedFileOutputStream( SysLib.open( "streamed", "w" ) );
+    for ( int i = 0; i < 1000; i++ )
+      out.write( data[i] );
+    out.write( data, 1000, 3000 );
+    out.write( data, 4000, data.length - 4000 );
+    out.close( );
+    // one write per buffer filled, and the rest on close, never one per byte
+    long writes = calls( "WRITE" );
+    if ( writes > data.length / 512 + 2 ) {
+      SysLib.cout( writes + " writes (wrong)\n" );
+      return false;
+    }
+    if ( holds( "streamed", data ) == false )
+      return false;
+    // a stream opened in the middle of a block fills the rest of it first
+    out = new BufferedFileOutputStream( SysLib.open( "streamed", "a" ) );
+    out.write( data, 0, 2000 );
+    out.close( );
+    byte[] both = java.util.Arrays.copyOf( data, data.length + 2000 );
+    System.arraycopy( data, 0, both, data.length, 2000 );
+    if ( holds( "streamed", both ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) throws IOException {
+    //.............................................."
+    SysLib.cout( "2: readLine( ) over short and long lines..." );
+    StringBuilder longLine = new StringBuilder( );
+    while ( longLine.length( ) < 1500 )
+      longLine.append( "a long line " );
+    String[] lines = { "first", "", "dos\r", longLine.toString( ), "last without newline" };
+    String[] expected = { "first", "", "dos", longLine.toString( ), "last without newline" };
+    StringBuilder text = new StringBuilder( );
+    for ( int i = 0; i < lines.length; i++ )
+      text.append( lines[i] ).append( i < lines.length - 1 ? "\n" : "" );
+    int fd = SysLib.open( "lines", "w" );
+    SysLib.write( fd, text.toString( ).getBytes( ) );
+    SysLib.close( fd );
+    BufferedFileInputStream in = new BufferedFileInputStream( SysLib.open( "lines", "r" ) );
+    for ( int i = 0; i < expected.length; i++ ) {
+      String line = in.readLine( );
+      if ( expected[i].equals( line ) == false ) {
+        SysLib.cout( "line " + i + " = " + line + " (wrong)\n" );
+        in.close( );
+        return false;
+      }
+    }
+    String after = in.readLine( );
+    int end = in.read( );
+    in.close( );
+    if ( after != null || end != -1 ) {
+      SysLib.cout( "read past the end (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) throws IOException {
+    //.............................................."
+    SysLib.cout( "3: read( b, off, len ) direct and partial.." );
+    BufferedFileInputStream in = new BufferedFileInputStream( SysLib.open( "streamed", "r" ) );
+    byte[] b = new byte[8000];
+    // a few bytes leave the buffer part full
+    for ( int i = 0; i < 100; i++ )
+      if ( in.read( ) != ( data[i] & 0xff ) ) {
+        SysLib.cout( "read( ) at " + i + " (wrong)\n" );
+        in.close( );
+        return false;
+      }
+    // the rest of the buffer, then whole blocks straight into b
+    SysLib.stats( true );
+    int read = in.read( b, 10, 412 + 512 * 6 );
+    long reads = calls( "READ" );
+    if ( read != 412 + 512 * 6 || same( b, 10, 100, read ) == false || reads != 1 ) {
+      SysLib.cout( "read " + read + " in " + reads + " calls (wrong)\n" );
+      in.close( );
+      return false;
+    }
+    // a request past the end gets what is left, then the end of the file
+    int position = 100 + read;
+    read = in.read( b, 0, b.length );
+    int rest = data.length + 2000 - position;
+    int more = in.read( b, 0, 10 );
+    in.close( );
+    if ( read != rest || more != -1 || same( b, 0, position, data.length - position ) == false ) {
+      SysLib.cout( "read " + read + " of " + rest + ", then " + more + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) throws IOException {
+    //.............................................."
+    SysLib.cout( "4: a buffer of 700 bytes..................." );
+    BufferedFileInputStream in
+      = new BufferedFileInputStream( SysLib.open( "streamed", "r" ), 700 );
+    byte[] b = new byte[3000];
+    int first = in.read( b, 0, 50 );
+    int available = in.available( );
+    int second = in.read( b, 50, 2950 );
+    in.close( );
+    if ( first != 50 || available != 650 || second != 2950 || same( b, 0, 0, 3000 ) == false ) {
+      SysLib.cout( "read " + first + ", " + available + " left, then " + second + " (wrong)\n" );
+      return false;
+    }
+    BufferedFileOutputStream out
+      = new BufferedFileOutputStream( SysLib.open( "odd", "w" ), 700 );
+    for ( int i = 0; i < data.length; i += 333 )
+      out.write( data, i, Math.min( 333, data.length - i ) );
+    out.flush( );
+    out.close( );
+    if ( holds( "odd", data ) == false )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) throws IOException {
+    //.............................................."
+    SysLib.cout( "5: closed streams and bad arguments........" );
+    BufferedFileInputStream in = new BufferedFileInputStream( SysLib.open( "odd", "r" ) );
+    in.close( );
+    in.close( ); // a second close does nothing
+    boolean threw = false;
+    try {
+      in.read( new byte[10], 0, 10 );
+    } catch ( IOException e ) {
+      threw = true;
+    }
+    BufferedFileOutputStream out = new BufferedFileOutputStream( SysLib.open( "odd2", "w" ) );
+    try {
+      out.write( new byte[10], 5, 10 );
+      threw = false;
+    } catch ( IndexOutOfBoundsException e ) {
+    }
+    out.close( );
+    try {
+      out.write( 1 );
+      threw = false;
+    } catch ( IOException e ) {
+    }
+    try {
+      new BufferedFileInputStream( 3, 0 );
+      threw = false;
+    } catch ( IllegalArgumentException e ) {
+    }
+    if ( threw == false ) {
+      SysLib.cout( "an error not thrown (wrong)\n" );
+      return false;
+    }
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
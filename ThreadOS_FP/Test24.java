@@ -0,0 +1,237 @@
+// Tests files on volumes of large blocks, as Test5 does on blocks of 512
+// bytes: formatted with blocks of 4096 bytes, then of SuperBlock.maxBlockSize
+// bytes, it checks a small file, a file reaching the first index tree, and a
+// sparse file whose one block lies deep in the trees, counting the data and
+// index blocks each takes from /proc/fs, then fsck and delete. A volume of
+// the largest blocks needs a disk of 2048 blocks or more: java Boot 2048.
+class Test24 extends Thread {
+  final static int DIRECT = 3;    // direct pointers in an inode
+  final static int NEEDED = 16;   // file system blocks the tests take at most
+  int blockSize;                  // the file system block size of this round
+  int pointers;                   // the pointers in one index block
+  byte[] large;                   // the contents of "bothell"
+  int sparseAt;                   // the offset of the eight bytes of "sparse"
+  int used;                       // the blocks the files of this round hold
+
+  public void run( ) {
+    int[] sizes = { 4096, SuperBlock.maxBlockSize };
+    for ( int i = 0; i < sizes.length; i++ ) {
+      blockSize = sizes[i];
+      pointers = blockSize / 4;
+      used = 0;
+      if ( test1( ) ) // format with blockSize
+        SysLib.cout( "Correct behavior of format......................1\n" );
+      else
+        continue;
+      if ( test2( ) ) // a file of a block
+        SysLib.cout( "Correct behavior of a small file................1\n" );
+      if ( test3( ) ) // direct blocks, then the first tree
+        SysLib.cout( "Correct behavior of a large file................1\n" );
+      if ( test4( ) ) // one block with index blocks above it
+        SysLib.cout( "Correct behavior of a sparse file...............1\n" );
+      if ( test5( ) ) // fsck, then delete frees every block
+        SysLib.cout( "Correct behavior of fsck and delete.............1\n" );
+    }
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // returns the number on the line of name in the /proc file, or -1
+  private int field( String file, String name ) {
+    int fd = SysLib.open( file, "r" );
+    byte[] text = new byte[1024];
+    int size = SysLib.read( fd, text );
+    SysLib.close( fd );
+    for ( String line : new String( text, 0, Math.max( 0, size ) ).split( "\n" ) ) {
+      String[] words = line.trim( ).split( " +" );
+      if ( words[0].equals( name ) )
+        return Integer.parseInt( words[1] );
+    }
+    return -1;
+  }
+
+  // returns the free blocks shown in /proc/fs once no freed block waits to
+  // be reclaimed
+  private int freeBlocks( ) {
+    while ( field( "/proc/fs", "pendingFrees" ) != 0 )
+      SysLib.sleep( 10 );
+    return field( "/proc/fs", "freeBlocks" );
+  }
+
+  // returns the index blocks above file block i: one per level of its tree
+  private int levelsAbove( int i ) {
+    if ( i < DIRECT )
+      return 0;
+    return ( i - DIRECT < pointers ) ? 1 : 2;
+  }
+
+  // returns true if the file name holds expected, printing what differs
+  private boolean holds( String name, byte[] expected ) {
+    byte[] tmpBuf = new byte[expected.length + 1];
+    int fd = SysLib.open( name, "r" );
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != expected.length ) {
+      SysLib.cout( name + " size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < expected.length; i++ )
+      if ( tmpBuf[i] != expected[i] ) {
+        SysLib.cout( name + " byte " + i + " = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: format( 48, " + blockSize + " )..................." );
+    int diskBlocks = field( "/proc/disk", "blocks" );
+    if ( diskBlocks < NEEDED * ( blockSize / Disk.blockSize ) ) {
+      SysLib.cout( "a disk of " + diskBlocks + " blocks is too small; java Boot "
+                   + NEEDED * ( blockSize / Disk.blockSize ) + " (wrong)\n" );
+      return false;
+    }
+    int result = SysLib.format( 48, blockSize );
+    int shown = field( "/proc/fs", "blockSize" );
+    if ( result != 0 || SysLib.blockSize( ) != blockSize || shown != blockSize ) {
+      SysLib.cout( "result = " + result + ", blockSize = " + SysLib.blockSize( )
+                   + ", /proc/fs shows " + shown + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: write, append and seek in \"css430\"...." );
+    byte[] expected = new byte[48];
+    for ( int i = 0; i < expected.length; i++ )
+      expected[i] = ( byte ) ( i + 1 );
+    int free = freeBlocks( );
+    int fd = SysLib.open( "css430", "w+" );
+    SysLib.write( fd, java.util.Arrays.copyOf( expected, 16 ) );
+    SysLib.close( fd );
+    fd = SysLib.open( "css430", "a" );
+    SysLib.write( fd, java.util.Arrays.copyOfRange( expected, 16, 48 ) );
+    SysLib.close( fd );
+    int taken = free - freeBlocks( );
+    if ( taken != 1 ) {
+      SysLib.cout( "took " + taken + " blocks (wrong)\n" );
+      return false;
+    }
+    used += taken;
+    if ( holds( "css430", expected ) == false )
+      return false;
+    byte[] tmpBuf = new byte[20];
+    fd = SysLib.open( "css430", "r" );
+    SysLib.seek( fd, 10, 0 );
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    for ( int i = 0; i < tmpBuf.length; i++ )
+      if ( size != tmpBuf.length || tmpBuf[i] != expected[10 + i] ) {
+        SysLib.cout( "seek and read (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: write and read \"bothell\" of 8 blocks..." );
+    large = new byte[blockSize * 7 + 100];
+    for ( int i = 0; i < large.length; i++ )
+      large[i] = ( byte ) ( i % 253 + 1 );
+    int free = freeBlocks( );
+    int fd = SysLib.open( "bothell", "w" );
+    int size = SysLib.write( fd, large );
+    SysLib.close( fd );
+    // three direct blocks, five in the first tree and the index block above
+    int taken = free - freeBlocks( );
+    if ( size != large.length || taken != 8 + 1 ) {
+      SysLib.cout( "wrote " + size + " in " + taken + " blocks (wrong)\n" );
+      return false;
+    }
+    used += taken;
+    if ( holds( "bothell", large ) == false )
+      return false;
+    // a read from the middle of a direct block into the first tree
+    byte[] tmpBuf = new byte[blockSize * 2];
+    fd = SysLib.open( "bothell", "r" );
+    int from = blockSize * 2 + 77;
+    SysLib.seek( fd, from, 0 );
+    size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    for ( int i = 0; i < tmpBuf.length; i++ )
+      if ( size != tmpBuf.length || tmpBuf[i] != large[from + i] ) {
+        SysLib.cout( "seek and read at " + from + " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: eight bytes deep in \"sparse\"..........." );
+    // the first block of the two level tree, or the last block a file can
+    // have when that lies past it, as its length keeps two bits for flags
+    int block = Math.min( DIRECT + pointers, ( 0x40000000 - 1 ) / blockSize - 1 );
+    sparseAt = block * blockSize + 9;
+    byte[] marker = { 1, 2, 3, 4, 5, 6, 7, 8 };
+    int free = freeBlocks( );
+    int fd = SysLib.open( "sparse", "w" );
+    SysLib.seek( fd, sparseAt, 0 );
+    int size = SysLib.write( fd, marker );
+    SysLib.close( fd );
+    int taken = free - freeBlocks( );
+    if ( size != 8 || taken != 1 + levelsAbove( block ) ) {
+      SysLib.cout( "wrote " + size + " in " + taken + " blocks (wrong)\n" );
+      return false;
+    }
+    used += taken;
+    byte[] tmpBuf = new byte[16];
+    fd = SysLib.open( "sparse", "r" );
+    int length = SysLib.fsize( fd );
+    SysLib.seek( fd, sparseAt - 8, 0 );
+    size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( length != sparseAt + 8 || size != 16 ) {
+      SysLib.cout( "length " + length + ", read " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < 16; i++ )
+      if ( tmpBuf[i] != ( i < 8 ? 0 : marker[i - 8] ) ) {
+        SysLib.cout( "byte " + ( sparseAt - 8 + i ) + " = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: fsck( false ), then delete all.........." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    int free = freeBlocks( );
+    int deleted = SysLib.delete( "css430" ) + SysLib.delete( "bothell" )
+                  + SysLib.delete( "sparse" );
+    int returned = freeBlocks( ) - free;
+    SysLib.sync( );
+    problems = SysLib.fsck( false );
+    if ( deleted != 0 || returned != used || problems != 0 ) {
+      SysLib.cout( "deleted " + deleted + ", " + returned + " of " + used
+                   + " blocks back, problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
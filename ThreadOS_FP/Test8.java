@@ -0,0 +1,236 @@
+// Tests directories: mkdir, rmdir and readdir, files opened by path, the
+// errors each returns, and child threads making and deleting files in
+// directories of their own while all of them create one name at once.
+// "l Test8" runs the test and formats the disk first; "Test8 k" is worker k.
+class Test8 extends Thread {
+  final static int WORKERS = 4;
+  final static int FILES = 8;     // the files each worker makes in its directory
+  final byte[] data = { 8, 6, 7, 5, 3, 0, 9 };
+  final int worker;               // this worker's number, or -1 for the parent
+
+  public Test8( String args[] ) {
+    worker = Integer.parseInt( args[0] );
+  }
+
+  public Test8( ) {
+    worker = -1;
+  }
+
+  public void run( ) {
+    if ( worker >= 0 ) {
+      work( );
+      SysLib.exit( );
+      return;
+    }
+    SysLib.format( 48 );
+    if ( test1( ) ) // mkdir nested directories
+      SysLib.cout( "Correct behavior of mkdir.......................1\n" );
+    if ( test2( ) ) // write and read files by path
+      SysLib.cout( "Correct behavior of files in directories........1\n" );
+    if ( test3( ) ) // readdir lists the entries
+      SysLib.cout( "Correct behavior of readdir.....................1\n" );
+    if ( test4( ) ) // rmdir only empty directories
+      SysLib.cout( "Correct behavior of rmdir.......................1\n" );
+    if ( test5( ) ) // workers in directories of their own
+      SysLib.cout( "Correct behavior of concurrent directories......1\n" );
+    if ( test6( ) ) // fsck finds nothing wrong
+      SysLib.cout( "Correct behavior of fsck after directories......1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: mkdir( \"/a/b\" )........................" );
+    if ( SysLib.mkdir( "/a" ) != 0 || SysLib.mkdir( "a/b" ) != 0 ) {
+      SysLib.cout( "mkdir failed (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.mkdir( "/a/b" ) != -1 ) {
+      SysLib.cout( "made /a/b twice (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.mkdir( "/x/y" ) != -1 ) {
+      SysLib.cout( "made /x/y without /x (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: write and read \"/a/b/f\"..............." );
+    int fd = SysLib.open( "/a/b/f", "w+" );
+    if ( fd < 3 || SysLib.write( fd, data ) != data.length ) {
+      SysLib.cout( "fd = " + fd + " (wrong)\n" );
+      return false;
+    }
+    SysLib.close( fd );
+    fd = SysLib.open( "a/b/f", "r" );
+    byte[] tmpBuf = new byte[data.length];
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != data.length ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < data.length; i++ )
+      if ( tmpBuf[i] != data[i] ) {
+        SysLib.cout( "tmpBuf[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    if ( SysLib.open( "/a", "w" ) != -1 ) {
+      SysLib.cout( "opened a directory to write (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.open( "/x/f", "w+" ) != -1 ) {
+      SysLib.cout( "created a file in /x (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: readdir( \"/a/b\" )......................" );
+    for ( int i = 0; i < 3; i++ ) {
+      int fd = SysLib.open( "/a/b/g" + i, "w+" );
+      SysLib.close( fd );
+    }
+    String[] names = new String[8];
+    int count = SysLib.readdir( "/a/b", names );
+    if ( count != 4 ) {
+      SysLib.cout( "count = " + count + " (wrong)\n" );
+      return false;
+    }
+    String[] expected = { "f", "g0", "g1", "g2" };
+    for ( int i = 0; i < expected.length; i++ ) {
+      boolean found = false;
+      for ( int j = 0; j < count; j++ )
+        found |= expected[i].equals( names[j] );
+      if ( found == false ) {
+        SysLib.cout( expected[i] + " not listed (wrong)\n" );
+        return false;
+      }
+    }
+    String[] one = new String[1];
+    if ( SysLib.readdir( "/a/b", one ) != 4 || one[0] == null ) {
+      SysLib.cout( "a short names[] (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.readdir( "/a/b/f", names ) != -1
+         || SysLib.readdir( "/none", names ) != -1 ) {
+      SysLib.cout( "listed what is not a directory (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: rmdir( \"/a\" ).........................." );
+    if ( SysLib.rmdir( "/a" ) != -1 ) {
+      SysLib.cout( "removed a full directory (wrong)\n" );
+      return false;
+    }
+    SysLib.delete( "/a/b/f" );
+    for ( int i = 0; i < 3; i++ )
+      SysLib.delete( "/a/b/g" + i );
+    if ( SysLib.open( "/a/b/f", "r" ) != -1 ) {
+      SysLib.cout( "/a/b/f still opens (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.rmdir( "/a/b" ) != 0 || SysLib.rmdir( "/a" ) != 0 ) {
+      SysLib.cout( "rmdir failed (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.rmdir( "/a" ) != -1 ) {
+      SysLib.cout( "removed /a twice (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.mkdir( "/a" ) != 0 ) {
+      SysLib.cout( "cannot make /a again (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  // makes "/wk" and its files, deleting every other one, then writes this
+  // worker's number into its own byte of "/race", which every worker creates
+  private void work( ) {
+    String dir = "/w" + worker;
+    if ( SysLib.mkdir( dir ) != 0 ) {
+      SysLib.cout( "Test8: worker " + worker + " mkdir (wrong)\n" );
+      return;
+    }
+    for ( int j = 0; j < FILES; j++ ) {
+      int fd = SysLib.open( dir + "/f" + j, "w" );
+      if ( fd < 0 || SysLib.write( fd, data ) != data.length ) {
+        SysLib.cout( "Test8: worker " + worker + " file " + j + " (wrong)\n" );
+        return;
+      }
+      SysLib.close( fd );
+      if ( j % 2 == 1 )
+        SysLib.delete( dir + "/f" + j );
+    }
+    int fd = SysLib.open( "/race", "w+" );
+    SysLib.pwrite( fd, new byte[] { ( byte ) ( worker + 1 ) }, worker );
+    SysLib.close( fd );
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: " + WORKERS + " threads mkdir, open and delete......" );
+    for ( int k = 0; k < WORKERS; k++ ) {
+      String[] cmd = { "Test8", Integer.toString( k ) };
+      if ( SysLib.exec( cmd ) < 0 ) {
+        SysLib.cout( "exec failed (wrong)\n" );
+        return false;
+      }
+    }
+    for ( int k = 0; k < WORKERS; k++ )
+      SysLib.join( );
+    String[] names = new String[FILES];
+    for ( int k = 0; k < WORKERS; k++ ) {
+      int count = SysLib.readdir( "/w" + k, names );
+      if ( count != FILES / 2 ) {
+        SysLib.cout( "/w" + k + " holds " + count + " files (wrong)\n" );
+        return false;
+      }
+      for ( int i = 0; i < count; i++ )
+        if ( Integer.parseInt( names[i].substring( 1 ) ) % 2 != 0 ) {
+          SysLib.cout( "/w" + k + "/" + names[i] + " not deleted (wrong)\n" );
+          return false;
+        }
+    }
+    // one "/race", holding a byte from every worker
+    byte[] tmpBuf = new byte[WORKERS + 1];
+    int fd = SysLib.open( "/race", "r" );
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    for ( int k = 0; k < WORKERS; k++ )
+      if ( size != WORKERS || tmpBuf[k] != k + 1 ) {
+        SysLib.cout( "/race size = " + size + ", byte " + k + " = " + tmpBuf[k] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test6( ) {
+    //.............................................."
+    SysLib.cout( "6: fsck( false )..........................." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,181 @@
+// Tests pread and pwrite under concurrency: four child threads write their
+// own blocks of one file at the same time, whole and in part, through the
+// descriptor they inherit, whose seek pointer they must not move.
+// "l Test9" runs the test and formats the disk first; "Test9 k fd" is
+// worker k, writing through fd.
+class Test9 extends Thread {
+  final static int WORKERS = 4;
+  final static int BLOCKS = 32;   // the file's blocks, block b written by worker b % WORKERS
+  final int worker;               // this worker's number, or -1 for the parent
+  int fd;                         // the descriptor a worker writes through
+
+  public Test9( String args[] ) {
+    worker = Integer.parseInt( args[0] );
+    fd = Integer.parseInt( args[1] );
+  }
+
+  public Test9( ) {
+    worker = -1;
+  }
+
+  public void run( ) {
+    if ( worker >= 0 ) {
+      work( );
+      SysLib.exit( );
+      return;
+    }
+    SysLib.format( 48 );
+    int fd = SysLib.open( "shared", "w+" );
+    SysLib.seek( fd, 100, 0 );
+    if ( test1( fd ) ) // four writers at once
+      SysLib.cout( "Correct behavior of concurrent pwrite...........1\n" );
+    if ( test2( fd ) ) // pread sees every block
+      SysLib.cout( "Correct behavior of pread after pwrite..........1\n" );
+    if ( test3( fd ) ) // the seek pointer never moved
+      SysLib.cout( "Correct behavior of the seek pointer............1\n" );
+    SysLib.close( fd );
+    if ( test4( fd ) ) // bad arguments
+      SysLib.cout( "Correct behavior of pread/pwrite errors.........1\n" );
+    if ( test5( ) ) // fsck finds nothing wrong
+      SysLib.cout( "Correct behavior of fsck after pwrite...........1\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // the byte at offset i of block b once every worker is done
+  static byte expected( int b, int i ) {
+    if ( i >= 200 && i < 300 )
+      return ( byte ) ( 100 + b );
+    return ( byte ) ( b * 7 + i );
+  }
+
+  // writes each of this worker's blocks whole, then overwrites 100 bytes in
+  // its middle, reading each back with pread as it goes
+  private void work( ) {
+    byte[] block = new byte[512];
+    byte[] part = new byte[100];
+    byte[] tmpBuf = new byte[512];
+    for ( int b = worker; b < BLOCKS; b += WORKERS ) {
+      for ( int i = 0; i < 512; i++ )
+        block[i] = ( byte ) ( b * 7 + i );
+      java.util.Arrays.fill( part, ( byte ) ( 100 + b ) );
+      if ( SysLib.pwrite( fd, block, b * 512 ) != 512
+           || SysLib.pwrite( fd, part, b * 512 + 200 ) != 100
+           || SysLib.pread( fd, tmpBuf, b * 512 ) != 512
+           || tmpBuf[250] != part[0] || tmpBuf[511] != block[511] ) {
+        SysLib.cout( "Test9: worker " + worker + " block " + b + " (wrong)\n" );
+        break;
+      }
+    }
+  }
+
+  private boolean test1( int fd ) {
+    //.............................................."
+    SysLib.cout( "1: " + WORKERS + " threads pwrite( \"shared\" )........" );
+    for ( int k = 0; k < WORKERS; k++ ) {
+      String[] cmd = { "Test9", Integer.toString( k ), Integer.toString( fd ) };
+      if ( SysLib.exec( cmd ) < 0 ) {
+        SysLib.cout( "exec failed (wrong)\n" );
+        return false;
+      }
+    }
+    for ( int k = 0; k < WORKERS; k++ )
+      SysLib.join( );
+    int size = SysLib.fsize( fd );
+    if ( size != BLOCKS * 512 ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( int fd ) {
+    //.............................................."
+    SysLib.cout( "2: pread( \"shared\" ) every block.........." );
+    byte[] tmpBuf = new byte[512];
+    for ( int b = 0; b < BLOCKS; b++ ) {
+      int size = SysLib.pread( fd, tmpBuf, b * 512 );
+      if ( size != 512 ) {
+        SysLib.cout( "block " + b + " size = " + size + " (wrong)\n" );
+        return false;
+      }
+      for ( int i = 0; i < 512; i++ )
+        if ( tmpBuf[i] != expected( b, i ) ) {
+          SysLib.cout( "block " + b + " byte " + i + " = " + tmpBuf[i]
+                       + " (wrong)\n" );
+          return false;
+        }
+    }
+    // a read across the end returns only what is there
+    int size = SysLib.pread( fd, tmpBuf, BLOCKS * 512 - 12 );
+    if ( size != 12 || tmpBuf[0] != expected( BLOCKS - 1, 500 ) ) {
+      SysLib.cout( "read at the end = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( int fd ) {
+    //.............................................."
+    SysLib.cout( "3: seek pointer unchanged..................." );
+    int position = SysLib.seek( fd, 0, 1 );
+    if ( position != 100 ) {
+      SysLib.cout( "seek pointer = " + position + " (wrong)\n" );
+      return false;
+    }
+    byte[] tmpBuf = new byte[4];
+    SysLib.read( fd, tmpBuf );
+    if ( tmpBuf[0] != expected( 0, 100 ) || tmpBuf[3] != expected( 0, 103 ) ) {
+      SysLib.cout( "read at the seek pointer (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  // closed is the descriptor the test used, closed by now
+  private boolean test4( int closed ) {
+    //.............................................."
+    SysLib.cout( "4: pread/pwrite errors......................" );
+    byte[] tmpBuf = new byte[16];
+    if ( SysLib.pread( closed, tmpBuf, 0 ) >= 0
+         || SysLib.pwrite( closed, tmpBuf, 0 ) >= 0 ) {
+      SysLib.cout( "a descriptor not open (wrong)\n" );
+      return false;
+    }
+    int fd = SysLib.open( "shared", "r" );
+    if ( SysLib.pread( fd, tmpBuf, -1 ) >= 0 ) {
+      SysLib.cout( "a negative offset (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    if ( SysLib.pwrite( fd, tmpBuf, 0 ) >= 0 ) {
+      SysLib.cout( "wrote through \"r\" (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    int size = SysLib.pread( fd, tmpBuf, BLOCKS * 512 + 5 );
+    SysLib.close( fd );
+    if ( size > 0 ) {
+      SysLib.cout( "read past the end (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: fsck( false )..........................." );
+    SysLib.sync( );
+    int problems = SysLib.fsck( false );
+    if ( problems != 0 ) {
+      SysLib.cout( "problems = " + problems + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
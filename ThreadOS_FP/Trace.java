@@ -0,0 +1,138 @@
+/*
+Kernel event tracing for finding where time goes: system calls, disk commands and their seeks, waits for the disk
+and for open files, hits and misses of the directory and mapped page caches, and the scheduler's time slices.
+Every thread records into a ring buffer of its own, so recording takes no lock and never waits; when a ring is full
+its oldest events are overwritten. Each call site tests the volatile enabled flag before building an event, so with
+tracing off an event costs one read of that flag.
+dump( ) writes what the rings hold in the Chrome trace_event JSON format, which chrome://tracing and Perfetto load:
+begin and end events become spans on the track of the thread that recorded them, and instant events become marks.
+A dump taken while threads are recording may miss their latest events. start( ) empties every ring.
+ */
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class Trace {
+    public static volatile boolean enabled = false; // tested by every call site before it records
+    private static final int ringSize = 16384; // events kept per thread
+    private static volatile int generation = 0; // advanced by start( ), so each ring empties itself on its next event
+    private static final long epoch = System.nanoTime(); // event times are measured from here
+    private static final ConcurrentLinkedQueue<Ring> rings = new ConcurrentLinkedQueue<Ring>();
+    private static final ThreadLocal<Ring> myRing = new ThreadLocal<Ring>();
+
+    // the events of one thread; only that thread writes them
+    private static class Ring {
+        final long threadId;
+        final String threadName;
+        final long[] times = new long[ringSize];
+        final char[] phases = new char[ringSize]; // 'B' begins a span, 'E' ends it, 'i' is an instant
+        final String[] categories = new String[ringSize];
+        final String[] names = new String[ringSize];
+        final String[] argNames = new String[ringSize]; // null when the event has no argument
+        final long[] args = new long[ringSize];
+        final int generation;
+        volatile long count = 0; // events recorded; written after the event itself, so a reader sees it whole
+
+        Ring(Thread thread, int generation) {
+            threadId = thread.getId();
+            // user threads are plain Threads around the program; the kernel's threads are named by their class
+            threadName = (thread.getClass() == Thread.class) ? thread.getName() : thread.getClass().getName();
+            this.generation = generation;
+        }
+    }
+
+    // empties every ring and starts recording
+    public static synchronized void start() {
+        generation++;
+        rings.clear();
+        enabled = true;
+    }
+
+    // stops recording; the rings keep their events for dump( )
+    public static void stop() {
+        enabled = false;
+    }
+
+    // begins a span on the calling thread's track
+    public static void begin(String category, String name, String argName, long arg) {
+        record('B', category, name, argName, arg);
+    }
+
+    public static void begin(String category, String name) {
+        record('B', category, name, null, 0);
+    }
+
+    // ends the span the calling thread began last
+    public static void end(String category, String name) {
+        record('E', category, name, null, 0);
+    }
+
+    // marks a moment on the calling thread's track
+    public static void instant(String category, String name, String argName, long arg) {
+        record('i', category, name, argName, arg);
+    }
+
+    private static void record(char phase, String category, String name, String argName, long arg) {
+        Ring ring = myRing.get();
+        if (ring == null || ring.generation != generation) {
+            ring = new Ring(Thread.currentThread(), generation);
+            myRing.set(ring);
+            rings.add(ring);
+        }
+        long n = ring.count;
+        int i = (int) (n % ringSize);
+        ring.times[i] = System.nanoTime() - epoch;
+        ring.phases[i] = phase;
+        ring.categories[i] = category;
+        ring.names[i] = name;
+        ring.argNames[i] = argName;
+        ring.args[i] = arg;
+        ring.count = n + 1;
+    }
+
+    // writes every event the rings hold to the host file fileName as Chrome trace_event JSON
+    // returns the number of events written, or -1 if the file cannot be written
+    public static synchronized int dump(String fileName) {
+        ArrayList<Ring> snapshot = new ArrayList<Ring>(rings);
+        int written = 0;
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+            out.println("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            boolean first = true;
+            for (Ring ring : snapshot) {
+                out.print(first ? "" : ",\n");
+                first = false;
+                out.print("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + ring.threadId
+                        + ",\"args\":{\"name\":\"" + escape(ring.threadName) + "\"}}");
+                long count = ring.count;
+                for (long n = Math.max(0, count - ringSize); n < count; n++) {
+                    int i = (int) (n % ringSize);
+                    out.print(",\n{\"name\":\"" + escape(ring.names[i]) + "\",\"cat\":\"" + escape(ring.categories[i])
+                            + "\",\"ph\":\"" + ring.phases[i] + "\",\"ts\":" + ring.times[i] / 1000 + "."
+                            + String.format("%03d", ring.times[i] % 1000) + ",\"pid\":1,\"tid\":" + ring.threadId);
+                    if (ring.phases[i] == 'i') {
+                        out.print(",\"s\":\"t\"");
+                    }
+                    if (ring.argNames[i] != null) {
+                        out.print(",\"args\":{\"" + escape(ring.argNames[i]) + "\":" + ring.args[i] + "}");
+                    }
+                    out.print("}");
+                    written++;
+                }
+            }
+            out.println("\n]}");
+            if (out.checkError()) {
+                return -1;
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return written;
+    }
+
+    private static String escape(String s) {
+        return (s == null) ? "" : s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}